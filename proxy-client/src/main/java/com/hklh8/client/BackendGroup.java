@@ -0,0 +1,337 @@
+package com.hklh8.client;
+
+import io.netty.channel.Channel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.util.NetUtil;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个映射的后端服务器组
+ * <p>
+ * lan可以配置多个后端服务器，逗号分隔，每项为 ip:port、域名:port 或 unix:路径（本机的Unix domain socket，需要epoll）。新连接在可用的服务器之间按最少连接数或连接耗时（EWMA）均衡；
+ * 每个服务器有一个熔断器，连续失败达到阈值后断开一段时间，期间不再向该服务器发起连接，到期后只放行一个试探连接
+ */
+public class BackendGroup {
+
+    /**
+     * 最少连接数，连接数相同时选连接耗时短的
+     */
+    public static final String BALANCE_LEAST_CONNECTIONS = "leastconn";
+
+    /**
+     * 连接耗时乘以(连接数+1)最小的
+     */
+    public static final String BALANCE_EWMA = "ewma";
+
+    /**
+     * Unix domain socket后端服务器的前缀
+     */
+    public static final String UNIX_PREFIX = "unix:";
+
+    /**
+     * 连接耗时的平滑系数
+     */
+    private static final double LATENCY_ALPHA = 0.3;
+
+    private final String lanInfo;
+
+    private final List<Backend> backends = new ArrayList<>();
+
+    private final boolean ewma;
+
+    private final int failureThreshold;
+
+    private final long openMillis;
+
+    private final int keepAliveMaxIdle;
+
+    private final long keepAliveMillis;
+
+    private volatile long lastUsedMillis = System.currentTimeMillis();
+
+    /**
+     * @param lanInfo          后端服务器信息，ip:port 或 unix:路径，多个服务器逗号分隔
+     * @param balance          均衡方式，leastconn或ewma
+     * @param failureThreshold 连续失败多少次后熔断
+     * @param openMillis       熔断持续的毫秒数
+     * @param keepAliveMaxIdle HTTP映射每个服务器最多保留的空闲keep-alive连接数
+     * @param keepAliveMillis  keep-alive连接最长的空闲毫秒数
+     */
+    public BackendGroup(String lanInfo, String balance, int failureThreshold, long openMillis, int keepAliveMaxIdle,
+                        long keepAliveMillis) {
+        this.lanInfo = lanInfo;
+        this.ewma = BALANCE_EWMA.equalsIgnoreCase(balance);
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = openMillis;
+        this.keepAliveMaxIdle = keepAliveMaxIdle;
+        this.keepAliveMillis = keepAliveMillis;
+        for (String item : lanInfo.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+
+            if (item.startsWith(UNIX_PREFIX)) {
+                backends.add(new Backend(item.substring(UNIX_PREFIX.length())));
+                continue;
+            }
+
+            String[] serverInfo = item.split(":");
+            backends.add(new Backend(serverInfo[0], Integer.parseInt(serverInfo[1])));
+        }
+    }
+
+    /**
+     * 选择一个可用的后端服务器，并计入该服务器的连接数
+     *
+     * @param exclude 本次连接已经失败过的服务器，可以为null
+     * @return 没有可用的服务器时返回null
+     */
+    public synchronized Backend select(Backend exclude) {
+        lastUsedMillis = System.currentTimeMillis();
+        long now = lastUsedMillis;
+        Backend best = null;
+        double bestScore = 0;
+        for (Backend backend : backends) {
+            if (backend == exclude || !backend.isAvailable(now)) {
+                continue;
+            }
+
+            double score = ewma ? Math.max(backend.latencyMillis, 1) * (backend.connections.get() + 1)
+                    : backend.connections.get() + Math.max(backend.latencyMillis, 0) / 1e6;
+            if (best == null || score < bestScore) {
+                best = backend;
+                bestScore = score;
+            }
+        }
+
+        if (best != null) {
+            if (best.openUntilMillis > 0) {
+                // 熔断到期后的试探连接，结果出来之前不再放行其他连接
+                best.trial = true;
+            }
+            best.connections.incrementAndGet();
+        }
+        return best;
+    }
+
+    public synchronized void success(Backend backend, long latencyMillis) {
+        backend.failures = 0;
+        backend.openUntilMillis = 0;
+        backend.trial = false;
+        if (latencyMillis >= 0) {
+            backend.latencyMillis = backend.latencyMillis < 0 ? latencyMillis
+                    : (long) (LATENCY_ALPHA * latencyMillis + (1 - LATENCY_ALPHA) * backend.latencyMillis);
+        }
+    }
+
+    public synchronized void failure(Backend backend) {
+        backend.failures++;
+        backend.trial = false;
+        if (backend.failures >= failureThreshold || backend.openUntilMillis > 0) {
+            backend.openUntilMillis = System.currentTimeMillis() + openMillis;
+        }
+    }
+
+    /**
+     * 计入一个连接
+     */
+    public void retain(Backend backend) {
+        backend.connections.incrementAndGet();
+    }
+
+    /**
+     * 连接关闭、连接失败或连接放回keep-alive连接池后释放select时计入的连接数
+     */
+    public void release(Backend backend) {
+        backend.connections.decrementAndGet();
+    }
+
+    public String getLanInfo() {
+        return lanInfo;
+    }
+
+    public List<Backend> getBackends() {
+        return Collections.unmodifiableList(backends);
+    }
+
+    public int size() {
+        return backends.size();
+    }
+
+    public long getLastUsedMillis() {
+        return lastUsedMillis;
+    }
+
+    public int getKeepAliveMaxIdle() {
+        return keepAliveMaxIdle;
+    }
+
+    public long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    public static class Backend {
+
+        private final String host;
+
+        private final int port;
+
+        /**
+         * Unix domain socket路径，TCP后端服务器为null
+         */
+        private final String path;
+
+        private final AtomicInteger connections = new AtomicInteger();
+
+        private int failures;
+
+        /**
+         * 熔断结束的时间，0表示没有熔断
+         */
+        private long openUntilMillis;
+
+        /**
+         * 熔断到期后是否已经放行了试探连接
+         */
+        private boolean trial;
+
+        /**
+         * 平滑后的连接耗时，-1表示还没有连接成功过
+         */
+        private long latencyMillis = -1;
+
+        /**
+         * 解析后的地址，配置为ip或unix路径时直接创建且不会过期
+         */
+        private volatile SocketAddress address;
+
+        private volatile long addressExpireMillis;
+
+        private final AtomicBoolean resolving = new AtomicBoolean();
+
+        /**
+         * 空闲的keep-alive连接，最近放回的在前
+         */
+        private final Deque<Channel> keepAliveConnections = new ConcurrentLinkedDeque<>();
+
+        private final AtomicInteger keepAliveCount = new AtomicInteger();
+
+        Backend(String path) {
+            this.host = null;
+            this.port = 0;
+            this.path = path;
+            address = new DomainSocketAddress(path);
+            addressExpireMillis = Long.MAX_VALUE;
+        }
+
+        Backend(String host, int port) {
+            this.host = host;
+            this.port = port;
+            this.path = null;
+            byte[] ip = NetUtil.createByteArrayFromIpAddressString(host);
+            if (ip != null) {
+                try {
+                    address = new InetSocketAddress(InetAddress.getByAddress(host, ip), port);
+                    addressExpireMillis = Long.MAX_VALUE;
+                } catch (UnknownHostException e) {
+                    // ip长度不正确，按域名解析
+                }
+            }
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public boolean isDomainSocket() {
+            return path != null;
+        }
+
+        public int getConnections() {
+            return connections.get();
+        }
+
+        public boolean isOpen() {
+            return openUntilMillis > 0;
+        }
+
+        /**
+         * @return 最近一次解析的地址，没有解析过时返回null
+         */
+        public SocketAddress getAddress() {
+            return address;
+        }
+
+        public boolean isAddressExpired(long now) {
+            return now >= addressExpireMillis;
+        }
+
+        void setAddress(SocketAddress address, long expireMillis) {
+            this.address = address;
+            this.addressExpireMillis = expireMillis;
+        }
+
+        /**
+         * 开始刷新地址，已经在刷新时返回false
+         */
+        boolean startResolving() {
+            return resolving.compareAndSet(false, true);
+        }
+
+        void finishResolving() {
+            resolving.set(false);
+        }
+
+        public int getKeepAliveConnections() {
+            return keepAliveCount.get();
+        }
+
+        void addKeepAliveConnection(Channel channel) {
+            keepAliveCount.incrementAndGet();
+            keepAliveConnections.offerFirst(channel);
+        }
+
+        Channel pollKeepAliveConnection() {
+            Channel channel = keepAliveConnections.pollFirst();
+            if (channel != null) {
+                keepAliveCount.decrementAndGet();
+            }
+            return channel;
+        }
+
+        void removeKeepAliveConnection(Channel channel) {
+            if (keepAliveConnections.remove(channel)) {
+                keepAliveCount.decrementAndGet();
+            }
+        }
+
+        private boolean isAvailable(long now) {
+            return openUntilMillis == 0 || (now >= openUntilMillis && !trial);
+        }
+
+        @Override
+        public String toString() {
+            return path != null ? UNIX_PREFIX + path : host + ":" + port;
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package com.hklh8.client;
+
+import com.hklh8.client.BackendGroup.Backend;
+import com.hklh8.client.listener.BackendConnectListener;
+import com.hklh8.client.utils.PropertiesValue;
+import com.hklh8.client.handlers.HttpKeepAliveHandler;
+import com.hklh8.common.protocol.Constants;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 后端服务器组管理，负责选择后端服务器建立连接及定时健康检查
+ * <p>
+ * HTTP映射的后端连接在用户连接断开后，如果处在请求与响应的边界，放回该服务器的keep-alive连接池给之后的用户连接复用。
+ * 后端服务器配置为域名时，解析结果缓存backend.dnsTtlSeconds秒，过期后继续使用原地址并在后台刷新，域名解析不在IO线程中进行。
+ * 配置为unix:路径的后端服务器使用epoll的Unix domain socket连接，不经过本机TCP协议栈
+ */
+public class BackendManager {
+
+    private static Logger logger = LoggerFactory.getLogger(BackendManager.class);
+
+    /**
+     * 超过该时间没有使用且没有连接的服务器组不再保留
+     */
+    private static final long GROUP_EXPIRE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final AttributeKey<BackendGroup> BACKEND_GROUP = AttributeKey.newInstance("backend_group");
+
+    private static final AttributeKey<Backend> BACKEND = AttributeKey.newInstance("backend");
+
+    private static final AttributeKey<KeepAliveState> KEEP_ALIVE_STATE = AttributeKey.newInstance("keep_alive_state");
+
+    private static final AttributeKey<Long> KEEP_ALIVE_SINCE = AttributeKey.newInstance("keep_alive_since");
+
+    private static Map<String, BackendGroup> groups = new ConcurrentHashMap<>();
+
+    /**
+     * 连接unix:路径后端服务器的Bootstrap，epoll不可用时为null
+     */
+    private static volatile Bootstrap domainSocketBootstrap;
+
+    private static final ExecutorService resolver = Executors.newFixedThreadPool(2, new DefaultThreadFactory("backend-resolver", true));
+
+    public static void setDomainSocketBootstrap(Bootstrap bootstrap) {
+        domainSocketBootstrap = bootstrap;
+    }
+
+    /**
+     * 每个客户端key使用各自的服务器组，连接数、熔断状态及keep-alive连接不在客户端之间共享
+     */
+    public static BackendGroup getGroup(String clientKey, String lanInfo) {
+        String groupKey = clientKey + "@" + lanInfo;
+        BackendGroup group = groups.get(groupKey);
+        if (group == null) {
+            group = groups.computeIfAbsent(groupKey, key -> new BackendGroup(lanInfo,
+                    PropertiesValue.getStringValue("backend.balance", BackendGroup.BALANCE_LEAST_CONNECTIONS),
+                    PropertiesValue.getIntValue("backend.failureThreshold", 3),
+                    TimeUnit.SECONDS.toMillis(PropertiesValue.getIntValue("backend.openSeconds", 10)),
+                    PropertiesValue.getIntValue("backend.keepAliveMaxIdle", 16),
+                    TimeUnit.SECONDS.toMillis(PropertiesValue.getIntValue("backend.keepAliveSeconds", 30))));
+        }
+        return group;
+    }
+
+    /**
+     * 连接组中的一个后端服务器，连接失败时换一个可用的服务器重试，没有可用的服务器（全部熔断）时立即失败
+     *
+     * @param http 是否为HTTP映射，HTTP映射优先使用该服务器空闲的keep-alive连接
+     */
+    public static void connect(Bootstrap bootstrap, BackendGroup group, boolean http, BackendConnectListener listener) {
+        connect(bootstrap, group, http, null, group.size(), listener);
+    }
+
+    private static void connect(Bootstrap bootstrap, BackendGroup group, boolean http, Backend exclude, int attempts,
+                                BackendConnectListener listener) {
+        Backend backend = group.select(exclude);
+        if (backend == null) {
+            listener.error(new ConnectException("没有可用的后端服务器: " + group.getLanInfo()));
+            return;
+        }
+
+        if (http) {
+            Channel channel = pollKeepAliveConnection(group, backend);
+            if (channel != null) {
+                logger.debug("复用后端服务器keep-alive连接, {}", channel);
+                listener.success(channel);
+                return;
+            }
+        }
+
+        resolve(backend, bootstrap.group().next(), address -> connect(bootstrap, group, http, backend, address, attempts, listener));
+    }
+
+    private static void connect(Bootstrap bootstrap, BackendGroup group, boolean http, Backend backend, SocketAddress address,
+                                int attempts, BackendConnectListener listener) {
+        Bootstrap channelBootstrap = forAddress(bootstrap, domainSocketBootstrap, address);
+        if (channelBootstrap == null) {
+            connectFailed(bootstrap, group, http, backend, attempts, listener, new ConnectException("epoll不可用，无法连接 " + backend));
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        channelBootstrap.connect(address).addListener((ChannelFutureListener) future -> {
+            if (future.isSuccess()) {
+                group.success(backend, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+                Channel channel = future.channel();
+                channel.attr(BACKEND_GROUP).set(group);
+                channel.attr(BACKEND).set(backend);
+                channel.attr(KEEP_ALIVE_STATE).set(KeepAliveState.IN_USE);
+                if (http) {
+                    channel.pipeline().addFirst(new HttpKeepAliveHandler());
+                }
+                channel.closeFuture().addListener(closeFuture -> {
+                    KeepAliveState state = channel.attr(KEEP_ALIVE_STATE).getAndSet(KeepAliveState.CLOSED);
+                    if (state == KeepAliveState.IN_USE) {
+                        group.release(backend);
+                    } else if (state == KeepAliveState.IDLE) {
+                        backend.removeKeepAliveConnection(channel);
+                    }
+                });
+                listener.success(channel);
+            } else {
+                connectFailed(bootstrap, group, http, backend, attempts, listener, future.cause());
+            }
+        });
+    }
+
+    private static void connectFailed(Bootstrap bootstrap, BackendGroup group, boolean http, Backend backend, int attempts,
+                                      BackendConnectListener listener, Throwable cause) {
+        group.release(backend);
+        group.failure(backend);
+        logger.warn("连接后端服务器 {} 失败, {}", backend, cause.getMessage());
+        if (attempts > 1) {
+            connect(bootstrap, group, http, backend, attempts - 1, listener);
+        } else {
+            listener.error(cause);
+        }
+    }
+
+    /**
+     * 用户连接断开后释放后端连接：HTTP映射的连接处在请求与响应的边界且可以保持时放回该服务器的连接池，否则写完已有数据后关闭
+     */
+    public static void releaseConnection(Channel channel) {
+        channel.eventLoop().execute(() -> {
+            HttpKeepAliveHandler handler = channel.pipeline().get(HttpKeepAliveHandler.class);
+            BackendGroup group = channel.attr(BACKEND_GROUP).get();
+            Backend backend = channel.attr(BACKEND).get();
+            if (handler == null || group == null || !channel.isActive() || !handler.isReusable()
+                    || backend.getKeepAliveConnections() >= group.getKeepAliveMaxIdle()) {
+                channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+
+            // 清除上一个用户连接的状态，空闲时读取数据以便及时发现后端关闭连接
+            Integer userId = channel.attr(Constants.USER_ID).getAndRemove();
+            ClientChannelManager clientChannelManager = ClientChannelManager.of(channel);
+            if (userId != null && clientChannelManager != null && clientChannelManager.getRealServerChannel(userId) == channel) {
+                clientChannelManager.removeRealServerChannel(userId);
+            }
+            channel.attr(Constants.NEXT_CHANNEL).remove();
+            channel.attr(Constants.STREAM_WINDOW).remove();
+            channel.attr(Constants.STREAM_COMPRESSOR).remove();
+            channel.config().setOption(ChannelOption.AUTO_READ, true);
+            channel.flush();
+
+            if (channel.attr(KEEP_ALIVE_STATE).compareAndSet(KeepAliveState.IN_USE, KeepAliveState.IDLE)) {
+                group.release(backend);
+                channel.attr(KEEP_ALIVE_SINCE).set(System.currentTimeMillis());
+                backend.addKeepAliveConnection(channel);
+            }
+        });
+    }
+
+    /**
+     * 后端连接是否为复用的keep-alive连接，新建立的连接没有放回过连接池
+     */
+    public static boolean isKeepAliveReused(Channel channel) {
+        return channel.attr(KEEP_ALIVE_SINCE).get() != null;
+    }
+
+    /**
+     * 取出最近放回的空闲keep-alive连接，空闲太久或已经关闭的连接直接关闭
+     */
+    private static Channel pollKeepAliveConnection(BackendGroup group, Backend backend) {
+        long keepAliveMillis = group.getKeepAliveMillis();
+        long now = System.currentTimeMillis();
+        Channel channel;
+        while ((channel = backend.pollKeepAliveConnection()) != null) {
+            if (!channel.attr(KEEP_ALIVE_STATE).compareAndSet(KeepAliveState.IDLE, KeepAliveState.IN_USE)) {
+                continue;
+            }
+
+            Long since = channel.attr(KEEP_ALIVE_SINCE).get();
+            if (channel.isActive() && since != null && now - since < keepAliveMillis) {
+                return channel;
+            }
+
+            // 关闭该连接时会释放select计入的连接数，本次连接重新计入
+            group.retain(backend);
+            channel.close();
+        }
+        return null;
+    }
+
+    /**
+     * 定时尝试连接各个后端服务器，熔断中的服务器恢复后尽快重新使用，不可用的服务器在用户连接到来之前熔断
+     *
+     * @param bootstrap 后端连接使用的Bootstrap
+     */
+    public static void startHealthCheck(Bootstrap bootstrap) {
+        int interval = PropertiesValue.getIntValue("backend.healthCheckSeconds", 10);
+        if (interval <= 0) {
+            return;
+        }
+
+        // 探测连接共用一个handler，ChannelInitializer可以添加到多个连接
+        ChannelInitializer<Channel> handler = new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+            }
+        };
+        Bootstrap probe = bootstrap.clone().handler(handler);
+        Bootstrap domainSocketProbe = domainSocketBootstrap == null ? null : domainSocketBootstrap.clone().handler(handler);
+        bootstrap.group().scheduleAtFixedRate(() -> healthCheck(probe, domainSocketProbe), interval, interval, TimeUnit.SECONDS);
+    }
+
+    private static void healthCheck(Bootstrap probe, Bootstrap domainSocketProbe) {
+        long now = System.currentTimeMillis();
+        Iterator<BackendGroup> ite = groups.values().iterator();
+        while (ite.hasNext()) {
+            BackendGroup group = ite.next();
+            if (now - group.getLastUsedMillis() > GROUP_EXPIRE_MILLIS && !hasConnections(group)) {
+                ite.remove();
+                continue;
+            }
+
+            for (Backend backend : group.getBackends()) {
+                resolve(backend, probe.group().next(), address -> {
+                    Bootstrap channelProbe = forAddress(probe, domainSocketProbe, address);
+                    if (channelProbe == null) {
+                        return;
+                    }
+
+                    long startTime = System.nanoTime();
+                    channelProbe.connect(address).addListener((ChannelFutureListener) future -> {
+                        if (future.isSuccess()) {
+                            if (backend.isOpen()) {
+                                logger.info("后端服务器 {} 恢复", backend);
+                            }
+                            group.success(backend, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+                            future.channel().close();
+                        } else {
+                            group.failure(backend);
+                        }
+                    });
+                });
+            }
+        }
+    }
+
+    /**
+     * 获取后端服务器的地址，已经解析过时直接回调，过期的在后台刷新；还没有解析过时在解析线程中解析后回到executor中回调。
+     * 解析失败时回调未解析的地址，连接会失败并计入该服务器的失败次数
+     */
+    private static void resolve(Backend backend, EventExecutor executor, Consumer<SocketAddress> callback) {
+        SocketAddress address = backend.getAddress();
+        if (address != null) {
+            if (backend.isAddressExpired(System.currentTimeMillis()) && backend.startResolving()) {
+                resolver.execute(() -> {
+                    try {
+                        lookup(backend);
+                    } finally {
+                        backend.finishResolving();
+                    }
+                });
+            }
+            callback.accept(address);
+            return;
+        }
+
+        resolver.execute(() -> {
+            SocketAddress resolved = lookup(backend);
+            executor.execute(() -> callback.accept(resolved));
+        });
+    }
+
+    private static SocketAddress lookup(Backend backend) {
+        try {
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(backend.getHost()), backend.getPort());
+            long ttl = TimeUnit.SECONDS.toMillis(PropertiesValue.getIntValue("backend.dnsTtlSeconds", 30));
+            backend.setAddress(address, System.currentTimeMillis() + ttl);
+            return address;
+        } catch (UnknownHostException e) {
+            logger.warn("解析后端服务器 {} 失败, {}", backend, e.getMessage());
+            // 保留之前解析的地址
+            SocketAddress address = backend.getAddress();
+            return address != null ? address : InetSocketAddress.createUnresolved(backend.getHost(), backend.getPort());
+        }
+    }
+
+    /**
+     * Unix domain socket地址使用domainSocket在bootstrap的EventLoop上连接
+     *
+     * @return epoll不可用、无法连接Unix domain socket时返回null
+     */
+    private static Bootstrap forAddress(Bootstrap bootstrap, Bootstrap domainSocket, SocketAddress address) {
+        if (!(address instanceof DomainSocketAddress)) {
+            return bootstrap;
+        }
+        return domainSocket == null ? null : domainSocket.clone(bootstrap.group());
+    }
+
+    /**
+     * 后端连接的状态，从使用中变为空闲或关闭时释放计入的连接数
+     */
+    private enum KeepAliveState {
+        IN_USE, IDLE, CLOSED
+    }
+
+    private static boolean hasConnections(BackendGroup group) {
+        for (Backend backend : group.getBackends()) {
+            if (backend.getConnections() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
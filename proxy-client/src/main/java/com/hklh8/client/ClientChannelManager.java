@@ -2,24 +2,37 @@ package com.hklh8.client;
 
 import com.hklh8.client.listener.ProxyChannelBorrowListener;
 import com.hklh8.client.utils.PropertiesValue;
+import com.hklh8.common.protocol.Capabilities;
+import com.hklh8.common.protocol.Compression;
 import com.hklh8.common.protocol.Constants;
+import com.hklh8.common.protocol.Handshake;
+import com.hklh8.common.protocol.LanMappings;
+import com.hklh8.common.protocol.ProxyMessage;
+import com.hklh8.common.protocol.ProxyMessageEncoder;
+import com.hklh8.common.utils.SessionTable;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
 import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 代理客户端与后端真实服务器连接管理
+ * <p>
+ * 每个客户端key一个实例，各自的控制连接、数据连接池、隧道连接及后端连接互相隔离；EventLoop与后端服务器组由同一进程内的所有客户端key共用
  */
 public class ClientChannelManager {
 
@@ -29,91 +42,479 @@ public class ClientChannelManager {
 
     private static final AttributeKey<Boolean> CLIENT_CHANNEL_WRITEABLE = AttributeKey.newInstance("client_channel_writeable");
 
-    private static final int MAX_POOL_SIZE = 100;
+    /**
+     * 后端连接所属的客户端
+     */
+    private static final AttributeKey<ClientChannelManager> CLIENT_CHANNEL_MANAGER = AttributeKey.newInstance("client_channel_manager");
 
-    private static Map<String, Channel> realServerChannels = new ConcurrentHashMap<>();
+    /**
+     * 默认在代理服务器登记的空闲数据连接数
+     */
+    public static final int DEFAULT_IDLE_DATA_CHANNELS = 2;
 
-    private static ConcurrentLinkedQueue<Channel> proxyChannelPool = new ConcurrentLinkedQueue<>();
+    private final String clientKey;
 
-    private static volatile Channel cmdChannel;
+    private SessionTable<Channel> realServerChannels = new SessionTable<>();
 
-    public static void borrowProxyChanel(Bootstrap bootstrap, final ProxyChannelBorrowListener borrowListener) {
-        Channel channel = proxyChannelPool.poll();
-        if (channel != null) {
-            borrowListener.success(channel);
+    private final ProxyChannelPool proxyChannelPool;
+
+    private final StatsReporter statsReporter;
+
+    /**
+     * 配置的空闲数据连接数
+     */
+    private final int idleDataChannelCount;
+
+    /**
+     * 多路复用模式下除控制连接外的隧道连接
+     */
+    private List<Channel> muxLanes = new CopyOnWriteArrayList<>();
+
+    /**
+     * 已经在代理服务器登记、等待用户连接的空闲数据连接
+     */
+    private Set<Channel> idleDataChannels = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 正在建立、建立后登记为空闲的数据连接数
+     */
+    private AtomicInteger idleDataChannelsOpening = new AtomicInteger();
+
+    private volatile Channel cmdChannel;
+
+    /**
+     * 平滑下线时服务器确认后、最后一次收到连接消息后需要保持安静的毫秒数，覆盖确认前已在途的连接消息
+     */
+    private static final long DRAIN_QUIET_MILLIS = 1000;
+
+    /**
+     * 服务器确认平滑下线的时间，0表示还没有确认
+     */
+    private volatile long drainAckNanos;
+
+    /**
+     * 最近一次收到连接消息的时间，只在平滑下线时使用
+     */
+    private volatile long lastConnectNanos;
+
+    /**
+     * 控制连接所在的代理服务器，数据连接与隧道连接都连接到该服务器
+     */
+    private volatile ProxyServerList.ProxyServer proxyServer;
+
+    /**
+     * 认证时与代理服务器协商的结果，包括协议能力及代理服务器分配的tunnelId，没有协商时为null
+     */
+    private volatile Handshake handshake;
+
+    /**
+     * 代理服务器下发的映射编号与后端服务器信息
+     */
+    private volatile LanMappings lanMappings = LanMappings.EMPTY;
+
+    /**
+     * 上一次下发的映射表，配置更新时按旧映射编号路由的连接消息可能在新映射表之后到达，当前映射表中没有的编号在这里查找
+     */
+    private volatile LanMappings previousLanMappings = LanMappings.EMPTY;
+
+    public ClientChannelManager(String clientKey) {
+        this.clientKey = clientKey;
+        this.proxyChannelPool = new ProxyChannelPool(this);
+        this.statsReporter = new StatsReporter(this);
+        this.idleDataChannelCount = PropertiesValue.getIntValue("dataChannel.idle", DEFAULT_IDLE_DATA_CHANNELS);
+    }
+
+    /**
+     * 获取后端连接所属的客户端，没有绑定过用户连接时返回null
+     */
+    public static ClientChannelManager of(Channel realServerChannel) {
+        return realServerChannel.attr(CLIENT_CHANNEL_MANAGER).get();
+    }
+
+    public String getClientKey() {
+        return clientKey;
+    }
+
+    public void borrowProxyChanel(Bootstrap bootstrap, final ProxyChannelBorrowListener borrowListener) {
+        proxyChannelPool.borrow(bootstrap, bootstrap.group().next(), borrowListener);
+    }
+
+    /**
+     * 优先借用eventLoop上的数据连接，后端连接在返回的EventLoop上建立，两个连接之间转发数据不需要跨线程
+     *
+     * @return 借出的连接所在的EventLoop
+     */
+    public EventLoop borrowProxyChanel(Bootstrap bootstrap, EventLoop eventLoop, final ProxyChannelBorrowListener borrowListener) {
+        return proxyChannelPool.borrow(bootstrap, eventLoop, borrowListener);
+    }
+
+    public void returnProxyChanel(Channel proxyChanel) {
+        if (proxyChanel.isActive() && idleDataChannels.size() < getIdleDataChannelCount()) {
+            // 用完的数据连接优先重新登记为服务器端的空闲数据连接
+            registerIdleDataChannel(proxyChanel);
+            return;
+        }
+
+        proxyChannelPool.release(proxyChanel);
+    }
+
+    public void removeProxyChanel(Channel proxyChanel) {
+        proxyChannelPool.remove(proxyChanel);
+        idleDataChannels.remove(proxyChanel);
+    }
+
+    /**
+     * 认证成功后预热数据连接池
+     */
+    public void warmUpProxyChannelPool(Bootstrap bootstrap) {
+        proxyChannelPool.warmUp(bootstrap);
+    }
+
+    /**
+     * 控制连接断开后关闭数据连接池中的空闲连接
+     */
+    public void clearProxyChannelPool() {
+        proxyChannelPool.clear();
+    }
+
+    public ProxyChannelPool getProxyChannelPool() {
+        return proxyChannelPool;
+    }
+
+    public StatsReporter getStatsReporter() {
+        return statsReporter;
+    }
+
+    /**
+     * 需要保持的空闲数据连接数，没有协商预建数据连接时为0
+     */
+    public int getIdleDataChannelCount() {
+        if (cmdChannel == null || !hasCapability(Capabilities.DATA_CHANNEL_POOL)) {
+            return 0;
+        }
+        return idleDataChannelCount;
+    }
+
+    /**
+     * 补足在代理服务器登记的空闲数据连接
+     */
+    public void fillIdleDataChannels(Bootstrap bootstrap) {
+        int count = getIdleDataChannelCount();
+        while (true) {
+            int opening = idleDataChannelsOpening.get();
+            if (idleDataChannels.size() + opening >= count) {
+                return;
+            }
+            if (!idleDataChannelsOpening.compareAndSet(opening, opening + 1)) {
+                continue;
+            }
+
+            borrowProxyChanel(bootstrap, new ProxyChannelBorrowListener() {
+                @Override
+                public void success(Channel channel) {
+                    idleDataChannelsOpening.decrementAndGet();
+                    registerIdleDataChannel(channel);
+                }
+
+                @Override
+                public void error(Throwable cause) {
+                    idleDataChannelsOpening.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    /**
+     * 在代理服务器登记空闲数据连接，服务器有用户连接时直接在该连接上发送连接消息
+     */
+    private void registerIdleDataChannel(Channel channel) {
+        if (getIdleDataChannelCount() == 0) {
+            channel.close();
             return;
         }
 
-        String proxyServerHost = PropertiesValue.getStringValue("proxy.server.host");
-        int proxyServerPort = PropertiesValue.getIntValue("proxy.server.port", 4900);
+        channel.config().setOption(ChannelOption.AUTO_READ, true);
+        channel.attr(Constants.NEXT_CHANNEL).remove();
+        ProxyMessageEncoder.setCompact(channel, true);
+        ProxyMessageEncoder.setMaxFrameLength(channel, getMaxFrameLength());
+        idleDataChannels.add(channel);
+
+        ProxyMessage proxyMessage = new ProxyMessage();
+        proxyMessage.setType(ProxyMessage.TYPE_IDLE_DATA_CHANNEL);
+        proxyMessage.setData(ByteBuffer.allocate(4).putInt(getTunnelId()).array());
+        channel.writeAndFlush(proxyMessage);
+    }
 
-        bootstrap.connect(proxyServerHost, proxyServerPort).addListener((ChannelFutureListener) future -> {
-            if (future.isSuccess()) {
-                borrowListener.success(future.channel());
-            } else {
-                logger.warn("连接代理服务器失败", future.cause());
-                borrowListener.error(future.cause());
+    /**
+     * 代理服务器在空闲数据连接上发送了连接消息，该连接不再空闲
+     *
+     * @return 是否为登记过的空闲数据连接
+     */
+    public boolean takeIdleDataChannel(Channel channel) {
+        return idleDataChannels.remove(channel);
+    }
+
+    /**
+     * 多路复用模式下建立额外的隧道连接，隧道连接使用streamId为0的TYPE_CONNECT消息加入控制连接的tunnel
+     */
+    public void openMuxLane(Bootstrap bootstrap) {
+        connectProxyServer(bootstrap).addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                logger.warn("建立多路复用隧道连接失败", future.cause());
+                return;
+            }
+
+            Channel lane = future.channel();
+            if (cmdChannel == null || !isMultiplex()) {
+                lane.close();
+                return;
             }
+
+            lane.attr(Constants.CAPABILITIES).set(handshake.getCapabilities());
+            lane.attr(Constants.HANDSHAKE).set(handshake);
+            ProxyMessageEncoder.setCompact(lane, true);
+            ProxyMessageEncoder.setMaxFrameLength(lane, handshake.getMaxFrameLength());
+            muxLanes.add(lane);
+
+            ProxyMessage proxyMessage = new ProxyMessage();
+            proxyMessage.setType(ProxyMessage.TYPE_CONNECT);
+            proxyMessage.setData(ByteBuffer.allocate(4).putInt(getTunnelId()).array());
+            lane.writeAndFlush(proxyMessage);
+            logger.info("建立多路复用隧道连接, {}", lane);
         });
     }
 
-    public static void returnProxyChanel(Channel proxyChanel) {
-        if (proxyChannelPool.size() > MAX_POOL_SIZE) {
-            proxyChanel.close();
-        } else {
-            proxyChanel.config().setOption(ChannelOption.AUTO_READ, true);
-            proxyChanel.attr(Constants.NEXT_CHANNEL).remove();
-            proxyChannelPool.offer(proxyChanel);
-            logger.debug("从连接池返回代理服务器连接, channel 为 {}, 连接池大小为 {} ", proxyChanel, proxyChannelPool.size());
+    /**
+     * 隧道连接断开，关闭在该隧道上传输的后端连接
+     *
+     * @return 是否为多路复用隧道连接
+     */
+    public boolean removeMuxLane(Channel lane) {
+        if (!muxLanes.remove(lane)) {
+            return false;
         }
+
+        realServerChannels.forEach((userId, realServerChannel) -> {
+            if (realServerChannel.attr(Constants.NEXT_CHANNEL).get() == lane) {
+                realServerChannels.remove(userId, realServerChannel);
+                realServerChannel.close();
+            }
+        });
+        return true;
     }
 
-    public static void removeProxyChanel(Channel proxyChanel) {
-        proxyChannelPool.remove(proxyChanel);
+    /**
+     * 控制连接断开时关闭全部隧道连接
+     */
+    public void closeMuxLanes() {
+        for (Channel lane : muxLanes) {
+            lane.close();
+        }
+        muxLanes.clear();
+    }
+
+    /**
+     * 连接是否为多路复用连接（控制连接或隧道连接）
+     */
+    public boolean isMultiplex(Channel channel) {
+        Integer capabilities = channel.attr(Constants.CAPABILITIES).get();
+        return capabilities != null && (capabilities & Capabilities.MULTIPLEX) != 0;
     }
 
-    public static void setCmdChannel(Channel cmdChannel) {
-        ClientChannelManager.cmdChannel = cmdChannel;
+    public void setCmdChannel(Channel cmdChannel) {
+        this.cmdChannel = cmdChannel;
     }
 
-    public static Channel getCmdChannel() {
+    public Channel getCmdChannel() {
         return cmdChannel;
     }
 
-    public static void setRealServerChannelUserId(Channel realServerChannel, String userId) {
+    public void setProxyServer(ProxyServerList.ProxyServer proxyServer) {
+        this.proxyServer = proxyServer;
+    }
+
+    public ProxyServerList.ProxyServer getProxyServer() {
+        return proxyServer;
+    }
+
+    /**
+     * 连接控制连接所在的代理服务器
+     */
+    public ChannelFuture connectProxyServer(Bootstrap bootstrap) {
+        return bootstrap.connect(proxyServer.getHost(), proxyServer.getPort());
+    }
+
+    /**
+     * 保存认证结果，控制连接断开重连后重新协商
+     */
+    public void setAuthResult(Handshake handshake) {
+        this.handshake = handshake;
+    }
+
+    public void resetAuthResult() {
+        handshake = null;
+        lanMappings = LanMappings.EMPTY;
+        previousLanMappings = LanMappings.EMPTY;
+    }
+
+    public Handshake getHandshake() {
+        return handshake;
+    }
+
+    /**
+     * 协商的最大帧长度，旧版本服务器没有协商时返回0
+     */
+    public int getMaxFrameLength() {
+        Handshake handshake = this.handshake;
+        return handshake == null ? 0 : handshake.getMaxFrameLength();
+    }
+
+    public boolean isCompact() {
+        return hasCapability(Capabilities.FRAME_COMPACT);
+    }
+
+    public boolean isMultiplex() {
+        return hasCapability(Capabilities.MULTIPLEX);
+    }
+
+    public boolean isCompression() {
+        return hasCapability(Capabilities.COMPRESSION);
+    }
+
+    /**
+     * 是否协商了运行统计上报
+     */
+    public boolean isStats() {
+        return hasCapability(Capabilities.STATS);
+    }
+
+    /**
+     * 是否协商了平滑下线
+     */
+    public boolean isDrain() {
+        return hasCapability(Capabilities.DRAIN);
+    }
+
+    /**
+     * 请求服务器不再分配新的用户连接，没有协商平滑下线或控制连接已断开时返回false
+     */
+    public boolean drain() {
+        Channel cmdChannel = this.cmdChannel;
+        if (!isDrain() || cmdChannel == null || !cmdChannel.isActive()) {
+            return false;
+        }
+
+        ProxyMessage proxyMessage = new ProxyMessage();
+        proxyMessage.setType(ProxyMessage.TYPE_DRAIN);
+        cmdChannel.writeAndFlush(proxyMessage);
+        return true;
+    }
+
+    public void drainAck() {
+        drainAckNanos = System.nanoTime();
+    }
+
+    public void connectReceived() {
+        if (drainAckNanos != 0) {
+            lastConnectNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * 服务器已确认平滑下线，已有的用户连接全部断开，且一段时间内没有再收到连接消息
+     */
+    public boolean isDrained() {
+        long ackNanos = drainAckNanos;
+        if (ackNanos == 0 || !realServerChannels.isEmpty()) {
+            return false;
+        }
+
+        long quietSince = Math.max(ackNanos, lastConnectNanos);
+        return System.nanoTime() - quietSince >= TimeUnit.MILLISECONDS.toNanos(DRAIN_QUIET_MILLIS);
+    }
+
+    private boolean hasCapability(int capability) {
+        Handshake handshake = this.handshake;
+        return handshake != null && handshake.hasCapability(capability);
+    }
+
+    public int getTunnelId() {
+        Handshake handshake = this.handshake;
+        return handshake == null ? 0 : handshake.getTunnelId();
+    }
+
+    /**
+     * 更新映射表，保留上一次的映射表用于查找还在途中的旧映射编号，只在控制连接的EventLoop中调用
+     */
+    public void setLanMappings(LanMappings lanMappings) {
+        this.previousLanMappings = this.lanMappings;
+        this.lanMappings = lanMappings;
+    }
+
+    /**
+     * 获取包含该映射编号的映射表，优先使用当前映射表
+     */
+    private LanMappings getLanMappings(int mappingId) {
+        LanMappings lanMappings = this.lanMappings;
+        return lanMappings.get(mappingId) != null ? lanMappings : previousLanMappings;
+    }
+
+    public String getLanInfo(int mappingId) {
+        return getLanMappings(mappingId).get(mappingId);
+    }
+
+    /**
+     * 获取映射协议，见 {@link LanMappings#PROTOCOL_HTTP}
+     */
+    public byte getProtocol(int mappingId) {
+        return getLanMappings(mappingId).getProtocol(mappingId);
+    }
+
+    /**
+     * 获取映射的传输压缩算法，没有协商传输压缩时不压缩
+     */
+    public byte getCompression(int mappingId) {
+        Handshake handshake = this.handshake;
+        byte compression = getLanMappings(mappingId).getCompression(mappingId);
+        if (handshake == null || !handshake.hasCapability(Capabilities.COMPRESSION) || !handshake.supportsCompression(compression)) {
+            return Compression.NONE;
+        }
+        return compression;
+    }
+
+    public static void setRealServerChannelUserId(Channel realServerChannel, int userId) {
         realServerChannel.attr(Constants.USER_ID).set(userId);
     }
 
-    public static String getRealServerChannelUserId(Channel realServerChannel) {
+    public static Integer getRealServerChannelUserId(Channel realServerChannel) {
         return realServerChannel.attr(Constants.USER_ID).get();
     }
 
-    public static Channel getRealServerChannel(String userId) {
+    public Channel getRealServerChannel(int userId) {
         return realServerChannels.get(userId);
     }
 
-    public static void addRealServerChannel(String userId, Channel realServerChannel) {
+    public void addRealServerChannel(int userId, Channel realServerChannel) {
+        realServerChannel.attr(CLIENT_CHANNEL_MANAGER).set(this);
         realServerChannels.put(userId, realServerChannel);
     }
 
-    public static Channel removeRealServerChannel(String userId) {
+    public Channel removeRealServerChannel(int userId) {
         return realServerChannels.remove(userId);
     }
 
-    public static boolean isRealServerReadable(Channel realServerChannel) {
+    public boolean isRealServerReadable(Channel realServerChannel) {
         return realServerChannel.attr(CLIENT_CHANNEL_WRITEABLE).get() && realServerChannel.attr(USER_CHANNEL_WRITEABLE).get();
     }
 
-    public static void clearRealServerChannels() {
-        logger.warn("channel关闭, 清空目标服务器channels");
+    public void clearRealServerChannels() {
+        logger.warn("channel关闭, 清空目标服务器channels, clientKey {}", clientKey);
 
-        Iterator<Entry<String, Channel>> ite = realServerChannels.entrySet().iterator();
-        while (ite.hasNext()) {
-            Channel realServerChannel = ite.next().getValue();
+        realServerChannels.forEach((userId, realServerChannel) -> {
             if (realServerChannel.isActive()) {
                 realServerChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
             }
-        }
+        });
         realServerChannels.clear();
     }
 }
@@ -0,0 +1,299 @@
+package com.hklh8.client;
+
+import com.hklh8.client.listener.ProxyChannelBorrowListener;
+import com.hklh8.client.utils.PropertiesValue;
+import com.hklh8.common.protocol.Constants;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 代理服务器数据连接池
+ * <p>
+ * 认证成功后预先建立minIdle条连接；空闲连接低于目标数量时异步补充，目标数量根据最近的用户连接到达速率在minIdle与maxIdle之间调整。
+ * 借出最近归还的连接，空闲超过idleTimeout且超出目标数量的连接从最久未用的一端关闭；借出前检查连接是否可用。
+ * 空闲连接按所在的EventLoop分区存放，优先借出与调用方指定EventLoop相同的连接，后端连接也在该EventLoop上建立，转发数据不需要跨线程
+ */
+public class ProxyChannelPool {
+
+    private static Logger logger = LoggerFactory.getLogger(ProxyChannelPool.class);
+
+    private static final AttributeKey<Long> IDLE_SINCE = AttributeKey.newInstance("idle_since");
+
+    /**
+     * 定时维护（统计到达速率、关闭空闲连接、补充连接）的间隔秒数
+     */
+    private static final long MAINTAIN_INTERVAL_SECONDS = 1;
+
+    /**
+     * 输出连接池统计的间隔秒数
+     */
+    private static final long REPORT_INTERVAL_SECONDS = 60;
+
+    /**
+     * 到达速率的平滑系数，越大越偏向最近一秒
+     */
+    private static final double RATE_ALPHA = 0.3;
+
+    private final ConcurrentMap<EventLoop, Deque<Channel>> partitions = new ConcurrentHashMap<>();
+
+    /**
+     * 全部分区的空闲连接数，ConcurrentLinkedDeque.size()需要遍历整个队列
+     */
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * 正在为补充连接池建立的连接数
+     */
+    private final AtomicInteger opening = new AtomicInteger();
+
+    /**
+     * 本次维护周期内借用连接的次数
+     */
+    private final AtomicInteger arrivals = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile int minIdle;
+
+    private volatile int maxIdle = 100;
+
+    private volatile long idleTimeoutMillis;
+
+    /**
+     * 当前的目标空闲连接数
+     */
+    private volatile int target;
+
+    /**
+     * 平滑后的每秒到达数
+     */
+    private volatile double arrivalRate;
+
+    private volatile Bootstrap bootstrap;
+
+    private ScheduledFuture<?> maintainTask;
+
+    private final ClientChannelManager clientChannelManager;
+
+    private long reportTicks;
+
+    public ProxyChannelPool(ClientChannelManager clientChannelManager) {
+        this.clientChannelManager = clientChannelManager;
+    }
+
+    /**
+     * 认证成功后开始维护连接池并预先建立minIdle条连接
+     */
+    public synchronized void warmUp(Bootstrap bootstrap) {
+        minIdle = PropertiesValue.getIntValue("pool.minIdle", 2);
+        maxIdle = Math.max(minIdle, PropertiesValue.getIntValue("pool.maxIdle", 100));
+        idleTimeoutMillis = TimeUnit.SECONDS.toMillis(PropertiesValue.getIntValue("pool.idleTimeoutSeconds", 60));
+        target = Math.max(target, minIdle);
+        this.bootstrap = bootstrap;
+        if (maintainTask == null) {
+            maintainTask = bootstrap.group().scheduleAtFixedRate(this::maintain, MAINTAIN_INTERVAL_SECONDS, MAINTAIN_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+        fill();
+    }
+
+    /**
+     * 控制连接断开后停止补充，关闭全部空闲连接
+     */
+    public void clear() {
+        bootstrap = null;
+        for (Deque<Channel> partition : partitions.values()) {
+            Channel channel;
+            while ((channel = partition.pollFirst()) != null) {
+                idleCount.decrementAndGet();
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * 借用连接，优先使用eventLoop分区中的空闲连接，其次是其他分区，都没有时在eventLoop上新建连接
+     *
+     * @return 借出的连接所在的EventLoop
+     */
+    public EventLoop borrow(Bootstrap bootstrap, EventLoop eventLoop, ProxyChannelBorrowListener borrowListener) {
+        arrivals.incrementAndGet();
+        Channel channel = poll(partition(eventLoop));
+        if (channel == null) {
+            for (Deque<Channel> partition : partitions.values()) {
+                if ((channel = poll(partition)) != null) {
+                    break;
+                }
+            }
+        }
+
+        if (channel != null) {
+            hits.incrementAndGet();
+            borrowListener.success(channel);
+            fill();
+            return channel.eventLoop();
+        }
+
+        misses.incrementAndGet();
+        connect(bootstrap.clone(eventLoop), borrowListener);
+        fill();
+        return eventLoop;
+    }
+
+    public void release(Channel channel) {
+        if (!channel.isActive()) {
+            return;
+        }
+
+        if (idleCount.get() >= maxIdle) {
+            channel.close();
+            return;
+        }
+
+        channel.config().setOption(ChannelOption.AUTO_READ, true);
+        channel.attr(Constants.NEXT_CHANNEL).remove();
+        channel.attr(IDLE_SINCE).set(System.currentTimeMillis());
+        partition(channel.eventLoop()).offerFirst(channel);
+        idleCount.incrementAndGet();
+        logger.debug("从连接池返回代理服务器连接, channel 为 {}, 连接池大小为 {} ", channel, idleCount.get());
+    }
+
+    public void remove(Channel channel) {
+        Deque<Channel> partition = partitions.get(channel.eventLoop());
+        if (partition != null && partition.remove(channel)) {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    public int getTarget() {
+        return target;
+    }
+
+    private Deque<Channel> partition(EventLoop eventLoop) {
+        Deque<Channel> partition = partitions.get(eventLoop);
+        if (partition == null) {
+            partition = partitions.computeIfAbsent(eventLoop, key -> new ConcurrentLinkedDeque<>());
+        }
+        return partition;
+    }
+
+    /**
+     * 取出分区中最近归还的可用连接，不可用的连接直接关闭
+     */
+    private Channel poll(Deque<Channel> partition) {
+        Channel channel;
+        while ((channel = partition.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            if (channel.isActive() && channel.isWritable()) {
+                return channel;
+            }
+            channel.close();
+        }
+        return null;
+    }
+
+    private void connect(Bootstrap bootstrap, ProxyChannelBorrowListener borrowListener) {
+        clientChannelManager.connectProxyServer(bootstrap).addListener((ChannelFutureListener) future -> {
+            if (future.isSuccess()) {
+                borrowListener.success(future.channel());
+            } else {
+                logger.warn("连接代理服务器失败", future.cause());
+                borrowListener.error(future.cause());
+            }
+        });
+    }
+
+    /**
+     * 空闲连接低于目标数量时异步补充，新连接依次分配到各个EventLoop
+     */
+    private void fill() {
+        Bootstrap bootstrap = this.bootstrap;
+        if (bootstrap == null) {
+            return;
+        }
+
+        while (true) {
+            int count = opening.get();
+            if (idleCount.get() + count >= target) {
+                return;
+            }
+            if (!opening.compareAndSet(count, count + 1)) {
+                continue;
+            }
+
+            connect(bootstrap, new ProxyChannelBorrowListener() {
+                @Override
+                public void success(Channel channel) {
+                    opening.decrementAndGet();
+                    if (ProxyChannelPool.this.bootstrap == null) {
+                        channel.close();
+                    } else {
+                        release(channel);
+                    }
+                }
+
+                @Override
+                public void error(Throwable cause) {
+                    opening.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    private void maintain() {
+        double rate = RATE_ALPHA * arrivals.getAndSet(0) / MAINTAIN_INTERVAL_SECONDS + (1 - RATE_ALPHA) * arrivalRate;
+        arrivalRate = rate;
+        // 保留约一秒到达量的空闲连接，突发的用户连接不需要等待新建连接
+        target = Math.min(maxIdle, Math.max(minIdle, (int) Math.ceil(rate)));
+
+        long now = System.currentTimeMillis();
+        for (Deque<Channel> partition : partitions.values()) {
+            Channel channel;
+            while (idleCount.get() > target && (channel = partition.peekLast()) != null) {
+                Long idleSince = channel.attr(IDLE_SINCE).get();
+                if (channel.isActive() && idleSince != null && now - idleSince < idleTimeoutMillis) {
+                    break;
+                }
+                if (partition.removeLastOccurrence(channel)) {
+                    idleCount.decrementAndGet();
+                    channel.close();
+                }
+            }
+        }
+
+        fill();
+
+        if (++reportTicks % (REPORT_INTERVAL_SECONDS / MAINTAIN_INTERVAL_SECONDS) == 0 && hits.get() + misses.get() > 0) {
+            logger.info("数据连接池 {}: 命中 {}, 未命中 {}, 空闲 {}, 目标 {}, 到达速率 {}/s", clientChannelManager.getClientKey(), hits.get(),
+                    misses.get(), idleCount.get(), target, String.format("%.2f", rate));
+        }
+    }
+}
@@ -1,28 +1,35 @@
 package com.hklh8.client;
 
 import com.hklh8.client.handlers.ClientChannelHandler;
-import com.hklh8.client.handlers.RealServerChannelHandler;
 import com.hklh8.client.listener.ChannelStatusListener;
 import com.hklh8.client.utils.PropertiesValue;
+import com.hklh8.common.protocol.BatchFlushHandler;
+import com.hklh8.common.protocol.Capabilities;
+import com.hklh8.common.protocol.Handshake;
 import com.hklh8.common.protocol.IdleCheckHandler;
 import com.hklh8.common.protocol.ProxyMessage;
 import com.hklh8.common.protocol.ProxyMessageDecoder;
 import com.hklh8.common.protocol.ProxyMessageEncoder;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.ssl.SslHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * 一个客户端key的代理客户端，同一进程内的多个客户端共用ProxyClientGroup的EventLoop与后端连接Bootstrap
+ */
 public class ProxyClient implements ChannelStatusListener {
 
     private static Logger logger = LoggerFactory.getLogger(ProxyClient.class);
@@ -42,7 +49,11 @@ public class ProxyClient implements ChannelStatusListener {
     //长度调节值，在总长被定义为包含包头长度时，修正信息长度，可以为负数
     private static final int LENGTH_ADJUSTMENT = 0;
 
-    private NioEventLoopGroup workerGroup;
+    private final String clientKey;
+
+    private final ClientChannelManager clientChannelManager;
+
+    private EventLoopGroup workerGroup;
 
     private Bootstrap bootstrap;
 
@@ -50,36 +61,85 @@ public class ProxyClient implements ChannelStatusListener {
 
     private SSLContext sslContext;
 
-    private long sleepTimeMill = 1000;
+    private final boolean sslEnable;
 
-    public ProxyClient() {
-        workerGroup = new NioEventLoopGroup();
-        realServerBootstrap = new Bootstrap();
-        realServerBootstrap.group(workerGroup);
-        realServerBootstrap.channel(NioSocketChannel.class);
-        realServerBootstrap.handler(new ChannelInitializer<SocketChannel>() {
-            @Override
-            public void initChannel(SocketChannel ch) throws Exception {
-                ch.pipeline().addLast(new RealServerChannelHandler());
-            }
-        });
+    /**
+     * 重连等待时间的下限与上限
+     */
+    private static final long RECONNECT_BASE_DELAY_MILLIS = 1000;
+
+    private static final long RECONNECT_MAX_DELAY_MILLIS = 60000;
+
+    /**
+     * 旧版本服务器不返回认证结果，控制连接建立后保持这段时间没有断开也视为连接成功
+     */
+    private static final long AUTH_GRACE_MILLIS = 5000;
+
+    private ProxyServerList proxyServers;
+
+    /**
+     * 上一次重连等待时间，连接失败、控制连接断开及认证成功分别在不同的线程中读写
+     */
+    private volatile long reconnectDelayMillis = RECONNECT_BASE_DELAY_MILLIS;
+
+    /**
+     * 当前控制连接的代理服务器及建立连接的耗时，认证完成后才计入服务器的健康状态
+     */
+    private volatile ProxyServerList.ProxyServer connectedServer;
+
+    private volatile long connectLatencyMillis;
+
+    /**
+     * 当前控制连接是否已经认证完成
+     */
+    private volatile boolean authenticated;
+
+    private volatile boolean stopped;
+
+    /**
+     * 合并flush时待发送字节数上限
+     */
+    private int flushMaxPendingBytes;
+
+    /**
+     * 合并flush时最多延迟的微秒数
+     */
+    private long flushMaxDelayMicros;
+
+    /**
+     * 每个传输帧携带的最大数据长度
+     */
+    private int maxFragmentLength;
+
+    public ProxyClient(String clientKey, EventLoopGroup workerGroup, Class<? extends SocketChannel> socketChannelClass,
+                       Bootstrap realServerBootstrap) {
+        this.clientKey = clientKey;
+        this.clientChannelManager = new ClientChannelManager(clientKey);
+        this.workerGroup = workerGroup;
+        this.realServerBootstrap = realServerBootstrap;
+        flushMaxPendingBytes = PropertiesValue.getIntValue("flush.maxPendingBytes", BatchFlushHandler.DEFAULT_MAX_PENDING_BYTES);
+        flushMaxDelayMicros = PropertiesValue.getIntValue("flush.maxDelayMicros", 0);
+        maxFragmentLength = PropertiesValue.getIntValue("frame.maxFragmentLength", ProxyMessageEncoder.DEFAULT_MAX_FRAGMENT_LENGTH);
+        sslEnable = PropertiesValue.getBooleanValue("ssl.enable", false);
+        proxyServers = new ProxyServerList(PropertiesValue.getStringValue("proxy.server.host"), PropertiesValue.getIntValue("proxy.server.port", 4900));
 
         bootstrap = new Bootstrap();
         bootstrap.group(workerGroup);
-        bootstrap.channel(NioSocketChannel.class);
+        bootstrap.channel(socketChannelClass);
         bootstrap.handler(new ChannelInitializer<SocketChannel>() {
             @Override
             public void initChannel(SocketChannel ch) throws Exception {
-                if (PropertiesValue.getBooleanValue("ssl.enable", false)) {
+                if (sslEnable) {
                     if (sslContext == null) {
                         sslContext = SslContextCreator.createSSLContext();
                     }
                     ch.pipeline().addLast(createSslHandler(sslContext));
                 }
                 ch.pipeline().addLast(new ProxyMessageDecoder(MAX_FRAME_LENGTH, LENGTH_FIELD_OFFSET, LENGTH_FIELD_LENGTH, LENGTH_ADJUSTMENT, INITIAL_BYTES_TO_STRIP));
-                ch.pipeline().addLast(new ProxyMessageEncoder());
+                ch.pipeline().addLast(new ProxyMessageEncoder(maxFragmentLength));
                 ch.pipeline().addLast(new IdleCheckHandler(IdleCheckHandler.READ_IDLE_TIME, IdleCheckHandler.WRITE_IDLE_TIME - 10, 0));
-                ch.pipeline().addLast(new ClientChannelHandler(realServerBootstrap, bootstrap, ProxyClient.this));
+                ch.pipeline().addLast(new BatchFlushHandler(flushMaxPendingBytes, flushMaxDelayMicros));
+                ch.pipeline().addLast(new ClientChannelHandler(realServerBootstrap, bootstrap, ProxyClient.this, clientChannelManager));
             }
         });
     }
@@ -95,51 +155,149 @@ public class ProxyClient implements ChannelStatusListener {
     }
 
     private void connectProxyServer() {
+        if (stopped) {
+            return;
+        }
 
-        String proxyServerHost = PropertiesValue.getStringValue("proxy.server.host");
-        int proxyServerPort = PropertiesValue.getIntValue("proxy.server.port", 4900);
+        ProxyServerList.ProxyServer proxyServer = proxyServers.select();
+        long startTime = System.nanoTime();
 
-        bootstrap.connect(proxyServerHost, proxyServerPort).addListener((ChannelFutureListener) future -> {
+        bootstrap.connect(proxyServer.getHost(), proxyServer.getPort()).addListener((ChannelFutureListener) future -> {
             if (future.isSuccess()) {
+                connectedServer = proxyServer;
+                connectLatencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+                authenticated = false;
                 // 连接成功，向服务器发送客户端认证信息（clientKey）
-                ClientChannelManager.setCmdChannel(future.channel());
+                clientChannelManager.setProxyServer(proxyServer);
+                clientChannelManager.setCmdChannel(future.channel());
+                clientChannelManager.resetAuthResult();
                 ProxyMessage proxyMessage = new ProxyMessage();
                 proxyMessage.setType(ProxyMessage.C_TYPE_AUTH);
-                proxyMessage.setUri(PropertiesValue.getStringValue("client.key"));
+                proxyMessage.setUri(clientKey);
+                // 携带本端的协议版本与能力，旧版本服务器忽略该数据
+                proxyMessage.setData(createHello().encode());
                 future.channel().writeAndFlush(proxyMessage);
-                sleepTimeMill = 1000;
-                logger.info("连接代理服务器成功, {}", future.channel());
+                future.channel().eventLoop().schedule(() -> {
+                    if (future.channel().isActive() && !authenticated) {
+                        logger.info("代理服务器没有返回认证结果, 按旧版本服务器处理, clientKey {}, {}", clientKey, future.channel());
+                        authenticated();
+                    }
+                }, AUTH_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+                logger.info("连接代理服务器成功, clientKey {}, {}", clientKey, future.channel());
             } else {
-                logger.warn("连接代理服务器失败, {}", future.cause());
+                proxyServers.failure(proxyServer);
+                logger.warn("连接代理服务器 {} 失败, clientKey {}, {}", proxyServer, clientKey, future.cause());
 
-                // 连接失败，发起重连
-                reconnectWait();
-                connectProxyServer();
+                // 连接失败，还有健康的服务器时立即切换，否则等待后重连
+                if (proxyServers.hasHealthyServer()) {
+                    workerGroup.execute(this::connectProxyServer);
+                } else {
+                    scheduleReconnect();
+                }
             }
         });
     }
 
+    private Handshake createHello() {
+        int capabilities = Capabilities.FRAME_COMPACT | Capabilities.COMPRESSION | Capabilities.EARLY_DATA | Capabilities.PORT_RANGE;
+        if (PropertiesValue.getBooleanValue("mux.enable", false)) {
+            capabilities |= Capabilities.MULTIPLEX;
+        } else if (PropertiesValue.getIntValue("dataChannel.idle", ClientChannelManager.DEFAULT_IDLE_DATA_CHANNELS) > 0) {
+            capabilities |= Capabilities.DATA_CHANNEL_POOL;
+        }
+        if (PropertiesValue.getIntValue("stats.intervalSeconds", StatsReporter.DEFAULT_INTERVAL_SECONDS) > 0) {
+            capabilities |= Capabilities.STATS;
+        }
+        if (PropertiesValue.getIntValue("drain.timeoutSeconds", ProxyClientGroup.DEFAULT_DRAIN_TIMEOUT_SECONDS) > 0) {
+            capabilities |= Capabilities.DRAIN;
+        }
+
+        Handshake hello = new Handshake();
+        hello.setCapabilities(capabilities & Capabilities.parse(PropertiesValue.getStringValue("protocol.capabilities")));
+        hello.setMaxFrameLength(MAX_FRAME_LENGTH);
+        hello.setCompressions(Handshake.supportedCompressions());
+        // 同一个clientKey的多个实例按权重分配用户连接
+        hello.setWeight(PropertiesValue.getIntValue("client.weight", 1));
+        // 只接受本端实际使用的隧道加密方式
+        hello.setEncryptions(sslEnable ? Handshake.ENCRYPTION_TLS : Handshake.ENCRYPTION_NONE);
+        return hello;
+    }
+
+    /**
+     * 停止重连并请求服务器平滑下线，服务器不支持或控制连接已断开时返回false
+     */
+    public boolean drain() {
+        stopped = true;
+        return clientChannelManager.drain();
+    }
+
+    public boolean isDrained() {
+        return clientChannelManager.isDrained();
+    }
+
+    /**
+     * 停止重连并断开控制连接，共用的EventLoop由ProxyClientGroup关闭
+     */
     public void stop() {
-        workerGroup.shutdownGracefully();
+        stopped = true;
+        Channel cmdChannel = clientChannelManager.getCmdChannel();
+        if (cmdChannel != null) {
+            cmdChannel.close();
+        }
+    }
+
+    public String getClientKey() {
+        return clientKey;
+    }
+
+    public ClientChannelManager getClientChannelManager() {
+        return clientChannelManager;
     }
 
     @Override
-    public void channelInactive(ChannelHandlerContext ctx) {
-        reconnectWait();
-        connectProxyServer();
+    public void channelAuthenticated(ChannelHandlerContext ctx) {
+        if (!authenticated) {
+            authenticated();
+        }
     }
 
-    private void reconnectWait() {
-        try {
-            if (sleepTimeMill > 60000) {
-                sleepTimeMill = 1000;
-            }
+    /**
+     * 认证完成后才记录服务器连接成功并重置重连等待时间，连接后立即被拒绝的服务器不会被当作健康的服务器
+     */
+    private void authenticated() {
+        authenticated = true;
+        proxyServers.success(connectedServer, connectLatencyMillis);
+        reconnectDelayMillis = RECONNECT_BASE_DELAY_MILLIS;
+    }
 
-            synchronized (this) {
-                sleepTimeMill = sleepTimeMill * 2;
-                wait(sleepTimeMill);
-            }
-        } catch (InterruptedException e) {
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        if (!authenticated && !stopped) {
+            proxyServers.failure(connectedServer);
+            logger.warn("认证完成前与代理服务器 {} 的连接断开, clientKey {}", connectedServer, clientKey);
         }
+        scheduleReconnect();
+    }
+
+    /**
+     * 在EventLoop上定时重连，不阻塞IO线程
+     */
+    private void scheduleReconnect() {
+        if (stopped || workerGroup.isShuttingDown()) {
+            return;
+        }
+
+        long delay = nextReconnectDelay();
+        logger.info("{} 毫秒后重连代理服务器, clientKey {}", delay, clientKey);
+        workerGroup.schedule(this::connectProxyServer, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * decorrelated jitter：在下限与上一次等待时间的3倍之间随机取值，不超过上限，避免大量客户端同时重连
+     */
+    private long nextReconnectDelay() {
+        long upper = Math.min(RECONNECT_MAX_DELAY_MILLIS, reconnectDelayMillis * 3);
+        reconnectDelayMillis = ThreadLocalRandom.current().nextLong(RECONNECT_BASE_DELAY_MILLIS, upper + 1);
+        return reconnectDelayMillis;
     }
 }
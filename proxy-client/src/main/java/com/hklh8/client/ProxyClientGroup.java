@@ -0,0 +1,148 @@
+package com.hklh8.client;
+
+import com.hklh8.client.handlers.RealServerChannelHandler;
+import com.hklh8.client.utils.PropertiesValue;
+import com.hklh8.common.protocol.BatchFlushHandler;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 同一进程内的全部代理客户端
+ * <p>
+ * client.key可以配置多个客户端key，逗号分隔，每个key一个ProxyClient，各自连接代理服务器并维护自己的连接池；
+ * EventLoop、后端连接Bootstrap、后端健康检查及ByteBuf分配器由所有客户端共用
+ */
+public class ProxyClientGroup {
+
+    private static Logger logger = LoggerFactory.getLogger(ProxyClientGroup.class);
+
+    /**
+     * 停止时等待平滑下线的默认秒数，0表示不等待直接断开
+     */
+    public static final int DEFAULT_DRAIN_TIMEOUT_SECONDS = 30;
+
+    private static final long DRAIN_CHECK_MILLIS = 100;
+
+    private EventLoopGroup workerGroup;
+
+    private Bootstrap realServerBootstrap;
+
+    private final List<ProxyClient> clients = new ArrayList<>();
+
+    public ProxyClientGroup() {
+        // epoll可用时所有连接使用epoll，unix:路径的后端服务器需要与其他连接在同一组EventLoop上
+        Class<? extends SocketChannel> socketChannelClass;
+        if (PropertiesValue.getBooleanValue("transport.epoll", true) && Epoll.isAvailable()) {
+            workerGroup = new EpollEventLoopGroup();
+            socketChannelClass = EpollSocketChannel.class;
+        } else {
+            if (PropertiesValue.getBooleanValue("transport.epoll", true)) {
+                logger.warn("epoll不可用，使用NIO，unix:路径的后端服务器无法连接, {}", Epoll.unavailabilityCause().getMessage());
+            }
+            workerGroup = new NioEventLoopGroup();
+            socketChannelClass = NioSocketChannel.class;
+        }
+
+        int flushMaxPendingBytes = PropertiesValue.getIntValue("flush.maxPendingBytes", BatchFlushHandler.DEFAULT_MAX_PENDING_BYTES);
+        long flushMaxDelayMicros = PropertiesValue.getIntValue("flush.maxDelayMicros", 0);
+        ChannelInitializer<Channel> realServerInitializer = new ChannelInitializer<Channel>() {
+            @Override
+            public void initChannel(Channel ch) throws Exception {
+                ch.pipeline().addLast(new BatchFlushHandler(flushMaxPendingBytes, flushMaxDelayMicros));
+                ch.pipeline().addLast(new RealServerChannelHandler());
+            }
+        };
+        int connectTimeoutMillis = PropertiesValue.getIntValue("backend.connectTimeoutMillis", 3000);
+        realServerBootstrap = new Bootstrap();
+        realServerBootstrap.group(workerGroup);
+        realServerBootstrap.channel(socketChannelClass);
+        realServerBootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMillis);
+        realServerBootstrap.handler(realServerInitializer);
+
+        if (workerGroup instanceof EpollEventLoopGroup) {
+            Bootstrap domainSocketBootstrap = new Bootstrap();
+            domainSocketBootstrap.group(workerGroup);
+            domainSocketBootstrap.channel(EpollDomainSocketChannel.class);
+            domainSocketBootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMillis);
+            domainSocketBootstrap.handler(realServerInitializer);
+            BackendManager.setDomainSocketBootstrap(domainSocketBootstrap);
+        }
+
+        for (String clientKey : PropertiesValue.getStringValue("client.key").split(",")) {
+            clientKey = clientKey.trim();
+            if (!clientKey.isEmpty()) {
+                clients.add(new ProxyClient(clientKey, workerGroup, socketChannelClass, realServerBootstrap));
+            }
+        }
+
+        if (clients.isEmpty()) {
+            throw new IllegalArgumentException("没有配置客户端key");
+        }
+    }
+
+    public void start() {
+        BackendManager.startHealthCheck(realServerBootstrap);
+        for (ProxyClient client : clients) {
+            client.start();
+        }
+        logger.info("启动代理客户端, 客户端key数量 {}", clients.size());
+    }
+
+    /**
+     * 先请求全部客户端平滑下线，等待已有的用户连接断开或超时后再断开控制连接
+     */
+    public void stop() {
+        long timeoutMillis = TimeUnit.SECONDS.toMillis(PropertiesValue.getIntValue("drain.timeoutSeconds", DEFAULT_DRAIN_TIMEOUT_SECONDS));
+        List<ProxyClient> draining = new ArrayList<>();
+        if (timeoutMillis > 0) {
+            for (ProxyClient client : clients) {
+                if (client.drain()) {
+                    draining.add(client);
+                }
+            }
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (!draining.isEmpty()) {
+            draining.removeIf(ProxyClient::isDrained);
+            if (draining.isEmpty() || System.nanoTime() >= deadline) {
+                break;
+            }
+            try {
+                Thread.sleep(DRAIN_CHECK_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (ProxyClient client : draining) {
+            logger.warn("平滑下线超时, 断开仍在传输的用户连接, clientKey {}", client.getClientKey());
+        }
+
+        for (ProxyClient client : clients) {
+            client.stop();
+        }
+        workerGroup.shutdownGracefully();
+    }
+
+    public List<ProxyClient> getClients() {
+        return Collections.unmodifiableList(clients);
+    }
+}
@@ -0,0 +1,158 @@
+package com.hklh8.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 代理服务器列表及各服务器的健康状况
+ * <p>
+ * proxy.server.host可以配置多个服务器，逗号分隔，每项为 host 或 host:port，没有端口时使用proxy.server.port。
+ * 重连时优先选择健康的服务器，其中连接耗时最短的优先；连续失败的服务器在一段时间内（随失败次数加倍，最长60秒）排在后面
+ */
+public class ProxyServerList {
+
+    private static final long MIN_COOLDOWN_MILLIS = 1000;
+
+    private static final long MAX_COOLDOWN_MILLIS = 60000;
+
+    /**
+     * 连接耗时的平滑系数
+     */
+    private static final double LATENCY_ALPHA = 0.3;
+
+    private final List<ProxyServer> servers = new ArrayList<>();
+
+    public ProxyServerList(String hosts, int defaultPort) {
+        for (String item : hosts.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+
+            int index = item.lastIndexOf(':');
+            if (index > 0 && item.indexOf(':') == index) {
+                servers.add(new ProxyServer(item.substring(0, index), Integer.parseInt(item.substring(index + 1))));
+            } else {
+                servers.add(new ProxyServer(item, defaultPort));
+            }
+        }
+
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("没有配置代理服务器");
+        }
+    }
+
+    /**
+     * 选择下一次连接的服务器
+     */
+    public synchronized ProxyServer select() {
+        long now = System.currentTimeMillis();
+        ProxyServer best = null;
+        for (ProxyServer server : servers) {
+            if (best == null || compare(server, best, now) < 0) {
+                best = server;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 是否还有不在失败冷却期内的服务器
+     */
+    public synchronized boolean hasHealthyServer() {
+        long now = System.currentTimeMillis();
+        for (ProxyServer server : servers) {
+            if (server.isHealthy(now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void success(ProxyServer server, long latencyMillis) {
+        server.failures = 0;
+        server.latencyMillis = server.latencyMillis < 0 ? latencyMillis
+                : (long) (LATENCY_ALPHA * latencyMillis + (1 - LATENCY_ALPHA) * server.latencyMillis);
+    }
+
+    public synchronized void failure(ProxyServer server) {
+        server.failures++;
+        server.lastFailureMillis = System.currentTimeMillis();
+    }
+
+    public List<ProxyServer> getServers() {
+        return Collections.unmodifiableList(servers);
+    }
+
+    public int size() {
+        return servers.size();
+    }
+
+    /**
+     * 健康的排在前面，其次连接耗时短的（没有连接过的视为0），最后失败次数少的；都相同时保持配置顺序
+     */
+    private static int compare(ProxyServer a, ProxyServer b, long now) {
+        boolean aHealthy = a.isHealthy(now);
+        boolean bHealthy = b.isHealthy(now);
+        if (aHealthy != bHealthy) {
+            return aHealthy ? -1 : 1;
+        }
+
+        int result = Long.compare(Math.max(a.latencyMillis, 0), Math.max(b.latencyMillis, 0));
+        if (result != 0) {
+            return result;
+        }
+        return Integer.compare(a.failures, b.failures);
+    }
+
+    public static class ProxyServer {
+
+        private final String host;
+
+        private final int port;
+
+        private int failures;
+
+        private long lastFailureMillis;
+
+        /**
+         * 平滑后的连接耗时，-1表示还没有连接成功过
+         */
+        private long latencyMillis = -1;
+
+        ProxyServer(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        public long getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        private boolean isHealthy(long now) {
+            if (failures == 0) {
+                return true;
+            }
+            long cooldown = MIN_COOLDOWN_MILLIS << Math.min(failures - 1, 6);
+            return now - lastFailureMillis >= Math.min(cooldown, MAX_COOLDOWN_MILLIS);
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.hklh8.client;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.rolling.FixedWindowRollingPolicy;
+import ch.qos.logback.core.rolling.RollingFileAppender;
+import ch.qos.logback.core.rolling.SizeBasedTriggeringPolicy;
+import ch.qos.logback.core.util.FileSize;
+import com.hklh8.client.config.ClientConfig;
+import com.hklh8.client.utils.PropertiesValue;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 不启动Spring的客户端入口，适合启动时间与内存受限的设备
+ * <p>
+ * 配置来源见 {@link ClientConfig#load(String[])}，日志默认使用classpath中的logback-standalone.xml，可以用-Dlogback.configurationFile替换，
+ * 配置中的logging.file与logging.level.*与Spring Boot一样生效（文件按10MB滚动）。
+ * 打包后的jar使用 java -Dloader.main=com.hklh8.client.StandaloneApplication -jar proxy-client.jar 启动
+ */
+public class StandaloneApplication {
+
+    private static final String LOG_PATTERN = "%d{yyyy-MM-dd HH:mm:ss.SSS} %5p --- [%15.15t] %-40.40logger{39} : %m%n";
+
+    private static final String LOGGING_LEVEL_PREFIX = "logging.level.";
+
+    public static void main(String[] args) throws Exception {
+        long startTime = System.nanoTime();
+        // 在创建第一个Logger之前指定日志配置
+        if (System.getProperty("logback.configurationFile") == null) {
+            System.setProperty("logback.configurationFile", "logback-standalone.xml");
+        }
+
+        ClientConfig config = ClientConfig.load(args);
+        configureLogging(config);
+        PropertiesValue.init(config);
+        ProxyClientGroup clients = new ProxyClientGroup();
+        clients.start();
+        //jvm中增加一个关闭的钩子
+        Runtime.getRuntime().addShutdownHook(new Thread(clients::stop));
+        LoggerFactory.getLogger(StandaloneApplication.class).info("启动完成, 耗时 {} 毫秒",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+    }
+
+    /**
+     * 按配置中的logging.file与logging.level.*调整日志，不依赖Spring Boot的日志初始化
+     */
+    private static void configureLogging(ClientConfig config) {
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        for (Map.Entry<String, String> entry : config.asMap().entrySet()) {
+            if (entry.getKey().startsWith(LOGGING_LEVEL_PREFIX)) {
+                String name = entry.getKey().substring(LOGGING_LEVEL_PREFIX.length()).trim();
+                Logger logger = context.getLogger("root".equalsIgnoreCase(name) ? Logger.ROOT_LOGGER_NAME : name);
+                logger.setLevel(Level.toLevel(entry.getValue().trim(), null));
+            }
+        }
+
+        String file = config.getString("logging.file");
+        if (file == null || file.trim().isEmpty()) {
+            return;
+        }
+        file = file.trim();
+
+        PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+        encoder.setContext(context);
+        encoder.setPattern(LOG_PATTERN);
+        encoder.setCharset(Charset.forName("UTF-8"));
+        encoder.start();
+
+        RollingFileAppender<ILoggingEvent> appender = new RollingFileAppender<>();
+        appender.setContext(context);
+        appender.setName("FILE");
+        appender.setFile(file);
+        appender.setEncoder(encoder);
+
+        FixedWindowRollingPolicy rollingPolicy = new FixedWindowRollingPolicy();
+        rollingPolicy.setContext(context);
+        rollingPolicy.setParent(appender);
+        rollingPolicy.setFileNamePattern(file + ".%i");
+        rollingPolicy.start();
+        appender.setRollingPolicy(rollingPolicy);
+
+        SizeBasedTriggeringPolicy<ILoggingEvent> triggeringPolicy = new SizeBasedTriggeringPolicy<>();
+        triggeringPolicy.setContext(context);
+        triggeringPolicy.setMaxFileSize(FileSize.valueOf("10MB"));
+        triggeringPolicy.start();
+        appender.setTriggeringPolicy(triggeringPolicy);
+
+        appender.start();
+        context.getLogger(Logger.ROOT_LOGGER_NAME).addAppender(appender);
+    }
+}
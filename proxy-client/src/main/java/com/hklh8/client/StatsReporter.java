@@ -0,0 +1,193 @@
+package com.hklh8.client;
+
+import com.hklh8.client.utils.PropertiesValue;
+import com.hklh8.common.protocol.ClientStats;
+import com.hklh8.common.protocol.ProxyMessage;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 统计后端连接耗时、失败数与流量，定时通过控制连接上报代理服务器
+ * <p>
+ * 每次上报后在控制连接上发送一个心跳，根据服务器的心跳响应测量控制连接的往返时间，在下一次上报时带上
+ */
+public class StatsReporter {
+
+    private static Logger logger = LoggerFactory.getLogger(StatsReporter.class);
+
+    /**
+     * 后端连接所属映射的统计
+     */
+    private static final AttributeKey<MappingCounter> MAPPING_COUNTER = AttributeKey.newInstance("mapping_counter");
+
+    public static final int DEFAULT_INTERVAL_SECONDS = 30;
+
+    private final ClientChannelManager clientChannelManager;
+
+    /**
+     * 上报间隔，为0时不上报
+     */
+    private final int intervalSeconds;
+
+    private final Map<Integer, MappingCounter> counters = new ConcurrentHashMap<>();
+
+    private long reportedHits;
+
+    private long reportedMisses;
+
+    /**
+     * 测量往返时间的心跳发送时间，没有等待响应的心跳时为0
+     */
+    private volatile long heartbeatSentNanos;
+
+    private volatile int rttMillis = -1;
+
+    public StatsReporter(ClientChannelManager clientChannelManager) {
+        this.clientChannelManager = clientChannelManager;
+        this.intervalSeconds = PropertiesValue.getIntValue("stats.intervalSeconds", DEFAULT_INTERVAL_SECONDS);
+    }
+
+    /**
+     * 获取映射的统计，不存在时创建
+     */
+    public MappingCounter getCounter(int mappingId) {
+        return counters.computeIfAbsent(mappingId, id -> new MappingCounter());
+    }
+
+    /**
+     * 获取后端连接所属映射的统计，没有统计时返回null
+     */
+    public static MappingCounter getCounter(Channel realServerChannel) {
+        return realServerChannel.attr(MAPPING_COUNTER).get();
+    }
+
+    /**
+     * 认证成功后在控制连接的EventLoop上定时上报，控制连接断开时停止
+     */
+    public void start(Channel cmdChannel) {
+        if (intervalSeconds <= 0) {
+            return;
+        }
+
+        heartbeatSentNanos = 0;
+        ScheduledFuture<?> future = cmdChannel.eventLoop().scheduleAtFixedRate(() -> report(cmdChannel),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        cmdChannel.closeFuture().addListener(closeFuture -> future.cancel(false));
+    }
+
+    /**
+     * 控制连接收到心跳响应
+     */
+    public void heartbeatAck() {
+        long sent = heartbeatSentNanos;
+        if (sent != 0) {
+            heartbeatSentNanos = 0;
+            rttMillis = (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sent);
+        }
+    }
+
+    private synchronized void report(Channel cmdChannel) {
+        if (!cmdChannel.isActive()) {
+            return;
+        }
+
+        ProxyChannelPool pool = clientChannelManager.getProxyChannelPool();
+        long hits = pool.getHits();
+        long misses = pool.getMisses();
+        ClientStats stats = new ClientStats();
+        stats.setRttMillis(rttMillis);
+        stats.setPoolHits(hits - reportedHits);
+        stats.setPoolMisses(misses - reportedMisses);
+        stats.setPoolIdle(pool.getIdleCount());
+        reportedHits = hits;
+        reportedMisses = misses;
+        for (Map.Entry<Integer, MappingCounter> entry : counters.entrySet()) {
+            ClientStats.MappingStats mapping = entry.getValue().sumThenReset(entry.getKey());
+            if (!mapping.isEmpty()) {
+                stats.addMapping(mapping);
+            }
+        }
+
+        ProxyMessage proxyMessage = new ProxyMessage();
+        proxyMessage.setType(ProxyMessage.TYPE_STATS);
+        proxyMessage.setData(stats.encode());
+        cmdChannel.write(proxyMessage);
+
+        ProxyMessage heartbeatMessage = new ProxyMessage();
+        heartbeatMessage.setType(ProxyMessage.TYPE_HEARTBEAT);
+        heartbeatSentNanos = System.nanoTime();
+        cmdChannel.writeAndFlush(heartbeatMessage);
+        logger.debug("上报运行统计, clientKey {}, 往返时间 {}ms, 映射数 {}", clientChannelManager.getClientKey(), rttMillis, stats.getMappings().size());
+    }
+
+    /**
+     * 一个映射的统计，在后端连接所在的各个EventLoop上累加
+     */
+    public static class MappingCounter {
+
+        private final LongAdder connects = new LongAdder();
+
+        private final LongAdder connectFailures = new LongAdder();
+
+        private final LongAdder connectMillis = new LongAdder();
+
+        private final AtomicLong maxConnectMillis = new AtomicLong();
+
+        private final LongAdder keepAliveReuses = new LongAdder();
+
+        private final LongAdder bytesToBackend = new LongAdder();
+
+        private final LongAdder bytesFromBackend = new LongAdder();
+
+        /**
+         * 后端连接成功，复用的keep-alive连接只计入复用数
+         */
+        public void connected(Channel realServerChannel, long millis, boolean keepAliveReused) {
+            realServerChannel.attr(MAPPING_COUNTER).set(this);
+            if (keepAliveReused) {
+                keepAliveReuses.increment();
+                return;
+            }
+
+            connects.increment();
+            connectMillis.add(millis);
+            long max;
+            while (millis > (max = maxConnectMillis.get()) && !maxConnectMillis.compareAndSet(max, millis)) {
+                // 并发更新最大值，重试
+            }
+        }
+
+        public void connectFailed() {
+            connectFailures.increment();
+        }
+
+        public void toBackend(long bytes) {
+            bytesToBackend.add(bytes);
+        }
+
+        public void fromBackend(long bytes) {
+            bytesFromBackend.add(bytes);
+        }
+
+        ClientStats.MappingStats sumThenReset(int mappingId) {
+            ClientStats.MappingStats mapping = new ClientStats.MappingStats(mappingId);
+            mapping.setConnects((int) connects.sumThenReset());
+            mapping.setConnectFailures((int) connectFailures.sumThenReset());
+            mapping.setConnectMillis(connectMillis.sumThenReset());
+            mapping.setMaxConnectMillis((int) maxConnectMillis.getAndSet(0));
+            mapping.setKeepAliveReuses((int) keepAliveReuses.sumThenReset());
+            mapping.setBytesToBackend(bytesToBackend.sumThenReset());
+            mapping.setBytesFromBackend(bytesFromBackend.sumThenReset());
+            return mapping;
+        }
+    }
+}
@@ -1,21 +1,65 @@
 package com.hklh8.client.config;
 
-import com.hklh8.client.ProxyClient;
+import com.hklh8.client.ProxyClientGroup;
+import com.hklh8.client.utils.PropertiesValue;
 import org.springframework.boot.CommandLineRunner;
+import org.springframework.context.EnvironmentAware;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.EnumerablePropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.PropertySource;
 import org.springframework.stereotype.Component;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * 程序入口
  * Created by GouBo on 2018/2/4.
  */
 @Component
-public class ApplicationEntrance implements CommandLineRunner {
+public class ApplicationEntrance implements CommandLineRunner, EnvironmentAware {
+
+    private ConfigurableEnvironment environment;
+
+    @Override
+    public void setEnvironment(Environment environment) {
+        this.environment = (ConfigurableEnvironment) environment;
+    }
 
     @Override
     public void run(String... args) {
-        ProxyClient client = new ProxyClient();
-        client.start();
+        PropertiesValue.init(ClientConfig.of(snapshot(environment)));
+        ProxyClientGroup clients = new ProxyClientGroup();
+        clients.start();
         //jvm中增加一个关闭的钩子
-        Runtime.getRuntime().addShutdownHook(new Thread(client::stop));
+        Runtime.getRuntime().addShutdownHook(new Thread(clients::stop));
+    }
+
+    /**
+     * 把Spring Environment中的全部属性按优先级解析后复制出来，之后读取配置不再经过Environment
+     */
+    private static Map<String, String> snapshot(ConfigurableEnvironment environment) {
+        Map<String, String> properties = new HashMap<>();
+        for (PropertySource<?> source : environment.getPropertySources()) {
+            if (!(source instanceof EnumerablePropertySource)) {
+                continue;
+            }
+
+            for (String name : ((EnumerablePropertySource<?>) source).getPropertyNames()) {
+                if (properties.containsKey(name)) {
+                    continue;
+                }
+                try {
+                    String value = environment.getProperty(name);
+                    if (value != null) {
+                        properties.put(name, value);
+                    }
+                } catch (IllegalArgumentException e) {
+                    // 无法解析的占位符，忽略该属性
+                }
+            }
+        }
+        return properties;
     }
 }
@@ -0,0 +1,97 @@
+package com.hklh8.client.config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 客户端配置快照，启动时加载一次，之后不再变化
+ * <p>
+ * 独立启动时按以下顺序加载，后面的覆盖前面的：classpath中的application.properties、当前目录的application.properties、
+ * 当前目录config/application.properties、-D系统属性、--key=value命令行参数
+ */
+public class ClientConfig {
+
+    private static final String CONFIG_FILE = "application.properties";
+
+    private final Map<String, String> properties;
+
+    private ClientConfig(Map<String, String> properties) {
+        this.properties = Collections.unmodifiableMap(new HashMap<>(properties));
+    }
+
+    public static ClientConfig of(Map<String, String> properties) {
+        return new ClientConfig(properties);
+    }
+
+    /**
+     * 不依赖Spring加载配置
+     */
+    public static ClientConfig load(String[] args) throws IOException {
+        Map<String, String> properties = new HashMap<>();
+        try (InputStream in = ClientConfig.class.getClassLoader().getResourceAsStream(CONFIG_FILE)) {
+            if (in != null) {
+                putAll(properties, in);
+            }
+        }
+
+        for (File file : new File[]{new File(CONFIG_FILE), new File("config", CONFIG_FILE)}) {
+            if (file.isFile()) {
+                try (InputStream in = new FileInputStream(file)) {
+                    putAll(properties, in);
+                }
+            }
+        }
+
+        for (String name : System.getProperties().stringPropertyNames()) {
+            properties.put(name, System.getProperty(name));
+        }
+
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (arg.startsWith("--") && index > 2) {
+                // 与Spring一致，同一参数出现多次时用逗号连接
+                options.merge(arg.substring(2, index), arg.substring(index + 1), (previous, value) -> previous + "," + value);
+            }
+        }
+        properties.putAll(options);
+        return new ClientConfig(properties);
+    }
+
+    public String getString(String key) {
+        return properties.get(key);
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = properties.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = properties.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = properties.get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    public Map<String, String> asMap() {
+        return properties;
+    }
+
+    private static void putAll(Map<String, String> properties, InputStream in) throws IOException {
+        Properties file = new Properties();
+        file.load(in);
+        for (String name : file.stringPropertyNames()) {
+            properties.put(name, file.getProperty(name).trim());
+        }
+    }
+}
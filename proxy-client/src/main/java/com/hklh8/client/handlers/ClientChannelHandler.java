@@ -1,32 +1,62 @@
 package com.hklh8.client.handlers;
 
+import com.hklh8.client.BackendGroup;
+import com.hklh8.client.BackendManager;
 import com.hklh8.client.ClientChannelManager;
+import com.hklh8.client.StatsReporter;
+import com.hklh8.client.listener.BackendConnectListener;
 import com.hklh8.client.listener.ChannelStatusListener;
 import com.hklh8.client.listener.ProxyChannelBorrowListener;
 import com.hklh8.client.utils.PropertiesValue;
+import com.hklh8.common.protocol.Compression;
 import com.hklh8.common.protocol.Constants;
+import com.hklh8.common.protocol.Handshake;
+import com.hklh8.common.protocol.LanMappings;
 import com.hklh8.common.protocol.ProxyMessage;
+import com.hklh8.common.protocol.ProxyMessageEncoder;
+import com.hklh8.common.protocol.StreamCompressor;
+import com.hklh8.common.protocol.StreamWindow;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
+import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
 public class ClientChannelHandler extends SimpleChannelInboundHandler<ProxyMessage> {
 
     private static Logger logger = LoggerFactory.getLogger(ClientChannelHandler.class);
 
+    /**
+     * 数据连接上等待后端服务器连接结果的绑定
+     */
+    private static final AttributeKey<StreamBinding> STREAM_BINDING = AttributeKey.newInstance("stream_binding");
+
     private Bootstrap bootstrap;
 
     private Bootstrap proxyBootstrap;
 
     private ChannelStatusListener channelStatusListener;
 
-    public ClientChannelHandler(Bootstrap bootstrap, Bootstrap proxyBootstrap, ChannelStatusListener channelStatusListener) {
+    private ClientChannelManager clientChannelManager;
+
+    /**
+     * 本次读循环中写入了数据、等待flush的后端连接
+     */
+    private final Set<Channel> pendingFlushChannels = new HashSet<>();
+
+    public ClientChannelHandler(Bootstrap bootstrap, Bootstrap proxyBootstrap, ChannelStatusListener channelStatusListener,
+                                ClientChannelManager clientChannelManager) {
         this.bootstrap = bootstrap;
         this.proxyBootstrap = proxyBootstrap;
         this.channelStatusListener = channelStatusListener;
+        this.clientChannelManager = clientChannelManager;
     }
 
     @Override
@@ -42,82 +72,292 @@ public class ClientChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
             case ProxyMessage.P_TYPE_TRANSFER:  // 代理数据传输
                 handleTransferMessage(ctx, proxyMessage);
                 break;
+            case ProxyMessage.TYPE_AUTH_ACK:    // 认证结果消息
+                handleAuthAckMessage(ctx, proxyMessage);
+                break;
+            case ProxyMessage.TYPE_MAPPINGS:    // 映射表消息
+                handleMappingsMessage(ctx, proxyMessage);
+                break;
+            case ProxyMessage.TYPE_WINDOW_UPDATE:   // 多路复用stream归还发送额度
+                handleWindowUpdateMessage(ctx, proxyMessage);
+                break;
+            case ProxyMessage.TYPE_HEARTBEAT:   // 心跳响应
+                handleHeartbeatMessage(ctx, proxyMessage);
+                break;
+            case ProxyMessage.TYPE_DRAIN:       // 服务器确认平滑下线
+                clientChannelManager.drainAck();
+                logger.info("服务器确认平滑下线, clientKey {}", clientChannelManager.getClientKey());
+                break;
             default:
                 break;
         }
     }
 
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        // 读循环结束后统一flush本次写入过数据的后端连接
+        for (Channel realServerChannel : pendingFlushChannels) {
+            realServerChannel.flush();
+        }
+        pendingFlushChannels.clear();
+        super.channelReadComplete(ctx);
+    }
+
+    private void handleAuthAckMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
+        Handshake handshake = Handshake.decode(proxyMessage.getData());
+        clientChannelManager.setAuthResult(handshake);
+        ctx.channel().attr(Constants.CAPABILITIES).set(handshake.getCapabilities());
+        ctx.channel().attr(Constants.HANDSHAKE).set(handshake);
+        ProxyMessageEncoder.setCompact(ctx.channel(), clientChannelManager.isCompact());
+        ProxyMessageEncoder.setMaxFrameLength(ctx.channel(), handshake.getMaxFrameLength());
+        logger.info("认证成功, clientKey {}, 协议版本 {}, 协议能力 {}, 最大帧长度 {}, 压缩算法 {}, 加密方式 {}, tunnelId {}", clientChannelManager.getClientKey(),
+                handshake.getVersion(), handshake.getCapabilities(), handshake.getMaxFrameLength(), handshake.getCompressions(), handshake.getEncryptions(), handshake.getTunnelId());
+        channelStatusListener.channelAuthenticated(ctx);
+
+        if (clientChannelManager.isStats()) {
+            clientChannelManager.getStatsReporter().start(ctx.channel());
+        }
+
+        if (clientChannelManager.isMultiplex()) {
+            int muxChannels = PropertiesValue.getIntValue("mux.channels", 1);
+            for (int i = 1; i < muxChannels; i++) {
+                clientChannelManager.openMuxLane(proxyBootstrap);
+            }
+        } else {
+            clientChannelManager.warmUpProxyChannelPool(proxyBootstrap);
+            clientChannelManager.fillIdleDataChannels(proxyBootstrap);
+        }
+    }
+
+    private void handleHeartbeatMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
+        if (clientChannelManager.getCmdChannel() == ctx.channel()) {
+            clientChannelManager.getStatsReporter().heartbeatAck();
+        }
+    }
+
+    private void handleMappingsMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
+        clientChannelManager.setLanMappings(LanMappings.decode(proxyMessage.getData()));
+    }
+
+    private void handleWindowUpdateMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
+        Channel realServerChannel = clientChannelManager.getRealServerChannel(proxyMessage.getStreamId());
+        if (realServerChannel != null) {
+            StreamWindow window = realServerChannel.attr(Constants.STREAM_WINDOW).get();
+            if (window != null) {
+                window.release(realServerChannel, StreamWindow.credit(proxyMessage));
+            }
+        }
+    }
+
     private void handleTransferMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
+        if (clientChannelManager.isMultiplex(ctx.channel())) {
+            int userId = proxyMessage.getStreamId();
+            Channel realServerChannel = clientChannelManager.getRealServerChannel(userId);
+            if (realServerChannel == null) {
+                return;
+            }
+
+            ByteBuf content = Compression.content(proxyMessage, ctx.alloc());
+            int bytes = content.readableBytes();
+            countToBackend(realServerChannel, bytes);
+            realServerChannel.write(content);
+            pendingFlushChannels.add(realServerChannel);
+            int credit = realServerChannel.attr(Constants.STREAM_WINDOW).get().received(realServerChannel, bytes);
+            if (credit > 0) {
+                ctx.channel().writeAndFlush(StreamWindow.windowUpdate(userId, credit));
+            }
+            return;
+        }
+
         Channel realServerChannel = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
         if (realServerChannel != null) {
-            ByteBuf buf = ctx.alloc().buffer(proxyMessage.getData().length);
-            buf.writeBytes(proxyMessage.getData());
             logger.debug("发送数据到目标服务器, {}", realServerChannel);
-            realServerChannel.writeAndFlush(buf);
+            // 消息在channelRead0返回后释放，转发的content需要保留一个引用，压缩过的数据解压后转发
+            ByteBuf content = Compression.content(proxyMessage, ctx.alloc());
+            countToBackend(realServerChannel, content.readableBytes());
+            realServerChannel.write(content);
+            pendingFlushChannels.add(realServerChannel);
+        }
+    }
+
+    private static void countToBackend(Channel realServerChannel, int bytes) {
+        StatsReporter.MappingCounter counter = StatsReporter.getCounter(realServerChannel);
+        if (counter != null) {
+            counter.toBackend(bytes);
         }
     }
 
     private void handleDisconnectMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
+        if (clientChannelManager.isMultiplex(ctx.channel())) {
+            Channel realServerChannel = clientChannelManager.removeRealServerChannel(proxyMessage.getStreamId());
+            if (realServerChannel != null) {
+                // 用户连接已经断开，后端连接关闭时不需要再通知代理服务器
+                realServerChannel.attr(Constants.NEXT_CHANNEL).remove();
+                BackendManager.releaseConnection(realServerChannel);
+            }
+            return;
+        }
+
+        StreamBinding binding = ctx.channel().attr(STREAM_BINDING).get();
+        if (binding != null) {
+            // 预建数据连接上的用户连接在后端服务器连接成功前已经断开
+            binding.cancel();
+            return;
+        }
+
         Channel realServerChannel = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
         logger.debug("处理用户连接断开, {}", realServerChannel);
         if (realServerChannel != null) {
             ctx.channel().attr(Constants.NEXT_CHANNEL).remove();
-            ClientChannelManager.returnProxyChanel(ctx.channel());
-            realServerChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+            // 用户连接已经断开，后端连接关闭时不需要再通知代理服务器，数据连接可能已经绑定了新的用户连接
+            realServerChannel.attr(Constants.NEXT_CHANNEL).remove();
+            clientChannelManager.returnProxyChanel(ctx.channel());
+            BackendManager.releaseConnection(realServerChannel);
         }
     }
 
     private void handleConnectMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
         final Channel cmdChannel = ctx.channel();
-        final String userId = proxyMessage.getUri();
-        String[] serverInfo = new String(proxyMessage.getData()).split(":");
-        String ip = serverInfo[0];
-        int port = Integer.parseInt(serverInfo[1]);
-        bootstrap.connect(ip, port).addListener((ChannelFutureListener) future -> {
+        final int userId = proxyMessage.getStreamId();
+        clientChannelManager.connectReceived();
+        String lanInfo;
+        byte compression = Compression.NONE;
+        byte protocol = LanMappings.PROTOCOL_TCP;
+        byte[] earlyData = null;
+        StatsReporter.MappingCounter counter = null;
+        if (proxyMessage.getUri() == null) {
+            // 紧凑帧头，数据为映射编号，协商了早期数据时之后为用户最先发送的数据
+            ByteBuffer data = ByteBuffer.wrap(proxyMessage.getData());
+            int mappingId = data.getInt();
+            if (data.hasRemaining()) {
+                earlyData = new byte[data.remaining()];
+                data.get(earlyData);
+            }
+            lanInfo = clientChannelManager.getLanInfo(mappingId);
+            compression = clientChannelManager.getCompression(mappingId);
+            protocol = clientChannelManager.getProtocol(mappingId);
+            if (lanInfo == null) {
+                logger.warn("未知的映射编号 {}", mappingId);
+                ProxyMessage proxyMessage1 = new ProxyMessage();
+                proxyMessage1.setType(ProxyMessage.TYPE_DISCONNECT);
+                proxyMessage1.setStreamId(userId);
+                cmdChannel.writeAndFlush(proxyMessage1);
+                if (clientChannelManager.takeIdleDataChannel(cmdChannel)) {
+                    clientChannelManager.returnProxyChanel(cmdChannel);
+                }
+                return;
+            }
+            if (clientChannelManager.isStats()) {
+                counter = clientChannelManager.getStatsReporter().getCounter(mappingId);
+            }
+        } else {
+            lanInfo = new String(proxyMessage.getData());
+        }
+        BackendGroup backends = BackendManager.getGroup(clientChannelManager.getClientKey(), lanInfo);
+        final byte streamCompression = compression;
+        final byte[] streamEarlyData = earlyData;
+        final StatsReporter.MappingCounter streamCounter = counter;
+        final boolean multiplex = clientChannelManager.isMultiplex(cmdChannel);
+        final StreamBinding binding = multiplex ? null : new StreamBinding(cmdChannel, userId);
+        // 后端连接与转发数据的隧道连接在同一个EventLoop上
+        EventLoop eventLoop = cmdChannel.eventLoop();
+        if (binding != null && clientChannelManager.takeIdleDataChannel(cmdChannel)) {
+            // 代理服务器直接在预建的数据连接上发送了连接消息，补充一条空闲数据连接
+            binding.proxyChannelReady(cmdChannel);
+            clientChannelManager.fillIdleDataChannels(proxyBootstrap);
+        } else if (binding != null) {
+            // 连接后端服务器的同时获取数据连接，两者都完成后再绑定
+            eventLoop = clientChannelManager.borrowProxyChanel(proxyBootstrap, bootstrap.group().next(), new ProxyChannelBorrowListener() {
+                @Override
+                public void success(Channel channel) {
+                    binding.proxyChannelReady(channel);
+                }
+
+                @Override
+                public void error(Throwable cause) {
+                    binding.fail();
+                }
+            });
+        }
+
+        final long startTime = System.nanoTime();
+        BackendManager.connect(bootstrap.clone(eventLoop), backends, protocol == LanMappings.PROTOCOL_HTTP, new BackendConnectListener() {
             // 连接目标服务器成功
-            if (future.isSuccess()) {
-                final Channel realServerChannel = future.channel();
+            @Override
+            public void success(Channel realServerChannel) {
                 logger.debug("连接目标服务器成功, {}", realServerChannel);
 
                 realServerChannel.config().setOption(ChannelOption.AUTO_READ, false);
-
-                // 获取连接
-                ClientChannelManager.borrowProxyChanel(proxyBootstrap, new ProxyChannelBorrowListener() {
-                    @Override
-                    public void success(Channel channel) {
-                        // 连接绑定
-                        channel.attr(Constants.NEXT_CHANNEL).set(realServerChannel);
-                        realServerChannel.attr(Constants.NEXT_CHANNEL).set(channel);
-
-                        // 远程绑定
-                        ProxyMessage proxyMessage1 = new ProxyMessage();
-                        proxyMessage1.setType(ProxyMessage.TYPE_CONNECT);
-                        proxyMessage1.setUri(userId + "@" + PropertiesValue.getStringValue("client.key"));
-                        channel.writeAndFlush(proxyMessage1);
-
-                        realServerChannel.config().setOption(ChannelOption.AUTO_READ, true);
-                        ClientChannelManager.addRealServerChannel(userId, realServerChannel);
-                        ClientChannelManager.setRealServerChannelUserId(realServerChannel, userId);
+                if (streamCounter != null) {
+                    streamCounter.connected(realServerChannel, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime),
+                            BackendManager.isKeepAliveReused(realServerChannel));
+                }
+                if (streamEarlyData != null) {
+                    // 连接成功后立即写入早期数据，不等待数据连接绑定
+                    if (streamCounter != null) {
+                        streamCounter.toBackend(streamEarlyData.length);
                     }
+                    realServerChannel.writeAndFlush(Unpooled.wrappedBuffer(streamEarlyData));
+                }
+                if (streamCompression != Compression.NONE) {
+                    realServerChannel.attr(Constants.STREAM_COMPRESSOR).set(new StreamCompressor(streamCompression));
+                }
 
-                    @Override
-                    public void error(Throwable cause) {
-                        ProxyMessage proxyMessage1 = new ProxyMessage();
-                        proxyMessage1.setType(ProxyMessage.TYPE_DISCONNECT);
-                        proxyMessage1.setUri(userId);
-                        cmdChannel.writeAndFlush(proxyMessage1);
-                    }
-                });
+                if (multiplex) {
+                    bindMuxStream(cmdChannel, realServerChannel, userId, streamEarlyData == null ? 0 : streamEarlyData.length);
+                } else {
+                    binding.realServerChannelReady(realServerChannel);
+                }
+            }
 
-            } else {
-                ProxyMessage proxyMessage1 = new ProxyMessage();
-                proxyMessage1.setType(ProxyMessage.TYPE_DISCONNECT);
-                proxyMessage1.setUri(userId);
-                cmdChannel.writeAndFlush(proxyMessage1);
+            // 后端服务器都连接失败或都在熔断中，立即通知代理服务器断开用户连接
+            @Override
+            public void error(Throwable cause) {
+                if (streamCounter != null) {
+                    streamCounter.connectFailed();
+                }
+                if (binding != null) {
+                    binding.fail();
+                } else {
+                    ProxyMessage proxyMessage1 = new ProxyMessage();
+                    proxyMessage1.setType(ProxyMessage.TYPE_DISCONNECT);
+                    proxyMessage1.setStreamId(userId);
+                    cmdChannel.writeAndFlush(proxyMessage1);
+                }
             }
         });
     }
 
+    /**
+     * 多路复用模式下后端连接直接绑定收到连接消息的隧道连接，并在该隧道上确认连接成功
+     */
+    private void bindMuxStream(Channel lane, Channel realServerChannel, int userId, int earlyDataBytes) {
+        if (!lane.isActive()) {
+            realServerChannel.close();
+            return;
+        }
+
+        // 先登记用户编号，再发布隧道连接，最后打开读取，后端连接的处理器看到隧道连接时用户编号一定已经设置
+        ClientChannelManager.setRealServerChannelUserId(realServerChannel, userId);
+        clientChannelManager.addRealServerChannel(userId, realServerChannel);
+        StreamWindow window = new StreamWindow();
+        realServerChannel.attr(Constants.STREAM_WINDOW).set(window);
+        realServerChannel.attr(Constants.NEXT_CHANNEL).set(lane);
+
+        ProxyMessage proxyMessage = new ProxyMessage();
+        proxyMessage.setType(ProxyMessage.TYPE_CONNECT);
+        proxyMessage.setStreamId(userId);
+        lane.writeAndFlush(proxyMessage);
+
+        // 早期数据占用了代理服务器该stream的额度，已写入后端服务器，与之后的传输数据一起归还
+        int credit = earlyDataBytes > 0 ? window.received(realServerChannel, earlyDataBytes) : 0;
+        if (credit > 0) {
+            lane.writeAndFlush(StreamWindow.windowUpdate(userId, credit));
+        }
+
+        realServerChannel.config().setOption(ChannelOption.AUTO_READ, true);
+    }
+
     @Override
     public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
         Channel realServerChannel = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
@@ -130,19 +370,33 @@ public class ClientChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         // 控制连接
-        if (ClientChannelManager.getCmdChannel() == ctx.channel()) {
-            ClientChannelManager.setCmdChannel(null);
-            ClientChannelManager.clearRealServerChannels();
+        if (clientChannelManager.getCmdChannel() == ctx.channel()) {
+            clientChannelManager.setCmdChannel(null);
+            clientChannelManager.closeMuxLanes();
+            clientChannelManager.clearProxyChannelPool();
+            clientChannelManager.clearRealServerChannels();
             channelStatusListener.channelInactive(ctx);
+        } else if (clientChannelManager.removeMuxLane(ctx.channel())) {
+            // 多路复用隧道连接，控制连接仍然可用时重新建立
+            if (clientChannelManager.getCmdChannel() != null && clientChannelManager.isMultiplex()) {
+                clientChannelManager.openMuxLane(proxyBootstrap);
+            }
         } else {
             // 数据传输连接
             Channel realServerChannel = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
             if (realServerChannel != null && realServerChannel.isActive()) {
                 realServerChannel.close();
             }
+            StreamBinding binding = ctx.channel().attr(STREAM_BINDING).get();
+            if (binding != null) {
+                binding.cancel();
+            }
+            if (clientChannelManager.takeIdleDataChannel(ctx.channel()) && clientChannelManager.getCmdChannel() != null) {
+                clientChannelManager.fillIdleDataChannels(proxyBootstrap);
+            }
         }
 
-        ClientChannelManager.removeProxyChanel(ctx.channel());
+        clientChannelManager.removeProxyChanel(ctx.channel());
         super.channelInactive(ctx);
     }
 
@@ -152,4 +406,119 @@ public class ClientChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
         super.exceptionCaught(ctx, cause);
     }
 
-}
\ No newline at end of file
+
+    /**
+     * 同时连接后端服务器与获取数据连接，两者都完成后绑定；任何一个失败时释放另一个并通知代理服务器断开用户连接。
+     * 两个回调可能在不同的EventLoop中执行。使用预建数据连接时数据连接一开始就已经就绪
+     */
+    private class StreamBinding {
+
+        private final Channel cmdChannel;
+
+        private final int userId;
+
+        private Channel realServerChannel;
+
+        private Channel proxyChannel;
+
+        private boolean failed;
+
+        StreamBinding(Channel cmdChannel, int userId) {
+            this.cmdChannel = cmdChannel;
+            this.userId = userId;
+        }
+
+        synchronized void realServerChannelReady(Channel realServerChannel) {
+            if (failed) {
+                realServerChannel.close();
+                return;
+            }
+
+            this.realServerChannel = realServerChannel;
+            if (proxyChannel != null) {
+                bind();
+            }
+        }
+
+        synchronized void proxyChannelReady(Channel proxyChannel) {
+            if (failed) {
+                // 数据连接还没有与用户连接绑定，可以直接放回连接池
+                clientChannelManager.returnProxyChanel(proxyChannel);
+                return;
+            }
+
+            this.proxyChannel = proxyChannel;
+            proxyChannel.attr(STREAM_BINDING).set(this);
+            if (realServerChannel != null) {
+                bind();
+            }
+        }
+
+        synchronized void fail() {
+            if (failed) {
+                return;
+            }
+
+            // 先通知断开，预建数据连接上的断开消息必须在重新登记之前
+            ProxyMessage proxyMessage = new ProxyMessage();
+            proxyMessage.setType(ProxyMessage.TYPE_DISCONNECT);
+            proxyMessage.setStreamId(userId);
+            cmdChannel.writeAndFlush(proxyMessage);
+            release();
+        }
+
+        /**
+         * 代理服务器已经断开用户连接，不需要再通知
+         */
+        synchronized void cancel() {
+            if (!failed) {
+                release();
+            }
+        }
+
+        private void release() {
+            failed = true;
+            if (realServerChannel != null) {
+                realServerChannel.close();
+            }
+            if (proxyChannel != null) {
+                proxyChannel.attr(STREAM_BINDING).remove();
+                if (proxyChannel.isActive()) {
+                    clientChannelManager.returnProxyChanel(proxyChannel);
+                }
+            }
+        }
+
+        private void bind() {
+            proxyChannel.attr(STREAM_BINDING).remove();
+            if (!proxyChannel.isActive()) {
+                realServerChannel.close();
+                return;
+            }
+
+            // 先登记用户编号，再绑定连接，最后打开读取
+            ClientChannelManager.setRealServerChannelUserId(realServerChannel, userId);
+            clientChannelManager.addRealServerChannel(userId, realServerChannel);
+
+            // 连接绑定
+            proxyChannel.attr(Constants.NEXT_CHANNEL).set(realServerChannel);
+            realServerChannel.attr(Constants.NEXT_CHANNEL).set(proxyChannel);
+
+            // 远程绑定
+            ProxyMessage proxyMessage = new ProxyMessage();
+            proxyMessage.setType(ProxyMessage.TYPE_CONNECT);
+            proxyMessage.setStreamId(userId);
+            if (clientChannelManager.isCompact()) {
+                ProxyMessageEncoder.setCompact(proxyChannel, true);
+                ProxyMessageEncoder.setMaxFrameLength(proxyChannel, clientChannelManager.getMaxFrameLength());
+                proxyMessage.setData(ByteBuffer.allocate(4).putInt(clientChannelManager.getTunnelId()).array());
+            } else {
+                ProxyMessageEncoder.setCompact(proxyChannel, false);
+                proxyMessage.setUri(userId + "@" + clientChannelManager.getClientKey());
+            }
+            proxyChannel.writeAndFlush(proxyMessage);
+
+            realServerChannel.config().setOption(ChannelOption.AUTO_READ, true);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.hklh8.client.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * HTTP映射的后端连接上跟踪HTTP/1.x请求与响应的边界，不修改转发的数据
+ * <p>
+ * 写往后端的数据按请求解析，后端返回的数据按响应解析。所有请求都收到完整响应、没有未结束的消息、双方都没有要求关闭连接时，
+ * 用户连接断开后该后端连接可以放回连接池给之后的用户连接使用。无法解析、协议升级、CONNECT隧道、以关闭连接表示结束的响应等情况下不再复用
+ */
+public class HttpKeepAliveHandler extends ChannelDuplexHandler {
+
+    /**
+     * 请求行、状态行及每个头部行的最大长度，超过后不再跟踪
+     */
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    private final MessageTracker requests = new MessageTracker(true);
+
+    private final MessageTracker responses = new MessageTracker(false);
+
+    /**
+     * 已经发出、还没有收到响应的请求是否为HEAD请求，HEAD请求的响应没有消息体
+     */
+    private final Queue<Boolean> pendingHeads = new ArrayDeque<>();
+
+    private int completedRequests;
+
+    private int completedResponses;
+
+    private boolean keepAlive = true;
+
+    private boolean broken;
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!broken && msg instanceof ByteBuf) {
+            responses.update((ByteBuf) msg);
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (!broken && msg instanceof ByteBuf) {
+            requests.update((ByteBuf) msg);
+        }
+        ctx.write(msg, promise);
+    }
+
+    /**
+     * 在该连接的EventLoop中调用
+     *
+     * @return 连接是否处在请求与响应的边界且可以继续使用
+     */
+    public boolean isReusable() {
+        return !broken && keepAlive && completedRequests > 0 && completedRequests == completedResponses
+                && requests.isIdle() && responses.isIdle();
+    }
+
+    /**
+     * 一个方向上的HTTP消息解析状态
+     */
+    private class MessageTracker {
+
+        private static final int STATE_START_LINE = 0;
+
+        private static final int STATE_HEADER = 1;
+
+        private static final int STATE_BODY = 2;
+
+        private static final int STATE_CHUNK_SIZE = 3;
+
+        private static final int STATE_CHUNK_DATA = 4;
+
+        private static final int STATE_CHUNK_END = 5;
+
+        private static final int STATE_TRAILER = 6;
+
+        private final boolean request;
+
+        private final StringBuilder line = new StringBuilder();
+
+        private int state = STATE_START_LINE;
+
+        private long remaining;
+
+        private long contentLength;
+
+        private boolean chunked;
+
+        private boolean http10;
+
+        private boolean connectionClose;
+
+        private boolean connectionKeepAlive;
+
+        private boolean head;
+
+        private int status;
+
+        MessageTracker(boolean request) {
+            this.request = request;
+        }
+
+        boolean isIdle() {
+            return state == STATE_START_LINE && line.length() == 0;
+        }
+
+        void update(ByteBuf buf) {
+            int index = buf.readerIndex();
+            int end = buf.writerIndex();
+            while (index < end && !broken) {
+                if (state == STATE_BODY || state == STATE_CHUNK_DATA) {
+                    int skip = (int) Math.min(remaining, end - index);
+                    index += skip;
+                    remaining -= skip;
+                    if (remaining == 0) {
+                        if (state == STATE_BODY) {
+                            complete();
+                        } else {
+                            state = STATE_CHUNK_END;
+                        }
+                    }
+                    continue;
+                }
+
+                byte b = buf.getByte(index++);
+                if (b == '\n') {
+                    int length = line.length();
+                    if (length > 0 && line.charAt(length - 1) == '\r') {
+                        line.setLength(length - 1);
+                    }
+                    String text = line.toString();
+                    line.setLength(0);
+                    onLine(text);
+                } else if (line.length() >= MAX_LINE_LENGTH) {
+                    broken = true;
+                } else {
+                    line.append((char) (b & 0xFF));
+                }
+            }
+        }
+
+        private void onLine(String text) {
+            switch (state) {
+                case STATE_START_LINE:
+                    if (!text.isEmpty()) {
+                        onStartLine(text);
+                    }
+                    break;
+                case STATE_HEADER:
+                    if (text.isEmpty()) {
+                        onHeadersEnd();
+                    } else {
+                        onHeader(text);
+                    }
+                    break;
+                case STATE_CHUNK_SIZE:
+                    int semicolon = text.indexOf(';');
+                    String size = (semicolon >= 0 ? text.substring(0, semicolon) : text).trim();
+                    try {
+                        remaining = Long.parseLong(size, 16);
+                    } catch (NumberFormatException e) {
+                        broken = true;
+                        return;
+                    }
+                    state = remaining == 0 ? STATE_TRAILER : STATE_CHUNK_DATA;
+                    break;
+                case STATE_CHUNK_END:
+                    state = STATE_CHUNK_SIZE;
+                    break;
+                case STATE_TRAILER:
+                    if (text.isEmpty()) {
+                        complete();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void onStartLine(String text) {
+            contentLength = -1;
+            chunked = false;
+            connectionClose = false;
+            connectionKeepAlive = false;
+            String[] parts = text.split(" ", 3);
+            if (parts.length < 2) {
+                broken = true;
+                return;
+            }
+
+            if (request) {
+                if ("CONNECT".equals(parts[0]) || parts.length < 3) {
+                    broken = true;
+                    return;
+                }
+                head = "HEAD".equals(parts[0]);
+                http10 = "HTTP/1.0".equals(parts[2]);
+                pendingHeads.offer(head);
+            } else {
+                http10 = "HTTP/1.0".equals(parts[0]);
+                try {
+                    status = Integer.parseInt(parts[1]);
+                } catch (NumberFormatException e) {
+                    broken = true;
+                    return;
+                }
+            }
+            state = STATE_HEADER;
+        }
+
+        private void onHeader(String text) {
+            int colon = text.indexOf(':');
+            if (colon <= 0) {
+                return;
+            }
+
+            String name = text.substring(0, colon).trim();
+            String value = text.substring(colon + 1).trim().toLowerCase();
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                try {
+                    contentLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    broken = true;
+                }
+            } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                chunked = value.endsWith("chunked");
+            } else if ("Connection".equalsIgnoreCase(name)) {
+                connectionClose |= value.contains("close");
+                connectionKeepAlive |= value.contains("keep-alive");
+                if (value.contains("upgrade")) {
+                    broken = true;
+                }
+            }
+        }
+
+        private void onHeadersEnd() {
+            if (connectionClose || (http10 && !connectionKeepAlive)) {
+                keepAlive = false;
+            }
+
+            if (!request) {
+                if (status == 101) {
+                    broken = true;
+                    return;
+                }
+                if (status >= 100 && status < 200) {
+                    // 临时响应之后还有最终响应
+                    state = STATE_START_LINE;
+                    return;
+                }
+
+                Boolean headRequest = pendingHeads.poll();
+                if ((headRequest != null && headRequest) || status == 204 || status == 304) {
+                    complete();
+                    return;
+                }
+            }
+
+            if (chunked) {
+                state = STATE_CHUNK_SIZE;
+            } else if (contentLength > 0) {
+                remaining = contentLength;
+                state = STATE_BODY;
+            } else if (contentLength == 0 || request) {
+                complete();
+            } else {
+                // 响应以关闭连接表示结束
+                broken = true;
+            }
+        }
+
+        private void complete() {
+            state = STATE_START_LINE;
+            if (request) {
+                completedRequests++;
+            } else {
+                completedResponses++;
+            }
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package com.hklh8.client.handlers;
 
 import com.hklh8.client.ClientChannelManager;
+import com.hklh8.client.StatsReporter;
 import com.hklh8.common.protocol.Constants;
 import com.hklh8.common.protocol.ProxyMessage;
+import com.hklh8.common.protocol.StreamCompressor;
+import com.hklh8.common.protocol.StreamWindow;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
@@ -22,22 +25,44 @@ public class RealServerChannelHandler extends SimpleChannelInboundHandler<ByteBu
     protected void channelRead0(ChannelHandlerContext ctx, ByteBuf buf) throws Exception {
         Channel realServerChannel = ctx.channel();
         Channel channel = realServerChannel.attr(Constants.NEXT_CHANNEL).get();
-        if (channel == null) {
+        Integer userId = ClientChannelManager.getRealServerChannelUserId(realServerChannel);
+        if (channel == null || userId == null) {
             // 代理客户端连接断开
             ctx.channel().close();
         } else {
-            byte[] bytes = new byte[buf.readableBytes()];
-            buf.readBytes(bytes);
-            String userId = ClientChannelManager.getRealServerChannelUserId(realServerChannel);
             ProxyMessage proxyMessage = new ProxyMessage();
             proxyMessage.setType(ProxyMessage.P_TYPE_TRANSFER);
-            proxyMessage.setUri(userId);
-            proxyMessage.setData(bytes);
-            channel.writeAndFlush(proxyMessage);
+            proxyMessage.setStreamId(userId);
+            StreamWindow window = realServerChannel.attr(Constants.STREAM_WINDOW).get();
+            if (window != null) {
+                window.consume(realServerChannel, buf.readableBytes());
+            }
+            StatsReporter.MappingCounter counter = StatsReporter.getCounter(realServerChannel);
+            if (counter != null) {
+                counter.fromBackend(buf.readableBytes());
+            }
+            StreamCompressor compressor = realServerChannel.attr(Constants.STREAM_COMPRESSOR).get();
+            if (compressor != null) {
+                compressor.setContent(proxyMessage, buf, ctx.alloc());
+            } else {
+                // 直接转发读取到的ByteBuf，channelRead0返回后buf会被释放，这里保留一个引用
+                proxyMessage.setContent(buf.retain());
+            }
+            // 只写入不flush，本次读循环结束后统一flush
+            channel.write(proxyMessage);
             logger.debug("发送数据到代理服务器, {}, {}", realServerChannel, channel);
         }
     }
 
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        Channel channel = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
+        if (channel != null) {
+            channel.flush();
+        }
+        super.channelReadComplete(ctx);
+    }
+
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
         super.channelActive(ctx);
@@ -46,14 +71,17 @@ public class RealServerChannelHandler extends SimpleChannelInboundHandler<ByteBu
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         Channel realServerChannel = ctx.channel();
-        String userId = ClientChannelManager.getRealServerChannelUserId(realServerChannel);
-        ClientChannelManager.removeRealServerChannel(userId);
+        Integer userId = ClientChannelManager.getRealServerChannelUserId(realServerChannel);
+        ClientChannelManager clientChannelManager = ClientChannelManager.of(realServerChannel);
+        if (userId != null && clientChannelManager != null) {
+            clientChannelManager.removeRealServerChannel(userId);
+        }
         Channel channel = realServerChannel.attr(Constants.NEXT_CHANNEL).get();
-        if (channel != null) {
+        if (channel != null && userId != null) {
             logger.debug("channelInactive, {}", realServerChannel);
             ProxyMessage proxyMessage = new ProxyMessage();
             proxyMessage.setType(ProxyMessage.TYPE_DISCONNECT);
-            proxyMessage.setUri(userId);
+            proxyMessage.setStreamId(userId);
             channel.writeAndFlush(proxyMessage);
         }
 
@@ -64,7 +92,15 @@ public class RealServerChannelHandler extends SimpleChannelInboundHandler<ByteBu
     public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
         Channel realServerChannel = ctx.channel();
         Channel proxyChannel = realServerChannel.attr(Constants.NEXT_CHANNEL).get();
-        if (proxyChannel != null) {
+        StreamWindow window = realServerChannel.attr(Constants.STREAM_WINDOW).get();
+        if (window != null) {
+            // 多路复用模式下不暂停共享的隧道连接，后端连接恢复可写后归还该stream的额度
+            int credit = realServerChannel.isWritable() ? window.drain() : 0;
+            Integer userId = ClientChannelManager.getRealServerChannelUserId(realServerChannel);
+            if (credit > 0 && proxyChannel != null && userId != null) {
+                proxyChannel.writeAndFlush(StreamWindow.windowUpdate(userId, credit));
+            }
+        } else if (proxyChannel != null) {
             proxyChannel.config().setOption(ChannelOption.AUTO_READ, realServerChannel.isWritable());
         }
 
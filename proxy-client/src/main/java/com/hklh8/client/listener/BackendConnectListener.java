@@ -0,0 +1,9 @@
+package com.hklh8.client.listener;
+
+import io.netty.channel.Channel;
+
+public interface BackendConnectListener {
+    void success(Channel channel);
+
+    void error(Throwable cause);
+}
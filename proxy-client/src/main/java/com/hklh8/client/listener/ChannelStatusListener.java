@@ -3,5 +3,11 @@ package com.hklh8.client.listener;
 import io.netty.channel.ChannelHandlerContext;
 
 public interface ChannelStatusListener {
+
+    /**
+     * 控制连接收到服务器的认证结果
+     */
+    void channelAuthenticated(ChannelHandlerContext ctx);
+
     void channelInactive(ChannelHandlerContext ctx);
 }
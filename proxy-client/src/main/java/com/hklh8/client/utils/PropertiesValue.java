@@ -1,39 +1,37 @@
 package com.hklh8.client.utils;
 
+import com.hklh8.client.config.ClientConfig;
+
+import java.util.Collections;
+
+/**
+ * 读取启动时加载的配置快照，不经过Spring Environment
+ */
 public class PropertiesValue {
 
+    private static volatile ClientConfig config = ClientConfig.of(Collections.emptyMap());
+
+    public static void init(ClientConfig clientConfig) {
+        config = clientConfig;
+    }
+
+    public static ClientConfig getConfig() {
+        return config;
+    }
+
     public static String getStringValue(String key) {
-        return SpringContext.getEnvironment().getProperty(key);
+        return config.getString(key);
     }
 
     public static String getStringValue(String key, String defaultValue) {
-        String value = getStringValue(key);
-        if (value == null) {
-            return defaultValue;
-        } else {
-            return value;
-        }
+        return config.getString(key, defaultValue);
     }
 
     public static int getIntValue(String key, int defaultValue) {
-        String value = getStringValue(key);
-        if (value != null) {
-            return Integer.valueOf(value);
-        }
-        return defaultValue;
+        return config.getInt(key, defaultValue);
     }
 
-
     public static Boolean getBooleanValue(String key, Boolean defaultValue) {
-        String value = getStringValue(key);
-        if (value != null) {
-            try {
-                return Boolean.parseBoolean(value);
-            } catch (Exception e) {
-                e.printStackTrace();
-                return defaultValue;
-            }
-        }
-        return defaultValue;
+        return config.getBoolean(key, defaultValue);
     }
 }
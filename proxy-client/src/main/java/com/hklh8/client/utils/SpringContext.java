@@ -1,28 +0,0 @@
-package com.hklh8.client.utils;
-
-import org.springframework.beans.BeansException;
-import org.springframework.context.ApplicationContext;
-import org.springframework.context.ApplicationContextAware;
-import org.springframework.core.env.Environment;
-import org.springframework.stereotype.Component;
-
-@Component
-public class SpringContext implements ApplicationContextAware {
-    /**
-     * 初始化Spring上下文环境
-     */
-    private static ApplicationContext applicationContext;
-
-    @Override
-    public void setApplicationContext(ApplicationContext context) throws BeansException {
-        applicationContext = context;
-    }
-
-    public static ApplicationContext getContext() {
-        return applicationContext;
-    }
-
-    public static Environment getEnvironment() {
-        return applicationContext.getEnvironment();
-    }
-}
\ No newline at end of file
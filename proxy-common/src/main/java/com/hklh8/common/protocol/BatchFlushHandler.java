@@ -0,0 +1,205 @@
+package com.hklh8.common.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 合并flush，减少写系统调用
+ * <p>
+ * 转发数据时只调用write()，由源连接在channelReadComplete时flush一次；本连接读循环中发起的flush推迟到channelReadComplete，
+ * 读循环外的flush在设置了最大延迟时延迟合并。待发送字节数达到上限时立即flush，保证批量不会无限增大。
+ * 多个小帧在一次flush中通过gathering write写出，尽量合并到同一个TCP报文段
+ */
+public class BatchFlushHandler extends ChannelDuplexHandler {
+
+    /**
+     * 默认待发送字节数上限
+     */
+    public static final int DEFAULT_MAX_PENDING_BYTES = 64 * 1024;
+
+    private final int maxPendingBytes;
+
+    private final long maxDelayMicros;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            scheduledFlush = null;
+            flushNow(ctx);
+        }
+    };
+
+    private ChannelHandlerContext ctx;
+
+    private ScheduledFuture<?> scheduledFlush;
+
+    private boolean readInProgress;
+
+    private boolean flushPending;
+
+    private int pendingWrites;
+
+    private long pendingBytes;
+
+    /**
+     * 实际执行的flush次数
+     */
+    private long flushes;
+
+    /**
+     * 合并掉的flush次数，即省下的写系统调用次数
+     */
+    private long savedFlushes;
+
+    public BatchFlushHandler() {
+        this(DEFAULT_MAX_PENDING_BYTES, 0);
+    }
+
+    /**
+     * @param maxPendingBytes 待发送字节数达到该值时立即flush
+     * @param maxDelayMicros  读循环外的flush最多延迟的微秒数，0表示不延迟
+     */
+    public BatchFlushHandler(int maxPendingBytes, long maxDelayMicros) {
+        this.maxPendingBytes = maxPendingBytes;
+        this.maxDelayMicros = maxDelayMicros;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        readInProgress = true;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        ctx.fireChannelReadComplete();
+        readInProgress = false;
+        if (flushPending) {
+            flushNow(ctx);
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        pendingWrites++;
+        pendingBytes += sizeOf(msg);
+        ctx.write(msg, promise);
+        if (pendingBytes >= maxPendingBytes) {
+            flushNow(ctx);
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        if (readInProgress) {
+            // 本连接的读循环中，推迟到channelReadComplete时统一flush
+            flushPending = true;
+        } else if (maxDelayMicros > 0 && pendingWrites > 0) {
+            flushPending = true;
+            if (scheduledFlush == null) {
+                scheduledFlush = ctx.executor().schedule(flushTask, maxDelayMicros, TimeUnit.MICROSECONDS);
+            }
+        } else {
+            flushNow(ctx);
+        }
+    }
+
+    @Override
+    public void disconnect(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        flushIfPending(ctx);
+        ctx.disconnect(promise);
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        flushIfPending(ctx);
+        ctx.close(promise);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        cancelScheduledFlush();
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        flushIfPending(ctx);
+    }
+
+    public long getFlushes() {
+        return flushes;
+    }
+
+    public long getSavedFlushes() {
+        return savedFlushes;
+    }
+
+    /**
+     * 每次实际flush后回调，saved为本次合并掉的flush次数，子类可以据此做统计
+     */
+    protected void onFlush(ChannelHandlerContext ctx, int writes, long bytes, int saved) {
+    }
+
+    private void flushIfPending(ChannelHandlerContext ctx) {
+        if (flushPending || pendingWrites > 0) {
+            flushNow(ctx);
+        }
+    }
+
+    private void flushNow(ChannelHandlerContext ctx) {
+        cancelScheduledFlush();
+        int writes = pendingWrites;
+        long bytes = pendingBytes;
+        flushPending = false;
+        pendingWrites = 0;
+        pendingBytes = 0;
+
+        ctx.flush();
+        if (writes == 0) {
+            return;
+        }
+
+        int saved = writes > 1 ? writes - 1 : 0;
+        flushes++;
+        savedFlushes += saved;
+        onFlush(ctx, writes, bytes, saved);
+    }
+
+    private void cancelScheduledFlush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+    }
+
+    private static long sizeOf(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        }
+
+        if (msg instanceof ProxyMessage) {
+            ProxyMessage proxyMessage = (ProxyMessage) msg;
+            long size = 0;
+            if (proxyMessage.getContent() != null) {
+                size += proxyMessage.getContent().readableBytes();
+            }
+            if (proxyMessage.getData() != null) {
+                size += proxyMessage.getData().length;
+            }
+            return size;
+        }
+
+        return 0;
+    }
+}
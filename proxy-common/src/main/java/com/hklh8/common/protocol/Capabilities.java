@@ -0,0 +1,86 @@
+package com.hklh8.common.protocol;
+
+/**
+ * 代理客户端与代理服务器在认证时协商的协议能力，按位组合
+ */
+public interface Capabilities {
+
+    /**
+     * 紧凑帧头：定长数字streamId代替uri字符串，后端服务器信息以mappingId传输
+     */
+    int FRAME_COMPACT = 1;
+
+    /**
+     * 多路复用：所有用户连接作为stream复用控制连接及少量隧道连接，按stream进行流量控制，依赖FRAME_COMPACT
+     */
+    int MULTIPLEX = 1 << 1;
+
+    /**
+     * 传输压缩：按映射配置的算法压缩P_TYPE_TRANSFER数据，帧头中带压缩标记，依赖FRAME_COMPACT
+     */
+    int COMPRESSION = 1 << 2;
+
+    /**
+     * 早期数据：TYPE_CONNECT消息在mappingId之后携带用户连接最先发送的数据，依赖FRAME_COMPACT
+     */
+    int EARLY_DATA = 1 << 3;
+
+    /**
+     * 预建数据连接：代理客户端预先建立数据连接并在服务器登记，用户连接直接使用空闲数据连接，依赖FRAME_COMPACT
+     */
+    int DATA_CHANNEL_POOL = 1 << 4;
+
+    /**
+     * 运行统计：代理客户端定时在控制连接上发送TYPE_STATS消息，统计按mappingId汇总，依赖FRAME_COMPACT
+     */
+    int STATS = 1 << 5;
+
+    /**
+     * 平滑下线：代理客户端停止前发送TYPE_DRAIN，服务器不再向其分配新的用户连接，已有的用户连接继续传输
+     */
+    int DRAIN = 1 << 6;
+
+    /**
+     * 端口段映射：TYPE_MAPPINGS中一个端口段只下发一个条目，不支持的客户端按端口展开，依赖FRAME_COMPACT
+     */
+    int PORT_RANGE = 1 << 7;
+
+    /**
+     * 本端支持的全部能力
+     */
+    int SUPPORTED = FRAME_COMPACT | MULTIPLEX | COMPRESSION | EARLY_DATA | DATA_CHANNEL_POOL | STATS | DRAIN | PORT_RANGE;
+
+    /**
+     * 解析以逗号分隔的能力名称：compact、multiplex、compression、earlydata、pool、stats、drain、range，为空时返回全部能力
+     */
+    static int parse(String names) {
+        if (names == null || names.trim().isEmpty()) {
+            return SUPPORTED;
+        }
+
+        int capabilities = 0;
+        for (String name : names.split(",")) {
+            name = name.trim();
+            if ("compact".equalsIgnoreCase(name)) {
+                capabilities |= FRAME_COMPACT;
+            } else if ("multiplex".equalsIgnoreCase(name)) {
+                capabilities |= MULTIPLEX;
+            } else if ("compression".equalsIgnoreCase(name)) {
+                capabilities |= COMPRESSION;
+            } else if ("earlydata".equalsIgnoreCase(name)) {
+                capabilities |= EARLY_DATA;
+            } else if ("pool".equalsIgnoreCase(name)) {
+                capabilities |= DATA_CHANNEL_POOL;
+            } else if ("stats".equalsIgnoreCase(name)) {
+                capabilities |= STATS;
+            } else if ("drain".equalsIgnoreCase(name)) {
+                capabilities |= DRAIN;
+            } else if ("range".equalsIgnoreCase(name)) {
+                capabilities |= PORT_RANGE;
+            } else if (!name.isEmpty() && !"none".equalsIgnoreCase(name)) {
+                throw new IllegalArgumentException("未知的协议能力: " + name);
+            }
+        }
+        return capabilities;
+    }
+}
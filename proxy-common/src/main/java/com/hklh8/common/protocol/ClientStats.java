@@ -0,0 +1,216 @@
+package com.hklh8.common.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 代理客户端在一个统计周期内的运行统计，由TYPE_STATS消息携带，计数都是本周期的增量
+ * <p>
+ * 控制连接的往返时间反映代理客户端与服务器之间的网络延迟，各映射的后端连接耗时反映后端服务器的响应速度
+ */
+public class ClientStats {
+
+    public static final byte VERSION = 1;
+
+    private static final int MAPPING_LENGTH = 4 + 4 + 4 + 8 + 4 + 4 + 8 + 8;
+
+    /**
+     * 控制连接的往返时间，-1表示还没有测量
+     */
+    private int rttMillis = -1;
+
+    private long poolHits;
+
+    private long poolMisses;
+
+    private int poolIdle;
+
+    private List<MappingStats> mappings = new ArrayList<>();
+
+    public int getRttMillis() {
+        return rttMillis;
+    }
+
+    public void setRttMillis(int rttMillis) {
+        this.rttMillis = rttMillis;
+    }
+
+    public long getPoolHits() {
+        return poolHits;
+    }
+
+    public void setPoolHits(long poolHits) {
+        this.poolHits = poolHits;
+    }
+
+    public long getPoolMisses() {
+        return poolMisses;
+    }
+
+    public void setPoolMisses(long poolMisses) {
+        this.poolMisses = poolMisses;
+    }
+
+    public int getPoolIdle() {
+        return poolIdle;
+    }
+
+    public void setPoolIdle(int poolIdle) {
+        this.poolIdle = poolIdle;
+    }
+
+    public List<MappingStats> getMappings() {
+        return Collections.unmodifiableList(mappings);
+    }
+
+    public void addMapping(MappingStats mapping) {
+        mappings.add(mapping);
+    }
+
+    /**
+     * 格式：版本(1) + 往返时间(4) + 连接池命中(8) + 连接池未命中(8) + 空闲连接数(4) + 映射数(4) +
+     * [mappingId(4) + 后端连接数(4) + 后端连接失败数(4) + 后端连接耗时合计(8) + 最大后端连接耗时(4) + keep-alive复用数(4) +
+     * 发往后端字节数(8) + 后端返回字节数(8)]...，新版本只在末尾追加字段
+     */
+    public byte[] encode() {
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + 8 + 8 + 4 + 4 + mappings.size() * MAPPING_LENGTH);
+        buf.put(VERSION);
+        buf.putInt(rttMillis);
+        buf.putLong(poolHits);
+        buf.putLong(poolMisses);
+        buf.putInt(poolIdle);
+        buf.putInt(mappings.size());
+        for (MappingStats mapping : mappings) {
+            buf.putInt(mapping.mappingId);
+            buf.putInt(mapping.connects);
+            buf.putInt(mapping.connectFailures);
+            buf.putLong(mapping.connectMillis);
+            buf.putInt(mapping.maxConnectMillis);
+            buf.putInt(mapping.keepAliveReuses);
+            buf.putLong(mapping.bytesToBackend);
+            buf.putLong(mapping.bytesFromBackend);
+        }
+        return buf.array();
+    }
+
+    public static ClientStats decode(byte[] data) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        buf.get();
+        ClientStats stats = new ClientStats();
+        stats.rttMillis = buf.getInt();
+        stats.poolHits = buf.getLong();
+        stats.poolMisses = buf.getLong();
+        stats.poolIdle = buf.getInt();
+        int size = buf.getInt();
+        for (int i = 0; i < size && buf.remaining() >= MAPPING_LENGTH; i++) {
+            MappingStats mapping = new MappingStats(buf.getInt());
+            mapping.connects = buf.getInt();
+            mapping.connectFailures = buf.getInt();
+            mapping.connectMillis = buf.getLong();
+            mapping.maxConnectMillis = buf.getInt();
+            mapping.keepAliveReuses = buf.getInt();
+            mapping.bytesToBackend = buf.getLong();
+            mapping.bytesFromBackend = buf.getLong();
+            stats.mappings.add(mapping);
+        }
+        return stats;
+    }
+
+    /**
+     * 一个映射在统计周期内的后端连接与流量
+     */
+    public static class MappingStats {
+
+        private final int mappingId;
+
+        private int connects;
+
+        private int connectFailures;
+
+        /**
+         * 成功的后端连接耗时合计，除以connects得到平均耗时
+         */
+        private long connectMillis;
+
+        private int maxConnectMillis;
+
+        private int keepAliveReuses;
+
+        private long bytesToBackend;
+
+        private long bytesFromBackend;
+
+        public MappingStats(int mappingId) {
+            this.mappingId = mappingId;
+        }
+
+        public int getMappingId() {
+            return mappingId;
+        }
+
+        public int getConnects() {
+            return connects;
+        }
+
+        public void setConnects(int connects) {
+            this.connects = connects;
+        }
+
+        public int getConnectFailures() {
+            return connectFailures;
+        }
+
+        public void setConnectFailures(int connectFailures) {
+            this.connectFailures = connectFailures;
+        }
+
+        public long getConnectMillis() {
+            return connectMillis;
+        }
+
+        public void setConnectMillis(long connectMillis) {
+            this.connectMillis = connectMillis;
+        }
+
+        public int getMaxConnectMillis() {
+            return maxConnectMillis;
+        }
+
+        public void setMaxConnectMillis(int maxConnectMillis) {
+            this.maxConnectMillis = maxConnectMillis;
+        }
+
+        public int getKeepAliveReuses() {
+            return keepAliveReuses;
+        }
+
+        public void setKeepAliveReuses(int keepAliveReuses) {
+            this.keepAliveReuses = keepAliveReuses;
+        }
+
+        public long getBytesToBackend() {
+            return bytesToBackend;
+        }
+
+        public void setBytesToBackend(long bytesToBackend) {
+            this.bytesToBackend = bytesToBackend;
+        }
+
+        public long getBytesFromBackend() {
+            return bytesFromBackend;
+        }
+
+        public void setBytesFromBackend(long bytesFromBackend) {
+            this.bytesFromBackend = bytesFromBackend;
+        }
+
+        /**
+         * 本周期是否有数据，没有数据的映射不发送
+         */
+        public boolean isEmpty() {
+            return connects == 0 && connectFailures == 0 && keepAliveReuses == 0 && bytesToBackend == 0 && bytesFromBackend == 0;
+        }
+    }
+}
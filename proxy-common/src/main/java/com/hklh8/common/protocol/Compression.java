@@ -0,0 +1,194 @@
+package com.hklh8.common.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.DecoderException;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 传输数据压缩算法
+ * <p>
+ * 压缩后的数据格式为 [原始长度(4)][压缩数据]，帧头中带有FLAG_COMPRESSED标记及算法编号
+ */
+public final class Compression {
+
+    public static final byte NONE = 0x00;
+
+    public static final byte LZ4 = 0x01;
+
+    public static final byte DEFLATE = 0x02;
+
+    private static final int ORIGINAL_LENGTH_SIZE = 4;
+
+    /**
+     * 解压后数据的最大长度，防止错误数据导致分配过大的内存
+     */
+    private static final int MAX_ORIGINAL_LENGTH = 16 * 1024 * 1024;
+
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private Compression() {
+    }
+
+    /**
+     * 根据配置中的算法名称（none、lz4、deflate）获取算法编号
+     */
+    public static byte valueOf(String name) {
+        if (name == null || name.isEmpty() || "none".equalsIgnoreCase(name)) {
+            return NONE;
+        } else if ("lz4".equalsIgnoreCase(name)) {
+            return LZ4;
+        } else if ("deflate".equalsIgnoreCase(name)) {
+            return DEFLATE;
+        }
+        throw new IllegalArgumentException("不支持的压缩算法: " + name);
+    }
+
+    /**
+     * 压缩数据，不改变src的读位置
+     *
+     * @return 压缩后的数据，压缩后没有变小时返回null
+     */
+    public static ByteBuf compress(byte compression, ByteBuf src, ByteBufAllocator alloc) {
+        int length = src.readableBytes();
+        byte[] in;
+        int inOff;
+        if (src.hasArray()) {
+            in = src.array();
+            inOff = src.arrayOffset() + src.readerIndex();
+        } else {
+            in = new byte[length];
+            inOff = 0;
+            src.getBytes(src.readerIndex(), in);
+        }
+
+        int maxLength = compression == LZ4 ? Lz4Codec.maxCompressedLength(length) : length;
+        ByteBuf out = alloc.heapBuffer(ORIGINAL_LENGTH_SIZE + maxLength);
+        byte[] outArray = out.array();
+        int outOff = out.arrayOffset() + ORIGINAL_LENGTH_SIZE;
+
+        int compressedLength;
+        if (compression == LZ4) {
+            compressedLength = Lz4Codec.compress(in, inOff, length, outArray, outOff);
+        } else if (compression == DEFLATE) {
+            compressedLength = deflate(in, inOff, length, outArray, outOff, maxLength);
+        } else {
+            compressedLength = -1;
+        }
+
+        if (compressedLength < 0 || compressedLength >= length) {
+            out.release();
+            return null;
+        }
+
+        out.writeInt(length);
+        out.writerIndex(ORIGINAL_LENGTH_SIZE + compressedLength);
+        return out;
+    }
+
+    /**
+     * 解压数据，不改变src的读位置
+     */
+    public static ByteBuf decompress(byte compression, ByteBuf src, ByteBufAllocator alloc) {
+        if (src.readableBytes() < ORIGINAL_LENGTH_SIZE) {
+            throw new DecoderException("压缩数据长度错误: " + src.readableBytes());
+        }
+        int originalLength = src.getInt(src.readerIndex());
+        int length = src.readableBytes() - ORIGINAL_LENGTH_SIZE;
+        if (originalLength < 0 || originalLength > MAX_ORIGINAL_LENGTH) {
+            throw new DecoderException("压缩数据原始长度错误: " + originalLength);
+        }
+        byte[] in = new byte[length];
+        src.getBytes(src.readerIndex() + ORIGINAL_LENGTH_SIZE, in);
+
+        ByteBuf out = alloc.heapBuffer(originalLength);
+        try {
+            byte[] outArray = out.array();
+            int outOff = out.arrayOffset();
+            if (compression == LZ4) {
+                Lz4Codec.decompress(in, 0, length, outArray, outOff, originalLength);
+            } else if (compression == DEFLATE) {
+                inflate(in, outArray, outOff, originalLength);
+            } else {
+                throw new DecoderException("不支持的压缩算法: " + compression);
+            }
+        } catch (RuntimeException e) {
+            out.release();
+            if (e instanceof DecoderException) {
+                throw e;
+            }
+            throw new DecoderException(e);
+        }
+
+        out.writerIndex(originalLength);
+        return out;
+    }
+
+    /**
+     * 取出传输消息中的数据，压缩过的数据解压为新的ByteBuf，否则为content增加一个引用，调用方负责释放
+     */
+    public static ByteBuf content(ProxyMessage proxyMessage, ByteBufAllocator alloc) {
+        if (proxyMessage.getCompression() == NONE) {
+            return proxyMessage.getContent().retain();
+        }
+        return decompress(proxyMessage.getCompression(), proxyMessage.getContent(), alloc);
+    }
+
+    /**
+     * @return 压缩后的长度，超过maxLength时返回-1
+     */
+    private static int deflate(byte[] in, int inOff, int length, byte[] out, int outOff, int maxLength) {
+        Deflater deflater = DEFLATER.get();
+        try {
+            deflater.setInput(in, inOff, length);
+            deflater.finish();
+            int compressedLength = 0;
+            while (!deflater.finished()) {
+                if (compressedLength >= maxLength) {
+                    return -1;
+                }
+                compressedLength += deflater.deflate(out, outOff + compressedLength, maxLength - compressedLength);
+            }
+            return compressedLength;
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    private static void inflate(byte[] in, byte[] out, int outOff, int originalLength) {
+        Inflater inflater = INFLATER.get();
+        try {
+            inflater.setInput(in);
+            int length = 0;
+            while (length < originalLength && !inflater.finished()) {
+                int n = inflater.inflate(out, outOff + length, originalLength - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != originalLength) {
+                throw new DecoderException("deflate数据错误，解压长度不一致");
+            }
+        } catch (DataFormatException e) {
+            throw new DecoderException(e);
+        } finally {
+            inflater.reset();
+        }
+    }
+}
@@ -7,7 +7,27 @@ public interface Constants {
 
     AttributeKey<Channel> NEXT_CHANNEL = AttributeKey.newInstance("nxt_channel");
 
-    AttributeKey<String> USER_ID = AttributeKey.newInstance("user_id");
+    AttributeKey<Integer> USER_ID = AttributeKey.newInstance("user_id");
 
     AttributeKey<String> CLIENT_KEY = AttributeKey.newInstance("client_key");
+
+    /**
+     * 连接协商后的协议能力，见 {@link Capabilities}
+     */
+    AttributeKey<Integer> CAPABILITIES = AttributeKey.newInstance("capabilities");
+
+    /**
+     * 控制连接及多路复用隧道连接认证时的协商结果，见 {@link Handshake}
+     */
+    AttributeKey<Handshake> HANDSHAKE = AttributeKey.newInstance("handshake");
+
+    /**
+     * 多路复用模式下用户连接（服务端）或后端连接（客户端）的流量控制窗口，非多路复用连接没有该属性
+     */
+    AttributeKey<StreamWindow> STREAM_WINDOW = AttributeKey.newInstance("stream_window");
+
+    /**
+     * 映射配置了传输压缩时用户连接（服务端）或后端连接（客户端）的压缩状态，没有压缩的连接没有该属性
+     */
+    AttributeKey<StreamCompressor> STREAM_COMPRESSOR = AttributeKey.newInstance("stream_compressor");
 }
@@ -0,0 +1,262 @@
+package com.hklh8.common.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 认证时交换的协议版本与能力
+ * <p>
+ * 客户端在C_TYPE_AUTH消息的数据中发送本端的hello，服务器协商后在TYPE_AUTH_ACK消息中返回结果。
+ * 格式为 [版本(1)] + [tag(1) + 长度(2) + 值]...，不认识的tag直接跳过，新增字段不影响旧版本。
+ * 旧版本客户端（包括go客户端）认证消息不带数据，服务器不返回结果，继续使用原有帧格式
+ */
+public class Handshake {
+
+    /**
+     * 当前协议版本
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * 传输不加密
+     */
+    public static final int ENCRYPTION_NONE = 1;
+
+    /**
+     * 隧道连接使用SSL/TLS
+     */
+    public static final int ENCRYPTION_TLS = 1 << 1;
+
+    /**
+     * 协商的最大帧长度下限：帧头（包括最长255字节的uri）之外至少还能携带1KB数据
+     */
+    public static final int MIN_FRAME_LENGTH = 2 * 1024;
+
+    private static final byte TAG_CAPABILITIES = 0x01;
+
+    private static final byte TAG_MAX_FRAME_LENGTH = 0x02;
+
+    private static final byte TAG_COMPRESSIONS = 0x03;
+
+    private static final byte TAG_ENCRYPTIONS = 0x04;
+
+    private static final byte TAG_TUNNEL_ID = 0x05;
+
+    private static final byte TAG_WEIGHT = 0x06;
+
+    private int version = VERSION;
+
+    /**
+     * 协议能力，见 {@link Capabilities}
+     */
+    private int capabilities;
+
+    /**
+     * hello中为本端能解码的最大帧长度，协商结果为两端的较小值
+     */
+    private int maxFrameLength;
+
+    /**
+     * 支持的压缩算法，按位组合，第n位表示算法编号n，见 {@link Compression}
+     */
+    private int compressions;
+
+    /**
+     * hello中为本端接受的加密方式，协商结果为隧道连接实际使用的加密方式
+     */
+    private int encryptions;
+
+    private int tunnelId;
+
+    /**
+     * 代理客户端实例的负载均衡权重，0表示未指定
+     */
+    private int weight;
+
+    /**
+     * 压缩算法对应的位
+     */
+    public static int compressionBit(byte compression) {
+        return 1 << compression;
+    }
+
+    public static int supportedCompressions() {
+        return compressionBit(Compression.LZ4) | compressionBit(Compression.DEFLATE);
+    }
+
+    /**
+     * 服务器根据客户端的hello协商，每一项都取两端都支持的最快方式
+     *
+     * @param hello          客户端hello
+     * @param enabled        服务器开启的协议能力
+     * @param maxFrameLength 服务器能解码的最大帧长度
+     * @param encryption     隧道连接实际使用的加密方式
+     * @return 协商结果，客户端不接受隧道连接的加密方式或声明的最大帧长度小于 {@link #MIN_FRAME_LENGTH} 时返回null
+     */
+    public static Handshake negotiate(Handshake hello, int enabled, int maxFrameLength, int encryption) {
+        if ((hello.encryptions & encryption) == 0) {
+            return null;
+        }
+        if (hello.maxFrameLength > 0 && hello.maxFrameLength < MIN_FRAME_LENGTH) {
+            return null;
+        }
+
+        int capabilities = hello.capabilities & Capabilities.SUPPORTED & enabled;
+        if ((capabilities & Capabilities.FRAME_COMPACT) == 0) {
+            // 多路复用依赖紧凑帧头中的streamId，压缩标记只存在于紧凑帧头中，早期数据跟在mappingId之后，数据连接用tunnelId登记
+            capabilities &= ~(Capabilities.MULTIPLEX | Capabilities.COMPRESSION | Capabilities.EARLY_DATA | Capabilities.DATA_CHANNEL_POOL
+                    | Capabilities.STATS | Capabilities.PORT_RANGE);
+        }
+
+        int compressions = hello.compressions & supportedCompressions();
+        if (compressions == 0) {
+            capabilities &= ~Capabilities.COMPRESSION;
+        } else if ((capabilities & Capabilities.COMPRESSION) == 0) {
+            compressions = 0;
+        }
+
+        Handshake result = new Handshake();
+        result.version = Math.min(VERSION, hello.version);
+        result.capabilities = capabilities;
+        result.maxFrameLength = hello.maxFrameLength > 0 ? Math.min(hello.maxFrameLength, maxFrameLength) : maxFrameLength;
+        result.compressions = compressions;
+        result.encryptions = encryption;
+        return result;
+    }
+
+    public boolean hasCapability(int capability) {
+        return (capabilities & capability) != 0;
+    }
+
+    public boolean supportsCompression(byte compression) {
+        return (compressions & compressionBit(compression)) != 0;
+    }
+
+    public byte[] encode() {
+        ByteBuffer buf = ByteBuffer.allocate(1 + 6 * (1 + 2 + 4));
+        buf.put((byte) version);
+        putInt(buf, TAG_CAPABILITIES, capabilities);
+        putInt(buf, TAG_MAX_FRAME_LENGTH, maxFrameLength);
+        putInt(buf, TAG_COMPRESSIONS, compressions);
+        putInt(buf, TAG_ENCRYPTIONS, encryptions);
+        if (tunnelId != 0) {
+            putInt(buf, TAG_TUNNEL_ID, tunnelId);
+        }
+        if (weight != 0) {
+            putInt(buf, TAG_WEIGHT, weight);
+        }
+
+        byte[] data = new byte[buf.position()];
+        System.arraycopy(buf.array(), 0, data, 0, data.length);
+        return data;
+    }
+
+    public static Handshake decode(byte[] data) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        Handshake handshake = new Handshake();
+        handshake.version = buf.get() & 0xFF;
+        while (buf.remaining() >= 3) {
+            byte tag = buf.get();
+            int length = buf.getShort() & 0xFFFF;
+            if (length > buf.remaining()) {
+                break;
+            }
+
+            int end = buf.position() + length;
+            if (length >= 4) {
+                int value = buf.getInt();
+                switch (tag) {
+                    case TAG_CAPABILITIES:
+                        handshake.capabilities = value;
+                        break;
+                    case TAG_MAX_FRAME_LENGTH:
+                        handshake.maxFrameLength = value;
+                        break;
+                    case TAG_COMPRESSIONS:
+                        handshake.compressions = value;
+                        break;
+                    case TAG_ENCRYPTIONS:
+                        handshake.encryptions = value;
+                        break;
+                    case TAG_TUNNEL_ID:
+                        handshake.tunnelId = value;
+                        break;
+                    case TAG_WEIGHT:
+                        handshake.weight = value;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            buf.position(end);
+        }
+        return handshake;
+    }
+
+    private static void putInt(ByteBuffer buf, byte tag, int value) {
+        buf.put(tag);
+        buf.putShort((short) 4);
+        buf.putInt(value);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    public int getCapabilities() {
+        return capabilities;
+    }
+
+    public void setCapabilities(int capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    public void setMaxFrameLength(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public int getCompressions() {
+        return compressions;
+    }
+
+    public void setCompressions(int compressions) {
+        this.compressions = compressions;
+    }
+
+    public int getEncryptions() {
+        return encryptions;
+    }
+
+    public void setEncryptions(int encryptions) {
+        this.encryptions = encryptions;
+    }
+
+    public int getTunnelId() {
+        return tunnelId;
+    }
+
+    public void setTunnelId(int tunnelId) {
+        this.tunnelId = tunnelId;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+    @Override
+    public String toString() {
+        return "Handshake [version=" + version + ", capabilities=" + capabilities + ", maxFrameLength=" + maxFrameLength
+                + ", compressions=" + compressions + ", encryptions=" + encryptions + ", tunnelId=" + tunnelId + ", weight=" + weight + "]";
+    }
+}
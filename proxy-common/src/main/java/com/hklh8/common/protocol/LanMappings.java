@@ -0,0 +1,307 @@
+package com.hklh8.common.protocol;
+
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * mappingId与后端服务器信息（ip:port）、传输压缩算法及映射协议的映射表，认证成功及配置变化时由服务器下发，创建后不再修改
+ * <p>
+ * 端口段映射占用一段连续的mappingId，只保存一个条目，后端服务器端口按mappingId相对段起始的偏移量计算
+ */
+public class LanMappings {
+
+    /**
+     * 按TCP转发，后端连接随用户连接关闭
+     */
+    public static final byte PROTOCOL_TCP = 0x00;
+
+    /**
+     * 按HTTP/1.x转发，客户端跟踪请求与响应的边界，空闲的keep-alive后端连接放回连接池复用
+     */
+    public static final byte PROTOCOL_HTTP = 0x01;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final LanMappings EMPTY = new LanMappings(new IntObjectHashMap<String>(), new IntObjectHashMap<Byte>(),
+            new IntObjectHashMap<Byte>(), new Range[0]);
+
+    private final IntObjectMap<String> lans;
+
+    private final IntObjectMap<Byte> compressions;
+
+    /**
+     * 只包含非TCP的映射
+     */
+    private final IntObjectMap<Byte> protocols;
+
+    /**
+     * 端口段映射，按起始mappingId排序
+     */
+    private final Range[] ranges;
+
+    private LanMappings(IntObjectMap<String> lans, IntObjectMap<Byte> compressions, IntObjectMap<Byte> protocols, Range[] ranges) {
+        this.lans = lans;
+        this.compressions = compressions;
+        this.protocols = protocols;
+        this.ranges = ranges;
+    }
+
+    /**
+     * 根据配置中的协议名称（tcp、http）获取协议编号，为空时为tcp
+     */
+    public static byte protocolValueOf(String name) {
+        if (name == null || name.isEmpty() || "tcp".equalsIgnoreCase(name)) {
+            return PROTOCOL_TCP;
+        } else if ("http".equalsIgnoreCase(name)) {
+            return PROTOCOL_HTTP;
+        }
+        throw new IllegalArgumentException("不支持的映射协议: " + name);
+    }
+
+    /**
+     * @param mappings     mappingId与后端服务器信息
+     * @param compressions mappingId与压缩算法，没有的按不压缩处理
+     */
+    public static LanMappings of(Map<Integer, String> mappings, Map<Integer, Byte> compressions) {
+        return of(mappings, compressions, Collections.<Integer, Byte>emptyMap());
+    }
+
+    /**
+     * @param mappings     mappingId与后端服务器信息
+     * @param compressions mappingId与压缩算法，没有的按不压缩处理
+     * @param protocols    mappingId与映射协议，没有的按TCP处理
+     */
+    public static LanMappings of(Map<Integer, String> mappings, Map<Integer, Byte> compressions, Map<Integer, Byte> protocols) {
+        return of(mappings, compressions, protocols, Collections.<Range>emptyList());
+    }
+
+    /**
+     * @param mappings     mappingId与后端服务器信息
+     * @param compressions mappingId与压缩算法，没有的按不压缩处理
+     * @param protocols    mappingId与映射协议，没有的按TCP处理
+     * @param ranges       端口段映射，mappingId与mappings中的不能重叠
+     */
+    public static LanMappings of(Map<Integer, String> mappings, Map<Integer, Byte> compressions, Map<Integer, Byte> protocols,
+                                 List<Range> ranges) {
+        IntObjectMap<Byte> lanProtocols = new IntObjectHashMap<>();
+        for (Map.Entry<Integer, Byte> entry : protocols.entrySet()) {
+            if (entry.getValue() != null && entry.getValue() != PROTOCOL_TCP && mappings.containsKey(entry.getKey())) {
+                lanProtocols.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        IntObjectMap<String> lans = new IntObjectHashMap<>();
+        IntObjectMap<Byte> lanCompressions = new IntObjectHashMap<>();
+        for (Map.Entry<Integer, String> entry : mappings.entrySet()) {
+            lans.put(entry.getKey(), entry.getValue());
+            Byte compression = compressions.get(entry.getKey());
+            lanCompressions.put(entry.getKey(), compression == null ? Compression.NONE : compression);
+        }
+        return new LanMappings(lans, lanCompressions, lanProtocols, sort(ranges.toArray(new Range[ranges.size()])));
+    }
+
+    private static Range[] sort(Range[] ranges) {
+        Arrays.sort(ranges, (a, b) -> Integer.compare(a.mappingId, b.mappingId));
+        return ranges;
+    }
+
+    /**
+     * 端口段映射中后端服务器信息按偏移量换算：每个后端服务器的端口加上offset，unix:路径不变
+     */
+    public static String offsetLan(String lan, int offset) {
+        if (offset == 0) {
+            return lan;
+        }
+
+        StringBuilder sb = new StringBuilder(lan.length() + 4);
+        for (String item : lan.split(",")) {
+            item = item.trim();
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+
+            int index = item.lastIndexOf(':');
+            if (item.startsWith("unix:") || index < 0) {
+                sb.append(item);
+            } else {
+                sb.append(item, 0, index + 1).append(Integer.parseInt(item.substring(index + 1)) + offset);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 二分查找mappingId所在的端口段映射，没有时返回null
+     */
+    private Range findRange(int mappingId) {
+        int low = 0;
+        int high = ranges.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Range range = ranges[mid];
+            if (mappingId < range.mappingId) {
+                high = mid - 1;
+            } else if (mappingId - range.mappingId >= range.count) {
+                low = mid + 1;
+            } else {
+                return range;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 根据mappingId获取后端服务器信息
+     */
+    public String get(int mappingId) {
+        String lan = lans.get(mappingId);
+        if (lan == null) {
+            Range range = findRange(mappingId);
+            if (range != null) {
+                lan = offsetLan(range.lan, mappingId - range.mappingId);
+            }
+        }
+        return lan;
+    }
+
+    /**
+     * 根据mappingId获取传输压缩算法
+     */
+    public byte getCompression(int mappingId) {
+        Byte compression = compressions.get(mappingId);
+        if (compression == null) {
+            Range range = findRange(mappingId);
+            return range == null ? Compression.NONE : range.compression;
+        }
+        return compression;
+    }
+
+    /**
+     * 根据mappingId获取映射协议
+     */
+    public byte getProtocol(int mappingId) {
+        Byte protocol = protocols.get(mappingId);
+        if (protocol == null) {
+            Range range = findRange(mappingId);
+            return range == null ? PROTOCOL_TCP : range.protocol;
+        }
+        return protocol;
+    }
+
+    /**
+     * 格式：条目数(4) + [mappingId(4) + 压缩算法(1) + lan长度(2) + lan]...，
+     * 之后为非TCP映射的协议：条目数(4) + [mappingId(4) + 协议(1)]...，
+     * 之后为端口段映射：条目数(4) + [起始mappingId(4) + 数量(4) + 压缩算法(1) + 协议(1) + lan长度(2) + lan]...，旧版本解码时忽略后两部分
+     */
+    public byte[] encode() {
+        int length = 4 + 4 + protocols.size() * (4 + 1) + 4;
+        byte[][] lanBytes = new byte[lans.size()][];
+        int i = 0;
+        for (IntObjectMap.Entry<String> entry : lans.entries()) {
+            lanBytes[i] = entry.value().getBytes(UTF_8);
+            length += 4 + 1 + 2 + lanBytes[i].length;
+            i++;
+        }
+        byte[][] rangeLanBytes = new byte[ranges.length][];
+        for (i = 0; i < ranges.length; i++) {
+            rangeLanBytes[i] = ranges[i].lan.getBytes(UTF_8);
+            length += 4 + 4 + 1 + 1 + 2 + rangeLanBytes[i].length;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        buf.putInt(lans.size());
+        i = 0;
+        for (IntObjectMap.Entry<String> entry : lans.entries()) {
+            buf.putInt(entry.key());
+            buf.put(getCompression(entry.key()));
+            buf.putShort((short) lanBytes[i].length);
+            buf.put(lanBytes[i]);
+            i++;
+        }
+
+        buf.putInt(protocols.size());
+        for (IntObjectMap.Entry<Byte> entry : protocols.entries()) {
+            buf.putInt(entry.key());
+            buf.put(entry.value());
+        }
+
+        buf.putInt(ranges.length);
+        for (i = 0; i < ranges.length; i++) {
+            buf.putInt(ranges[i].mappingId);
+            buf.putInt(ranges[i].count);
+            buf.put(ranges[i].compression);
+            buf.put(ranges[i].protocol);
+            buf.putShort((short) rangeLanBytes[i].length);
+            buf.put(rangeLanBytes[i]);
+        }
+        return buf.array();
+    }
+
+    public static LanMappings decode(byte[] data) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        int size = buf.getInt();
+        IntObjectMap<String> lans = new IntObjectHashMap<>();
+        IntObjectMap<Byte> compressions = new IntObjectHashMap<>();
+        for (int i = 0; i < size; i++) {
+            int mappingId = buf.getInt();
+            compressions.put(mappingId, buf.get());
+            byte[] lanBytes = new byte[buf.getShort() & 0xFFFF];
+            buf.get(lanBytes);
+            lans.put(mappingId, new String(lanBytes, UTF_8));
+        }
+
+        IntObjectMap<Byte> protocols = new IntObjectHashMap<>();
+        if (buf.remaining() >= 4) {
+            int protocolSize = buf.getInt();
+            for (int i = 0; i < protocolSize; i++) {
+                protocols.put(buf.getInt(), buf.get());
+            }
+        }
+
+        Range[] ranges = new Range[0];
+        if (buf.remaining() >= 4) {
+            ranges = new Range[buf.getInt()];
+            for (int i = 0; i < ranges.length; i++) {
+                int mappingId = buf.getInt();
+                int count = buf.getInt();
+                byte compression = buf.get();
+                byte protocol = buf.get();
+                byte[] lanBytes = new byte[buf.getShort() & 0xFFFF];
+                buf.get(lanBytes);
+                ranges[i] = new Range(mappingId, count, new String(lanBytes, UTF_8), compression, protocol);
+            }
+        }
+        return new LanMappings(lans, compressions, protocols, sort(ranges));
+    }
+
+    /**
+     * 端口段映射：mappingId在[mappingId, mappingId + count)内的映射，lan为段起始端口对应的后端服务器信息
+     */
+    public static class Range {
+
+        private final int mappingId;
+
+        private final int count;
+
+        private final String lan;
+
+        private final byte compression;
+
+        private final byte protocol;
+
+        public Range(int mappingId, int count, String lan, byte compression, byte protocol) {
+            this.mappingId = mappingId;
+            this.count = count;
+            this.lan = lan;
+            this.compression = compression;
+            this.protocol = protocol;
+        }
+    }
+}
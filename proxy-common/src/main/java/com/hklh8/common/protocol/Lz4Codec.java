@@ -0,0 +1,207 @@
+package com.hklh8.common.protocol;
+
+import io.netty.handler.codec.DecoderException;
+
+import java.util.Arrays;
+
+/**
+ * LZ4块格式压缩，单遍贪心匹配，速度优先
+ * <p>
+ * 每个序列为 [token][字面量长度扩展][字面量][偏移(2，小端)][匹配长度扩展]，最后一个序列只有字面量，
+ * 与标准LZ4块格式兼容
+ */
+public final class Lz4Codec {
+
+    private static final int MIN_MATCH = 4;
+
+    private static final int HASH_LOG = 12;
+
+    /**
+     * 最后5个字节必须是字面量
+     */
+    private static final int LAST_LITERALS = 5;
+
+    /**
+     * 最后一个匹配必须在结束前12个字节之前开始
+     */
+    private static final int MF_LIMIT = 12;
+
+    private static final int MAX_DISTANCE = 65535;
+
+    private static final int RUN_MASK = 15;
+
+    private static final ThreadLocal<int[]> HASH_TABLE = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1 << HASH_LOG];
+        }
+    };
+
+    private Lz4Codec() {
+    }
+
+    /**
+     * 压缩后的最大长度
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * @return 写入dst的字节数，dst至少需要maxCompressedLength(srcLen)字节
+     */
+    public static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        int srcEnd = srcOff + srcLen;
+        int mfLimit = srcEnd - MF_LIMIT;
+        int matchLimit = srcEnd - LAST_LITERALS;
+
+        int ip = srcOff;
+        int anchor = srcOff;
+        int op = dstOff;
+
+        int[] table = HASH_TABLE.get();
+        Arrays.fill(table, -1);
+
+        while (ip < mfLimit) {
+            int sequence = readInt(src, ip);
+            int h = hash(sequence);
+            int ref = table[h];
+            table[h] = ip;
+            if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                ip++;
+                continue;
+            }
+
+            // 向前扩展匹配
+            while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                ip--;
+                ref--;
+            }
+
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                matchLength++;
+            }
+
+            op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, matchLength - MIN_MATCH);
+            ip += matchLength;
+            anchor = ip;
+        }
+
+        // 剩余部分作为最后一个序列的字面量
+        int literalLength = srcEnd - anchor;
+        int token = Math.min(literalLength, RUN_MASK) << 4;
+        dst[op++] = (byte) token;
+        op = writeLength(dst, op, literalLength);
+        System.arraycopy(src, anchor, dst, op, literalLength);
+        op += literalLength;
+
+        return op - dstOff;
+    }
+
+    /**
+     * 解压，dstLen为原始数据长度
+     */
+    public static void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) {
+        int ip = srcOff;
+        int srcEnd = srcOff + srcLen;
+        int op = dstOff;
+        int dstEnd = dstOff + dstLen;
+
+        while (ip < srcEnd) {
+            int token = src[ip++] & 0xFF;
+
+            int literalLength = token >>> 4;
+            if (literalLength == RUN_MASK) {
+                int b;
+                do {
+                    if (ip == srcEnd) {
+                        throw new DecoderException("LZ4数据错误，缺少字面量长度");
+                    }
+                    b = src[ip++] & 0xFF;
+                    literalLength += b;
+                    // 超过原始数据长度后不再累加，避免溢出，下面按越界处理
+                } while (b == 255 && literalLength <= dstLen);
+            }
+            if (literalLength > srcEnd - ip || literalLength > dstEnd - op) {
+                throw new DecoderException("LZ4数据错误，字面量越界");
+            }
+            System.arraycopy(src, ip, dst, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+
+            if (ip == srcEnd) {
+                break;
+            }
+
+            if (ip + 2 > srcEnd) {
+                throw new DecoderException("LZ4数据错误，缺少偏移");
+            }
+            int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+            ip += 2;
+            int ref = op - offset;
+            if (offset == 0 || ref < dstOff) {
+                throw new DecoderException("LZ4数据错误，偏移越界");
+            }
+
+            int matchLength = token & RUN_MASK;
+            if (matchLength == RUN_MASK) {
+                int b;
+                do {
+                    if (ip == srcEnd) {
+                        throw new DecoderException("LZ4数据错误，缺少匹配长度");
+                    }
+                    b = src[ip++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255 && matchLength <= dstLen);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > dstEnd - op) {
+                throw new DecoderException("LZ4数据错误，匹配越界");
+            }
+
+            // 匹配可能与输出重叠，逐字节复制
+            for (int i = 0; i < matchLength; i++) {
+                dst[op++] = dst[ref++];
+            }
+        }
+
+        if (op != dstEnd) {
+            throw new DecoderException("LZ4数据错误，解压长度不一致");
+        }
+    }
+
+    private static int writeSequence(byte[] src, int literalOff, int literalLength, byte[] dst, int op, int offset, int matchLength) {
+        int token = (Math.min(literalLength, RUN_MASK) << 4) | Math.min(matchLength, RUN_MASK);
+        dst[op++] = (byte) token;
+        op = writeLength(dst, op, literalLength);
+        System.arraycopy(src, literalOff, dst, op, literalLength);
+        op += literalLength;
+
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        return writeLength(dst, op, matchLength);
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        if (length < RUN_MASK) {
+            return op;
+        }
+
+        length -= RUN_MASK;
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] buf, int i) {
+        return (buf[i] & 0xFF) | ((buf[i + 1] & 0xFF) << 8) | ((buf[i + 2] & 0xFF) << 16) | ((buf[i + 3] & 0xFF) << 24);
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
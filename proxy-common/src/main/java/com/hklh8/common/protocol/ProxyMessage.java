@@ -1,11 +1,17 @@
 package com.hklh8.common.protocol;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ReferenceCounted;
+
 import java.util.Arrays;
 
 /**
  * 代理客户端与代理服务器消息交换协议
+ * <p>
+ * P_TYPE_TRANSFER消息的数据以ByteBuf形式携带(content)，引用计数委托给content，
+ * 读取、编解码、转发全程不复制数据
  */
-public class ProxyMessage {
+public class ProxyMessage implements ReferenceCounted {
 
     /**
      * 心跳消息
@@ -32,6 +38,46 @@ public class ProxyMessage {
      */
     public static final byte P_TYPE_TRANSFER = 0x05;
 
+    /**
+     * 认证结果消息，服务器返回协商后的协议能力与tunnelId
+     */
+    public static final byte TYPE_AUTH_ACK = 0x06;
+
+    /**
+     * 映射表消息，服务器下发mappingId与后端服务器信息的对应关系
+     */
+    public static final byte TYPE_MAPPINGS = 0x07;
+
+    /**
+     * 多路复用模式下归还stream发送额度的消息
+     */
+    public static final byte TYPE_WINDOW_UPDATE = 0x08;
+
+    /**
+     * 代理客户端在服务器登记空闲数据连接，数据为tunnelId
+     */
+    public static final byte TYPE_IDLE_DATA_CHANNEL = 0x09;
+
+    /**
+     * 代理客户端定时发送的运行统计，数据见 {@link ClientStats}
+     */
+    public static final byte TYPE_STATS = 0x0A;
+
+    /**
+     * 代理客户端请求平滑下线，服务器不再分配新的用户连接后回复同类型消息
+     */
+    public static final byte TYPE_DRAIN = 0x0B;
+
+    /**
+     * 紧凑帧头标志位，置于消息类型字节的最高位，帧头使用定长数字streamId代替uri字符串
+     */
+    public static final byte FLAG_COMPACT = (byte) 0x80;
+
+    /**
+     * 压缩标志位，只用于紧凑帧头的P_TYPE_TRANSFER消息，streamId之后带一个字节的压缩算法编号，见 {@link Compression}
+     */
+    public static final byte FLAG_COMPRESSED = 0x40;
+
     /**
      * 消息类型
      */
@@ -42,11 +88,26 @@ public class ProxyMessage {
      */
     private String uri;
 
+    /**
+     * 用户连接编号，紧凑帧头中以定长整数传输
+     */
+    private int streamId;
+
     /**
      * 消息传输数据
      */
     private byte[] data;
 
+    /**
+     * content的压缩算法，{@link Compression#NONE}表示没有压缩
+     */
+    private byte compression;
+
+    /**
+     * 代理传输数据（P_TYPE_TRANSFER），直接引用读取到的ByteBuf
+     */
+    private ByteBuf content;
+
     public void setUri(String uri) {
         this.uri = uri;
     }
@@ -55,6 +116,14 @@ public class ProxyMessage {
         return uri;
     }
 
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public void setStreamId(int streamId) {
+        this.streamId = streamId;
+    }
+
     public byte[] getData() {
         return data;
     }
@@ -63,6 +132,25 @@ public class ProxyMessage {
         this.data = data;
     }
 
+    public ByteBuf getContent() {
+        return content;
+    }
+
+    /**
+     * 设置传输数据，消息接管content的一个引用计数
+     */
+    public void setContent(ByteBuf content) {
+        this.content = content;
+    }
+
+    public byte getCompression() {
+        return compression;
+    }
+
+    public void setCompression(byte compression) {
+        this.compression = compression;
+    }
+
     public byte getType() {
         return type;
     }
@@ -71,9 +159,41 @@ public class ProxyMessage {
         this.type = type;
     }
 
+    @Override
+    public int refCnt() {
+        return content == null ? 1 : content.refCnt();
+    }
+
+    @Override
+    public ProxyMessage retain() {
+        if (content != null) {
+            content.retain();
+        }
+        return this;
+    }
+
+    @Override
+    public ProxyMessage retain(int increment) {
+        if (content != null) {
+            content.retain(increment);
+        }
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return content != null && content.release();
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return content != null && content.release(decrement);
+    }
+
     @Override
     public String toString() {
-        return "ProxyMessage [type=" + type + ", uri=" + uri + ", data=" + Arrays.toString(data) + "]";
+        return "ProxyMessage [type=" + type + ", uri=" + uri + ", streamId=" + streamId + ", data=" + Arrays.toString(data)
+                + ", content=" + (content == null ? null : content.readableBytes() + " bytes") + "]";
     }
 
 }
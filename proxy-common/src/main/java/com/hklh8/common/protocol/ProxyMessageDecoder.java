@@ -3,7 +3,15 @@ package com.hklh8.common.protocol;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.TooLongFrameException;
 
+/**
+ * 消息解码
+ * <p>
+ * 没有压缩的传输帧总是流式解码：帧头到达后，已到达的数据立即作为传输消息向后传递，不等待整个帧，
+ * 大帧不会在内存中累积，也不受maxFrameLength限制；其它消息及压缩过的传输帧仍然完整读取后再解码，
+ * 超过maxFrameLength时关闭连接
+ */
 public class ProxyMessageDecoder extends LengthFieldBasedFrameDecoder {
 
     private static final byte HEADER_SIZE = 4;
@@ -12,8 +20,30 @@ public class ProxyMessageDecoder extends LengthFieldBasedFrameDecoder {
 
     private static final int URI_LENGTH_SIZE = 1;
 
+    private static final int STREAM_ID_SIZE = 4;
+
+    private static final int COMPRESSION_SIZE = 1;
+
+    private final int maxFrameLength;
+
+    /**
+     * 正在流式解码的传输帧的streamId
+     */
+    private int streamingId;
+
+    /**
+     * 正在流式解码的传输帧还没有读取的数据长度
+     */
+    private int streamingRemaining;
+
+    /**
+     * 收到超过长度限制的帧后连接已经关闭，之后到达的数据全部丢弃
+     */
+    private boolean tooLongFrame;
+
     public ProxyMessageDecoder(int maxFrameLength, int lengthFieldOffset, int lengthFieldLength, int lengthAdjustment, int initialBytesToStrip) {
         super(maxFrameLength, lengthFieldOffset, lengthFieldLength, lengthAdjustment, initialBytesToStrip);
+        this.maxFrameLength = maxFrameLength;
     }
 
     /**
@@ -26,40 +56,186 @@ public class ProxyMessageDecoder extends LengthFieldBasedFrameDecoder {
      */
     public ProxyMessageDecoder(int maxFrameLength, int lengthFieldOffset, int lengthFieldLength, int lengthAdjustment, int initialBytesToStrip, boolean failFast) {
         super(maxFrameLength, lengthFieldOffset, lengthFieldLength, lengthAdjustment, initialBytesToStrip, failFast);
+        this.maxFrameLength = maxFrameLength;
     }
 
     @Override
-    protected ProxyMessage decode(ChannelHandlerContext ctx, ByteBuf buf) throws Exception {
-        ByteBuf in = (ByteBuf) super.decode(ctx, buf);
-        if (in == null) {
+    protected Object decode(ChannelHandlerContext ctx, ByteBuf buf) throws Exception {
+        if (streamingRemaining > 0) {
+            return decodeStreaming(buf);
+        }
+
+        if (tooLongFrame) {
+            buf.skipBytes(buf.readableBytes());
             return null;
         }
 
-        if (in.readableBytes() < HEADER_SIZE) {
+        if (buf.readableBytes() < HEADER_SIZE + TYPE_SIZE) {
             return null;
         }
 
-        int frameLength = in.readInt();
-        if (in.readableBytes() < frameLength) {
+        // 是否流式解码只由帧头决定，与整个帧是否已经到达无关
+        int frameLength = buf.getInt(buf.readerIndex());
+        if (frameLength >= TYPE_SIZE) {
+            int headerLength = transferHeaderLength(buf, frameLength);
+            if (headerLength < 0) {
+                return null;
+            }
+            if (headerLength > 0) {
+                startStreaming(buf, headerLength, frameLength);
+                return decodeStreaming(buf);
+            }
+        }
+
+        if (frameLength > maxFrameLength - HEADER_SIZE) {
+            // 跳过帧内容后无法确认之后的数据仍然对齐帧边界，直接关闭连接
+            tooLongFrame = true;
+            buf.skipBytes(buf.readableBytes());
+            ctx.close();
+            throw new TooLongFrameException("帧长度超过 " + maxFrameLength + ": " + frameLength);
+        }
+
+        return decodeFrame(ctx, buf);
+    }
+
+    /**
+     * 没有压缩并且带有数据的传输帧返回帧头长度，其它帧返回0，帧头还没有完整到达时返回-1
+     */
+    private static int transferHeaderLength(ByteBuf buf, int frameLength) {
+        int index = buf.readerIndex() + HEADER_SIZE;
+        byte type = buf.getByte(index);
+        int headerLength;
+        if ((type & ProxyMessage.FLAG_COMPACT) != 0) {
+            if ((byte) (type & ~ProxyMessage.FLAG_COMPACT) != ProxyMessage.P_TYPE_TRANSFER) {
+                return 0;
+            }
+            headerLength = TYPE_SIZE + STREAM_ID_SIZE;
+        } else {
+            if (type != ProxyMessage.P_TYPE_TRANSFER) {
+                return 0;
+            }
+            if (buf.readableBytes() < HEADER_SIZE + TYPE_SIZE + URI_LENGTH_SIZE) {
+                return -1;
+            }
+            int uriLength = buf.getByte(index + TYPE_SIZE);
+            if (uriLength < 0) {
+                return 0;
+            }
+            headerLength = TYPE_SIZE + URI_LENGTH_SIZE + uriLength;
+        }
+
+        if (frameLength <= headerLength) {
+            // 没有数据的传输帧帧头就是整个帧，按完整帧解码
+            return 0;
+        }
+        return buf.readableBytes() < HEADER_SIZE + headerLength ? -1 : headerLength;
+    }
+
+    /**
+     * 读取传输帧的帧头进入流式解码
+     */
+    private void startStreaming(ByteBuf buf, int headerLength, int frameLength) {
+        int index = buf.readerIndex() + HEADER_SIZE;
+        if ((buf.getByte(index) & ProxyMessage.FLAG_COMPACT) != 0) {
+            streamingId = buf.getInt(index + TYPE_SIZE);
+        } else {
+            streamingId = parseStreamId(buf, index + TYPE_SIZE + URI_LENGTH_SIZE, headerLength - TYPE_SIZE - URI_LENGTH_SIZE);
+        }
+
+        buf.skipBytes(HEADER_SIZE + headerLength);
+        streamingRemaining = frameLength - headerLength;
+    }
+
+    private ProxyMessage decodeStreaming(ByteBuf buf) {
+        int length = Math.min(buf.readableBytes(), streamingRemaining);
+        if (length == 0) {
             return null;
         }
+
+        streamingRemaining -= length;
         ProxyMessage proxyMessage = new ProxyMessage();
-        byte type = in.readByte();
+        proxyMessage.setType(ProxyMessage.P_TYPE_TRANSFER);
+        proxyMessage.setStreamId(streamingId);
+        // 直接引用累积缓冲区的切片，不复制
+        proxyMessage.setContent(buf.readSlice(length).retain());
+        return proxyMessage;
+    }
 
-        proxyMessage.setType(type);
+    private ProxyMessage decodeFrame(ChannelHandlerContext ctx, ByteBuf buf) throws Exception {
+        ByteBuf in = (ByteBuf) super.decode(ctx, buf);
+        if (in == null) {
+            return null;
+        }
 
-        byte uriLength = in.readByte();
-        byte[] uriBytes = new byte[uriLength];
-        in.readBytes(uriBytes);
-        proxyMessage.setUri(new String(uriBytes));
+        try {
+            if (in.readableBytes() < HEADER_SIZE) {
+                return null;
+            }
 
-        byte[] data = new byte[frameLength - TYPE_SIZE - URI_LENGTH_SIZE - uriLength];
-        in.readBytes(data);
-        proxyMessage.setData(data);
+            int frameLength = in.readInt();
+            if (in.readableBytes() < frameLength) {
+                return null;
+            }
+            ProxyMessage proxyMessage = new ProxyMessage();
+            byte type = in.readByte();
 
-        //释放ByteBuf的引用计数。
-        in.release();
+            int dataLength;
+            if ((type & ProxyMessage.FLAG_COMPACT) != 0) {
+                type &= ~ProxyMessage.FLAG_COMPACT;
+                proxyMessage.setStreamId(in.readInt());
+                dataLength = frameLength - TYPE_SIZE - STREAM_ID_SIZE;
+                if ((type & ProxyMessage.FLAG_COMPRESSED) != 0) {
+                    type &= ~ProxyMessage.FLAG_COMPRESSED;
+                    proxyMessage.setCompression(in.readByte());
+                    dataLength -= COMPRESSION_SIZE;
+                }
+            } else {
+                byte uriLength = in.readByte();
+                if (type == ProxyMessage.P_TYPE_TRANSFER) {
+                    // 传输消息只需要用户编号，直接从字节解析，不创建字符串
+                    proxyMessage.setStreamId(parseStreamId(in, in.readerIndex(), uriLength));
+                    in.skipBytes(uriLength);
+                } else {
+                    if (type == ProxyMessage.TYPE_CONNECT || type == ProxyMessage.TYPE_DISCONNECT) {
+                        proxyMessage.setStreamId(parseStreamId(in, in.readerIndex(), uriLength));
+                    }
+                    byte[] uriBytes = new byte[uriLength];
+                    in.readBytes(uriBytes);
+                    proxyMessage.setUri(new String(uriBytes));
+                }
+                dataLength = frameLength - TYPE_SIZE - URI_LENGTH_SIZE - uriLength;
+            }
 
-        return proxyMessage;
+            proxyMessage.setType(type);
+
+            if (type == ProxyMessage.P_TYPE_TRANSFER) {
+                // 传输数据直接引用帧数据的切片，不复制
+                proxyMessage.setContent(in.readSlice(dataLength).retain());
+            } else {
+                byte[] data = new byte[dataLength];
+                in.readBytes(data);
+                proxyMessage.setData(data);
+            }
+
+            return proxyMessage;
+        } finally {
+            //释放ByteBuf的引用计数。
+            in.release();
+        }
+    }
+
+    /**
+     * 解析uri开头的十进制用户编号，如 "12" 或 "12@clientKey"
+     */
+    private static int parseStreamId(ByteBuf in, int index, int length) {
+        int streamId = 0;
+        for (int i = index; i < index + length; i++) {
+            byte b = in.getByte(i);
+            if (b < '0' || b > '9') {
+                break;
+            }
+            streamId = streamId * 10 + (b - '0');
+        }
+        return streamId;
     }
-}
\ No newline at end of file
+}
@@ -1,42 +1,190 @@
 package com.hklh8.common.protocol;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.handler.codec.EncoderException;
+import io.netty.handler.codec.MessageToMessageEncoder;
 
-public class ProxyMessageEncoder extends MessageToByteEncoder<ProxyMessage> {
+import java.util.List;
+
+/**
+ * 消息编码，只写入消息头，传输数据(content)作为独立的ByteBuf直接输出，由底层gathering write一次写出；
+ * 较小的content直接拷贝到消息头之后，避免批量flush时产生大量零碎的小buffer
+ * <p>
+ * 协商了紧凑帧头后，不带uri的消息以 [长度(4)][类型|FLAG_COMPACT(1)][streamId(4)][数据] 格式编码，
+ * 压缩过的传输数据以 [长度(4)][类型|FLAG_COMPACT|FLAG_COMPRESSED(1)][streamId(4)][压缩算法(1)][数据] 格式编码，否则使用原有的 [长度(4)][类型(1)][uri长度(1)][uri][数据] 格式
+ * <p>
+ * 没有压缩的传输数据按maxFragmentLength及协商的最大帧长度拆分为多个帧，每个帧都是完整的传输消息，对端不需要重组
+ */
+public class ProxyMessageEncoder extends MessageToMessageEncoder<ProxyMessage> {
+
+    private static final int HEADER_SIZE = 4;
 
     private static final int TYPE_SIZE = 1;
 
     private static final int URI_LENGTH_SIZE = 1;
 
+    private static final int STREAM_ID_SIZE = 4;
+
+    private static final int COMPRESSION_SIZE = 1;
+
+    /**
+     * content小于该字节数时与消息头合并到同一个ByteBuf
+     */
+    private static final int COALESCE_THRESHOLD = 512;
+
+    /**
+     * 默认每个传输帧携带的最大数据长度，较大的传输数据拆分为多个帧，避免大帧阻塞共享隧道上的交互流量
+     */
+    public static final int DEFAULT_MAX_FRAGMENT_LENGTH = 16 * 1024;
+
+    private final int maxFragmentLength;
+
+    private volatile boolean compact;
+
+    /**
+     * 对端能解码的最大帧长度（包含长度字段），0表示未协商
+     */
+    private volatile int maxFrameLength;
+
+    public ProxyMessageEncoder() {
+        this(DEFAULT_MAX_FRAGMENT_LENGTH);
+    }
+
+    /**
+     * @param maxFragmentLength 每个传输帧携带的最大数据长度
+     */
+    public ProxyMessageEncoder(int maxFragmentLength) {
+        this.maxFragmentLength = maxFragmentLength;
+    }
+
+    /**
+     * 设置连接是否使用紧凑帧头编码，由认证协商结果决定
+     */
+    public static void setCompact(Channel channel, boolean compact) {
+        ProxyMessageEncoder encoder = channel.pipeline().get(ProxyMessageEncoder.class);
+        if (encoder != null) {
+            encoder.compact = compact;
+        }
+    }
+
+    /**
+     * 设置认证时协商的最大帧长度，传输帧不会超过该长度
+     */
+    public static void setMaxFrameLength(Channel channel, int maxFrameLength) {
+        ProxyMessageEncoder encoder = channel.pipeline().get(ProxyMessageEncoder.class);
+        if (encoder != null) {
+            encoder.maxFrameLength = maxFrameLength;
+        }
+    }
+
     @Override
-    protected void encode(ChannelHandlerContext ctx, ProxyMessage msg, ByteBuf out) throws Exception {
-        int bodyLength = TYPE_SIZE + URI_LENGTH_SIZE;
+    protected void encode(ChannelHandlerContext ctx, ProxyMessage msg, List<Object> out) throws Exception {
+        boolean compactFrame = compact && msg.getUri() == null;
+
+        int headerLength = TYPE_SIZE;
         byte[] uriBytes = null;
-        if (msg.getUri() != null) {
-            uriBytes = msg.getUri().getBytes();
-            bodyLength += uriBytes.length;
+        boolean compressed = compactFrame && msg.getCompression() != Compression.NONE;
+        if (compactFrame) {
+            headerLength += STREAM_ID_SIZE;
+            if (compressed) {
+                headerLength += COMPRESSION_SIZE;
+            }
+        } else {
+            headerLength += URI_LENGTH_SIZE;
+            if (msg.getUri() != null) {
+                uriBytes = msg.getUri().getBytes();
+            } else if (msg.getStreamId() != 0) {
+                // 对端不支持紧凑帧头，streamId以十进制字符串作为uri传输
+                uriBytes = String.valueOf(msg.getStreamId()).getBytes();
+            }
+            if (uriBytes != null) {
+                headerLength += uriBytes.length;
+            }
         }
-
         if (msg.getData() != null) {
-            bodyLength += msg.getData().length;
+            headerLength += msg.getData().length;
         }
 
-        //写入整个包的长度(不包含bodyLength字段长度)
-        out.writeInt(bodyLength);
+        ByteBuf content = msg.getContent();
+        if (content == null || compressed) {
+            // 压缩数据需要整体解压，不拆分
+            encodeFrame(ctx, msg, compactFrame, compressed, uriBytes, headerLength, content, out);
+            return;
+        }
+
+        int fragmentLength = maxFragmentLength;
+        if (maxFrameLength > 0) {
+            fragmentLength = Math.min(fragmentLength, maxFrameLength - HEADER_SIZE - headerLength);
+        }
+        if (fragmentLength <= 0) {
+            // 协商的最大帧长度放不下消息头，拆分不会有进展，关闭连接
+            ctx.close();
+            throw new EncoderException("最大帧长度 " + maxFrameLength + " 小于消息头长度 " + (HEADER_SIZE + headerLength));
+        }
 
-        out.writeByte(msg.getType());
+        int index = content.readerIndex();
+        int remaining = content.readableBytes();
+        do {
+            int length = Math.min(remaining, fragmentLength);
+            encodeFrame(ctx, msg, compactFrame, false, uriBytes, headerLength, content.slice(index, length), out);
+            index += length;
+            remaining -= length;
+        } while (remaining > 0);
+    }
+
+    private void encodeFrame(ChannelHandlerContext ctx, ProxyMessage msg, boolean compactFrame, boolean compressed, byte[] uriBytes,
+                             int headerLength, ByteBuf content, List<Object> out) {
+        int bodyLength = headerLength;
+        int bufferLength = HEADER_SIZE + headerLength;
+        boolean coalesce = false;
+        if (content != null) {
+            bodyLength += content.readableBytes();
+            coalesce = content.readableBytes() < COALESCE_THRESHOLD;
+            if (coalesce) {
+                bufferLength += content.readableBytes();
+            }
+        }
 
-        if (uriBytes != null) {
-            out.writeByte((byte) uriBytes.length);
-            out.writeBytes(uriBytes);
+        ByteBuf header = ctx.alloc().buffer(bufferLength);
+
+        //写入整个包的长度(不包含bodyLength字段长度)
+        header.writeInt(bodyLength);
+
+        if (compactFrame) {
+            if (compressed) {
+                header.writeByte(msg.getType() | ProxyMessage.FLAG_COMPACT | ProxyMessage.FLAG_COMPRESSED);
+                header.writeInt(msg.getStreamId());
+                header.writeByte(msg.getCompression());
+            } else {
+                header.writeByte(msg.getType() | ProxyMessage.FLAG_COMPACT);
+                header.writeInt(msg.getStreamId());
+            }
         } else {
-            out.writeByte((byte) 0x00);
+            header.writeByte(msg.getType());
+
+            if (uriBytes != null) {
+                header.writeByte((byte) uriBytes.length);
+                header.writeBytes(uriBytes);
+            } else {
+                header.writeByte((byte) 0x00);
+            }
         }
 
         if (msg.getData() != null) {
-            out.writeBytes(msg.getData());
+            header.writeBytes(msg.getData());
+        }
+
+        if (coalesce) {
+            header.writeBytes(content, content.readerIndex(), content.readableBytes());
+        }
+
+        out.add(header);
+
+        if (content != null && !coalesce) {
+            // 编码完成后消息会被释放，这里为输出的content保留一个引用
+            out.add(content.retain());
         }
     }
-}
\ No newline at end of file
+}
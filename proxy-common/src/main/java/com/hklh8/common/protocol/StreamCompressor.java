@@ -0,0 +1,104 @@
+package com.hklh8.common.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * 单个用户连接（stream）发送方向的压缩状态
+ * <p>
+ * 按固定字节数分段统计压缩率，一段数据压缩后仍超过原始大小的90%时认为数据已经压缩过（TLS、图片等），
+ * 之后直接发送原始数据，跳过一定字节数后再重新采样，避免浪费CPU
+ */
+public class StreamCompressor {
+
+    /**
+     * 每次采样统计的原始字节数
+     */
+    private static final int SAMPLE_BYTES = 64 * 1024;
+
+    /**
+     * 压缩后大小超过原始大小的该比例时停止压缩
+     */
+    private static final double MAX_RATIO = 0.9;
+
+    /**
+     * 停止压缩后，跳过该字节数再重新尝试压缩
+     */
+    private static final long BYPASS_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * 小于该字节数的数据不压缩
+     */
+    private static final int MIN_COMPRESS_SIZE = 128;
+
+    /**
+     * 压缩数据不拆分帧，大于该字节数的数据不压缩，由编码器拆分为多个帧发送
+     */
+    private static final int MAX_COMPRESS_SIZE = 64 * 1024;
+
+    private final byte compression;
+
+    private long sampledBytes;
+
+    private long sampledCompressedBytes;
+
+    private long bypassedBytes;
+
+    private boolean bypass;
+
+    public StreamCompressor(byte compression) {
+        this.compression = compression;
+    }
+
+    public byte getCompression() {
+        return compression;
+    }
+
+    /**
+     * 在源连接的EventLoop中调用
+     *
+     * @return 压缩后的数据，返回null时发送原始数据
+     */
+    public ByteBuf compress(ByteBuf buf, ByteBufAllocator alloc) {
+        int length = buf.readableBytes();
+        if (length < MIN_COMPRESS_SIZE || length > MAX_COMPRESS_SIZE) {
+            return null;
+        }
+
+        if (bypass) {
+            bypassedBytes += length;
+            if (bypassedBytes < BYPASS_BYTES) {
+                return null;
+            }
+            bypass = false;
+            bypassedBytes = 0;
+        }
+
+        ByteBuf compressed = Compression.compress(compression, buf, alloc);
+        sampledBytes += length;
+        sampledCompressedBytes += compressed == null ? length : compressed.readableBytes();
+        if (sampledBytes >= SAMPLE_BYTES) {
+            bypass = sampledCompressedBytes > sampledBytes * MAX_RATIO;
+            sampledBytes = 0;
+            sampledCompressedBytes = 0;
+        }
+        return compressed;
+    }
+
+    /**
+     * 设置传输消息的数据，能够压缩时使用压缩后的数据，否则为原始数据保留一个引用
+     *
+     * @return 本次压缩节省的字节数
+     */
+    public int setContent(ProxyMessage proxyMessage, ByteBuf buf, ByteBufAllocator alloc) {
+        ByteBuf compressed = compress(buf, alloc);
+        if (compressed == null) {
+            proxyMessage.setContent(buf.retain());
+            return 0;
+        }
+
+        proxyMessage.setCompression(compression);
+        proxyMessage.setContent(compressed);
+        return buf.readableBytes() - compressed.readableBytes();
+    }
+}
@@ -0,0 +1,105 @@
+package com.hklh8.common.protocol;
+
+import io.netty.channel.Channel;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多路复用模式下单个用户连接（stream）的流量控制窗口
+ * <p>
+ * 发送方每转发一段数据就消耗相应的发送额度，额度用完后停止读取该stream的源连接；
+ * 接收方把数据写入目标连接后累计已消费字节数，达到窗口一半且目标连接可写时通过TYPE_WINDOW_UPDATE归还额度。
+ * 目标连接写缓冲区满时不归还额度，从而只对该stream施加背压，不影响共享隧道上的其它stream
+ */
+public class StreamWindow {
+
+    /**
+     * 每个stream的初始窗口大小，两端一致
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 256 * 1024;
+
+    private final int windowSize;
+
+    /**
+     * 还可以发送给对端的字节数
+     */
+    private final AtomicInteger sendCredit;
+
+    /**
+     * 已写入目标连接但还没有归还给对端的字节数
+     */
+    private final AtomicInteger unackedBytes = new AtomicInteger();
+
+    public StreamWindow() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    public StreamWindow(int windowSize) {
+        this.windowSize = windowSize;
+        this.sendCredit = new AtomicInteger(windowSize);
+    }
+
+    /**
+     * 发送数据前消耗额度，在源连接的EventLoop中调用，额度用完时停止读取源连接
+     */
+    public void consume(Channel source, int bytes) {
+        if (sendCredit.addAndGet(-bytes) <= 0) {
+            source.config().setAutoRead(false);
+        }
+    }
+
+    /**
+     * 收到对端归还的额度，在源连接的EventLoop中判断是否恢复读取，保证与consume串行
+     */
+    public void release(final Channel source, int credit) {
+        if (sendCredit.addAndGet(credit) > 0) {
+            source.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (sendCredit.get() > 0 && source.isActive()) {
+                        source.config().setAutoRead(true);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * 数据写入目标连接后累计消费字节数
+     *
+     * @return 需要归还给对端的额度，0表示暂不归还
+     */
+    public int received(Channel target, int bytes) {
+        int unacked = unackedBytes.addAndGet(bytes);
+        if (unacked >= windowSize / 2 && target.isWritable()) {
+            return unackedBytes.getAndSet(0);
+        }
+        return 0;
+    }
+
+    /**
+     * 目标连接恢复可写时归还全部累计的额度
+     */
+    public int drain() {
+        return unackedBytes.getAndSet(0);
+    }
+
+    /**
+     * 构造归还额度的消息
+     */
+    public static ProxyMessage windowUpdate(int streamId, int credit) {
+        ProxyMessage proxyMessage = new ProxyMessage();
+        proxyMessage.setType(ProxyMessage.TYPE_WINDOW_UPDATE);
+        proxyMessage.setStreamId(streamId);
+        proxyMessage.setData(ByteBuffer.allocate(4).putInt(credit).array());
+        return proxyMessage;
+    }
+
+    /**
+     * 解析归还额度消息中的额度
+     */
+    public static int credit(ProxyMessage proxyMessage) {
+        return ByteBuffer.wrap(proxyMessage.getData()).getInt();
+    }
+}
@@ -0,0 +1,271 @@
+package com.hklh8.common.utils;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 以int为键的并发会话表，用于按用户连接编号查找连接，键不能为0
+ * <p>
+ * 分段的开放寻址表，线性探测，查找、插入、删除都不装箱也不分配对象。读取不加锁，写入按分段加锁；
+ * 删除只把值标记为REMOVED，槽位只会被同一个键重新使用，标记过多时在插入时按存活数量重建该分段
+ */
+public class SessionTable<V> {
+
+    private static final int SEGMENT_BITS = 4;
+
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final Object REMOVED = new Object();
+
+    private final Segment<V>[] segments;
+
+    @SuppressWarnings("unchecked")
+    public SessionTable() {
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment<>();
+        }
+    }
+
+    public V get(int key) {
+        if (key == 0) {
+            return null;
+        }
+        int hash = hash(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    /**
+     * @return 原来的值，没有时返回null
+     */
+    public V put(int key, V value) {
+        if (key == 0) {
+            throw new IllegalArgumentException("key不能为0");
+        }
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        int hash = hash(key);
+        return segmentFor(hash).put(key, hash, value);
+    }
+
+    /**
+     * @return 删除的值，没有时返回null
+     */
+    public V remove(int key) {
+        if (key == 0) {
+            return null;
+        }
+        int hash = hash(key);
+        return segmentFor(hash).remove(key, hash, null);
+    }
+
+    /**
+     * 只有当前值为value（同一个对象）时才删除
+     */
+    public boolean remove(int key, V value) {
+        if (key == 0 || value == null) {
+            return false;
+        }
+        int hash = hash(key);
+        return segmentFor(hash).remove(key, hash, value) != null;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        for (Segment<V> segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * 遍历当前的全部会话，遍历期间的并发修改可能看到也可能看不到，visitor中可以删除会话
+     */
+    public void forEach(Visitor<V> visitor) {
+        for (Segment<V> segment : segments) {
+            segment.forEach(visitor);
+        }
+    }
+
+    private static int hash(int key) {
+        return key * 0x9E3779B9;
+    }
+
+    private Segment<V> segmentFor(int hash) {
+        return segments[hash >>> (32 - SEGMENT_BITS)];
+    }
+
+    private static int indexFor(int hash, int mask) {
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    public interface Visitor<V> {
+
+        void visit(int key, V value);
+    }
+
+    /**
+     * 一个分段的槽位数组，键为0表示空槽位。插入时先写值再写键，读到键时一定能读到值
+     */
+    private static final class Table {
+
+        final AtomicIntegerArray keys;
+
+        final AtomicReferenceArray<Object> values;
+
+        /**
+         * 使用过的槽位数（包括已删除的）达到该值时重建
+         */
+        final int threshold;
+
+        Table(int capacity) {
+            keys = new AtomicIntegerArray(capacity);
+            values = new AtomicReferenceArray<>(capacity);
+            threshold = capacity * 3 / 4;
+        }
+    }
+
+    private static final class Segment<V> {
+
+        private volatile Table table = new Table(INITIAL_CAPACITY);
+
+        /**
+         * 存活的会话数，在锁内修改
+         */
+        private volatile int size;
+
+        /**
+         * 使用过的槽位数，只在锁内访问
+         */
+        private int used;
+
+        @SuppressWarnings("unchecked")
+        V get(int key, int hash) {
+            Table table = this.table;
+            int mask = table.keys.length() - 1;
+            for (int i = indexFor(hash, mask); ; i = (i + 1) & mask) {
+                int k = table.keys.get(i);
+                if (k == key) {
+                    Object value = table.values.get(i);
+                    return value == REMOVED ? null : (V) value;
+                }
+                if (k == 0) {
+                    return null;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V put(int key, int hash, V value) {
+            Table table = this.table;
+            int mask = table.keys.length() - 1;
+            for (int i = indexFor(hash, mask); ; i = (i + 1) & mask) {
+                int k = table.keys.get(i);
+                if (k == key) {
+                    Object old = table.values.getAndSet(i, value);
+                    if (old == REMOVED) {
+                        size++;
+                        return null;
+                    }
+                    return (V) old;
+                }
+                if (k == 0) {
+                    if (used + 1 > table.threshold) {
+                        rehash(size + 1);
+                        return put(key, hash, value);
+                    }
+                    table.values.set(i, value);
+                    table.keys.set(i, key);
+                    used++;
+                    size++;
+                    return null;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V remove(int key, int hash, V expected) {
+            Table table = this.table;
+            int mask = table.keys.length() - 1;
+            for (int i = indexFor(hash, mask); ; i = (i + 1) & mask) {
+                int k = table.keys.get(i);
+                if (k == key) {
+                    Object value = table.values.get(i);
+                    if (value == REMOVED || (expected != null && value != expected)) {
+                        return null;
+                    }
+                    table.values.set(i, REMOVED);
+                    size--;
+                    return (V) value;
+                }
+                if (k == 0) {
+                    return null;
+                }
+            }
+        }
+
+        synchronized void clear() {
+            table = new Table(INITIAL_CAPACITY);
+            used = 0;
+            size = 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        void forEach(Visitor<V> visitor) {
+            Table table = this.table;
+            for (int i = 0; i < table.keys.length(); i++) {
+                int k = table.keys.get(i);
+                if (k != 0) {
+                    Object value = table.values.get(i);
+                    if (value != REMOVED) {
+                        visitor.visit(k, (V) value);
+                    }
+                }
+            }
+        }
+
+        /**
+         * 按存活数量重建槽位数组，去掉已删除的槽位，新数组完整写入后再替换，读取方看到的总是完整的数组
+         */
+        private void rehash(int expectedSize) {
+            int capacity = INITIAL_CAPACITY;
+            while (capacity < expectedSize * 2) {
+                capacity <<= 1;
+            }
+
+            Table old = this.table;
+            Table table = new Table(capacity);
+            int mask = capacity - 1;
+            int count = 0;
+            for (int j = 0; j < old.keys.length(); j++) {
+                int key = old.keys.get(j);
+                Object value = old.values.get(j);
+                if (key == 0 || value == REMOVED) {
+                    continue;
+                }
+                int i = indexFor(hash(key), mask);
+                while (table.keys.get(i) != 0) {
+                    i = (i + 1) & mask;
+                }
+                table.values.set(i, value);
+                table.keys.set(i, key);
+                count++;
+            }
+            this.table = table;
+            used = count;
+        }
+    }
+}
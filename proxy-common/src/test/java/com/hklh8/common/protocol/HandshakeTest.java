@@ -0,0 +1,163 @@
+package com.hklh8.common.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class HandshakeTest {
+
+    @Test
+    public void encodeDecode() {
+        Handshake handshake = hello(Capabilities.SUPPORTED, 1024 * 1024);
+        handshake.setTunnelId(42);
+        handshake.setWeight(3);
+
+        Handshake decoded = Handshake.decode(handshake.encode());
+        assertEquals(Handshake.VERSION, decoded.getVersion());
+        assertEquals(Capabilities.SUPPORTED, decoded.getCapabilities());
+        assertEquals(1024 * 1024, decoded.getMaxFrameLength());
+        assertEquals(Handshake.supportedCompressions(), decoded.getCompressions());
+        assertEquals(Handshake.ENCRYPTION_NONE | Handshake.ENCRYPTION_TLS, decoded.getEncryptions());
+        assertEquals(42, decoded.getTunnelId());
+        assertEquals(3, decoded.getWeight());
+    }
+
+    @Test
+    public void optionalTagsOmitted() {
+        Handshake handshake = hello(Capabilities.FRAME_COMPACT, 0);
+        // 版本 + 4个必有的tag
+        assertEquals(1 + 4 * (1 + 2 + 4), handshake.encode().length);
+
+        Handshake decoded = Handshake.decode(handshake.encode());
+        assertEquals(0, decoded.getTunnelId());
+        assertEquals(0, decoded.getWeight());
+    }
+
+    @Test
+    public void decodeVersionOnly() {
+        Handshake decoded = Handshake.decode(new byte[]{2});
+        assertEquals(2, decoded.getVersion());
+        assertEquals(0, decoded.getCapabilities());
+        assertEquals(0, decoded.getMaxFrameLength());
+    }
+
+    @Test
+    public void decodeSkipsUnknownAndShortTags() {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        buf.put((byte) 1);
+        // 不认识的tag，长度与int不同
+        buf.put((byte) 0x7F).putShort((short) 6).put(new byte[6]);
+        // 认识的tag但值不足4字节，忽略
+        buf.put((byte) 0x02).putShort((short) 2).putShort((short) 100);
+        // 认识的tag带有更长的值，只读取前4字节
+        buf.put((byte) 0x01).putShort((short) 8).putInt(Capabilities.DRAIN).putInt(-1);
+        buf.put((byte) 0x06).putShort((short) 4).putInt(5);
+
+        Handshake decoded = Handshake.decode(Arrays.copyOf(buf.array(), buf.position()));
+        assertEquals(1, decoded.getVersion());
+        assertEquals(Capabilities.DRAIN, decoded.getCapabilities());
+        assertEquals(0, decoded.getMaxFrameLength());
+        assertEquals(5, decoded.getWeight());
+    }
+
+    @Test
+    public void decodeStopsAtTruncatedTag() {
+        byte[] data = hello(Capabilities.SUPPORTED, 4096).encode();
+        // 截断最后一个tag的值
+        Handshake decoded = Handshake.decode(Arrays.copyOf(data, data.length - 2));
+        assertEquals(Capabilities.SUPPORTED, decoded.getCapabilities());
+        assertEquals(4096, decoded.getMaxFrameLength());
+        assertEquals(Handshake.supportedCompressions(), decoded.getCompressions());
+        assertEquals(0, decoded.getEncryptions());
+    }
+
+    @Test
+    public void negotiateIntersectsCapabilities() {
+        int enabled = Capabilities.FRAME_COMPACT | Capabilities.MULTIPLEX | Capabilities.DRAIN;
+        Handshake result = Handshake.negotiate(hello(Capabilities.FRAME_COMPACT | Capabilities.DRAIN | Capabilities.STATS, 0),
+                enabled, 1024 * 1024, Handshake.ENCRYPTION_TLS);
+        assertNotNull(result);
+        assertEquals(Capabilities.FRAME_COMPACT | Capabilities.DRAIN, result.getCapabilities());
+        assertEquals(Handshake.ENCRYPTION_TLS, result.getEncryptions());
+        assertEquals(Handshake.VERSION, result.getVersion());
+    }
+
+    @Test
+    public void negotiateWithoutCompactDropsDependentCapabilities() {
+        Handshake result = Handshake.negotiate(hello(Capabilities.SUPPORTED, 0),
+                Capabilities.SUPPORTED & ~Capabilities.FRAME_COMPACT, 1024 * 1024, Handshake.ENCRYPTION_NONE);
+        assertNotNull(result);
+        assertEquals(Capabilities.DRAIN, result.getCapabilities());
+        assertEquals(0, result.getCompressions());
+    }
+
+    @Test
+    public void negotiateCompressions() {
+        Handshake hello = hello(Capabilities.SUPPORTED, 0);
+        hello.setCompressions(Handshake.compressionBit(Compression.LZ4) | Handshake.compressionBit((byte) 7));
+        Handshake result = Handshake.negotiate(hello, Capabilities.SUPPORTED, 1024 * 1024, Handshake.ENCRYPTION_NONE);
+        assertTrue(result.hasCapability(Capabilities.COMPRESSION));
+        assertTrue(result.supportsCompression(Compression.LZ4));
+        assertFalse(result.supportsCompression(Compression.DEFLATE));
+        assertFalse(result.supportsCompression((byte) 7));
+
+        // 没有共同支持的压缩算法
+        hello.setCompressions(Handshake.compressionBit((byte) 7));
+        result = Handshake.negotiate(hello, Capabilities.SUPPORTED, 1024 * 1024, Handshake.ENCRYPTION_NONE);
+        assertFalse(result.hasCapability(Capabilities.COMPRESSION));
+        assertEquals(0, result.getCompressions());
+
+        // 服务器没有开启压缩
+        hello.setCompressions(Handshake.supportedCompressions());
+        result = Handshake.negotiate(hello, Capabilities.SUPPORTED & ~Capabilities.COMPRESSION, 1024 * 1024, Handshake.ENCRYPTION_NONE);
+        assertFalse(result.hasCapability(Capabilities.COMPRESSION));
+        assertEquals(0, result.getCompressions());
+    }
+
+    @Test
+    public void negotiateMaxFrameLength() {
+        int serverMax = 2 * 1024 * 1024;
+        assertEquals(serverMax, Handshake.negotiate(hello(Capabilities.SUPPORTED, 0), Capabilities.SUPPORTED, serverMax,
+                Handshake.ENCRYPTION_NONE).getMaxFrameLength());
+        assertEquals(64 * 1024, Handshake.negotiate(hello(Capabilities.SUPPORTED, 64 * 1024), Capabilities.SUPPORTED, serverMax,
+                Handshake.ENCRYPTION_NONE).getMaxFrameLength());
+        assertEquals(serverMax, Handshake.negotiate(hello(Capabilities.SUPPORTED, 16 * 1024 * 1024), Capabilities.SUPPORTED, serverMax,
+                Handshake.ENCRYPTION_NONE).getMaxFrameLength());
+        assertEquals(Handshake.MIN_FRAME_LENGTH, Handshake.negotiate(hello(Capabilities.SUPPORTED, Handshake.MIN_FRAME_LENGTH),
+                Capabilities.SUPPORTED, serverMax, Handshake.ENCRYPTION_NONE).getMaxFrameLength());
+    }
+
+    @Test
+    public void negotiateRejectsSmallMaxFrameLength() {
+        assertNull(Handshake.negotiate(hello(Capabilities.SUPPORTED, Handshake.MIN_FRAME_LENGTH - 1), Capabilities.SUPPORTED,
+                1024 * 1024, Handshake.ENCRYPTION_NONE));
+    }
+
+    @Test
+    public void negotiateRejectsEncryption() {
+        Handshake hello = hello(Capabilities.SUPPORTED, 0);
+        hello.setEncryptions(Handshake.ENCRYPTION_TLS);
+        assertNull(Handshake.negotiate(hello, Capabilities.SUPPORTED, 1024 * 1024, Handshake.ENCRYPTION_NONE));
+    }
+
+    @Test
+    public void negotiateOlderVersion() {
+        Handshake hello = Handshake.decode(new byte[]{0});
+        hello.setEncryptions(Handshake.ENCRYPTION_NONE);
+        Handshake result = Handshake.negotiate(hello, Capabilities.SUPPORTED, 1024 * 1024, Handshake.ENCRYPTION_NONE);
+        assertEquals(0, result.getVersion());
+        assertEquals(0, result.getCapabilities());
+    }
+
+    private static Handshake hello(int capabilities, int maxFrameLength) {
+        Handshake hello = new Handshake();
+        hello.setCapabilities(capabilities);
+        hello.setMaxFrameLength(maxFrameLength);
+        hello.setCompressions(Handshake.supportedCompressions());
+        hello.setEncryptions(Handshake.ENCRYPTION_NONE | Handshake.ENCRYPTION_TLS);
+        return hello;
+    }
+}
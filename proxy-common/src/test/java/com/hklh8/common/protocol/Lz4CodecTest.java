@@ -0,0 +1,153 @@
+package com.hklh8.common.protocol;
+
+import io.netty.handler.codec.DecoderException;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Lz4CodecTest {
+
+    @Test
+    public void roundTripEmpty() {
+        roundTrip(new byte[0]);
+    }
+
+    @Test
+    public void roundTripShorterThanMinimumMatchBlock() {
+        roundTrip("abcabcabc".getBytes());
+    }
+
+    @Test
+    public void roundTripIncompressible() {
+        byte[] data = new byte[100 * 1024];
+        new Random(1).nextBytes(data);
+        int compressedLength = roundTrip(data);
+        assertTrue(compressedLength <= Lz4Codec.maxCompressedLength(data.length));
+    }
+
+    @Test
+    public void roundTripHighlyRepetitive() {
+        byte[] data = new byte[100 * 1024];
+        Arrays.fill(data, (byte) 'a');
+        int compressedLength = roundTrip(data);
+        assertTrue(compressedLength < data.length / 100);
+    }
+
+    @Test
+    public void roundTripLongerThanWindowWithOverlappingMatches() {
+        // 短周期的重复产生与输出重叠的匹配，随机块之间的距离超过64KB的匹配窗口
+        Random random = new Random(2);
+        byte[] data = new byte[300 * 1024];
+        int i = 0;
+        while (i < data.length) {
+            int length = Math.min(data.length - i, 1 + random.nextInt(5000));
+            if (random.nextBoolean()) {
+                int period = 1 + random.nextInt(7);
+                for (int j = 0; j < length; j++) {
+                    data[i + j] = (byte) ('a' + (j % period));
+                }
+            } else {
+                for (int j = 0; j < length; j++) {
+                    data[i + j] = (byte) random.nextInt(256);
+                }
+            }
+            i += length;
+        }
+        roundTrip(data);
+    }
+
+    @Test
+    public void roundTripWithOffsets() {
+        byte[] data = "hello hello hello hello hello hello, lz4 offsets".getBytes();
+        byte[] src = new byte[data.length + 7];
+        System.arraycopy(data, 0, src, 7, data.length);
+        byte[] compressed = new byte[Lz4Codec.maxCompressedLength(data.length) + 3];
+        int compressedLength = Lz4Codec.compress(src, 7, data.length, compressed, 3);
+
+        byte[] dst = new byte[data.length + 5];
+        Lz4Codec.decompress(compressed, 3, compressedLength, dst, 5, data.length);
+        assertArrayEquals(data, Arrays.copyOfRange(dst, 5, dst.length));
+    }
+
+    @Test(expected = DecoderException.class, timeout = 5000)
+    public void truncatedInput() {
+        byte[] data = new byte[10 * 1024];
+        Arrays.fill(data, (byte) 'x');
+        byte[] compressed = new byte[Lz4Codec.maxCompressedLength(data.length)];
+        int compressedLength = Lz4Codec.compress(data, 0, data.length, compressed, 0);
+        Lz4Codec.decompress(compressed, 0, compressedLength / 2, new byte[data.length], 0, data.length);
+    }
+
+    @Test(expected = DecoderException.class, timeout = 5000)
+    public void truncatedLiteralLength() {
+        // 字面量长度需要扩展字节，但输入已经结束
+        decompress(new byte[]{(byte) 0xF0}, 100);
+    }
+
+    @Test(expected = DecoderException.class, timeout = 5000)
+    public void truncatedMatchLength() {
+        // 1个字面量、偏移1，匹配长度需要扩展字节，但输入已经结束
+        decompress(new byte[]{0x1F, 'a', 0x01, 0x00}, 100);
+    }
+
+    @Test(expected = DecoderException.class, timeout = 5000)
+    public void truncatedOffset() {
+        decompress(new byte[]{0x10, 'a', 0x01}, 100);
+    }
+
+    @Test(expected = DecoderException.class, timeout = 5000)
+    public void offsetBeforeStartOfOutput() {
+        decompress(new byte[]{0x10, 'a', 0x05, 0x00}, 100);
+    }
+
+    @Test(expected = DecoderException.class, timeout = 5000)
+    public void zeroOffset() {
+        decompress(new byte[]{0x10, 'a', 0x00, 0x00}, 100);
+    }
+
+    @Test(expected = DecoderException.class, timeout = 5000)
+    public void literalRunPastEndOfInput() {
+        decompress(new byte[]{0x50, 'a', 'b'}, 100);
+    }
+
+    @Test(expected = DecoderException.class, timeout = 5000)
+    public void literalRunPastEndOfOutput() {
+        decompress(new byte[]{0x50, 'a', 'b', 'c', 'd', 'e'}, 3);
+    }
+
+    @Test(expected = DecoderException.class, timeout = 5000)
+    public void matchPastEndOfOutput() {
+        decompress(new byte[]{0x1F, 'a', 0x01, 0x00, 0x10}, 10);
+    }
+
+    @Test(expected = DecoderException.class, timeout = 5000)
+    public void hugeLengthExtension() {
+        // 大量255扩展字节不能让长度溢出成负数
+        byte[] src = new byte[20 * 1024 * 1024];
+        Arrays.fill(src, (byte) 0xFF);
+        src[0] = (byte) 0xF0;
+        decompress(src, 100);
+    }
+
+    @Test(expected = DecoderException.class, timeout = 5000)
+    public void shorterThanDeclaredLength() {
+        decompress(new byte[]{0x20, 'a', 'b'}, 3);
+    }
+
+    private static int roundTrip(byte[] data) {
+        byte[] compressed = new byte[Lz4Codec.maxCompressedLength(data.length)];
+        int compressedLength = Lz4Codec.compress(data, 0, data.length, compressed, 0);
+        byte[] decompressed = new byte[data.length];
+        Lz4Codec.decompress(compressed, 0, compressedLength, decompressed, 0, data.length);
+        assertArrayEquals(data, decompressed);
+        return compressedLength;
+    }
+
+    private static void decompress(byte[] src, int dstLen) {
+        Lz4Codec.decompress(src, 0, src.length, new byte[dstLen], 0, dstLen);
+    }
+}
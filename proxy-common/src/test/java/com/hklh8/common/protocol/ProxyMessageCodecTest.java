@@ -0,0 +1,371 @@
+package com.hklh8.common.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.TooLongFrameException;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ProxyMessageCodecTest {
+
+    private static final int MAX_FRAME_LENGTH = 2 * 1024 * 1024;
+
+    @Test
+    public void compactHeader() {
+        EmbeddedChannel encoder = encoder(true);
+        List<ByteBuf> out = encode(encoder, transfer(7, bytes(100, 1)));
+        assertEquals(1, out.size());
+
+        ByteBuf frame = out.get(0);
+        assertEquals(1 + 4 + 100, frame.readInt());
+        assertEquals((byte) (ProxyMessage.P_TYPE_TRANSFER | ProxyMessage.FLAG_COMPACT), frame.readByte());
+        assertEquals(7, frame.readInt());
+        assertArrayEquals(bytes(100, 1), toArray(frame));
+        frame.release();
+    }
+
+    @Test
+    public void legacyHeader() {
+        EmbeddedChannel encoder = encoder(false);
+        List<ByteBuf> out = encode(encoder, transfer(12, bytes(100, 1)));
+        assertEquals(1, out.size());
+
+        // streamId以十进制字符串作为uri
+        ByteBuf frame = out.get(0);
+        assertEquals(1 + 1 + 2 + 100, frame.readInt());
+        assertEquals(ProxyMessage.P_TYPE_TRANSFER, frame.readByte());
+        assertEquals(2, frame.readByte());
+        assertEquals('1', frame.readByte());
+        assertEquals('2', frame.readByte());
+        assertArrayEquals(bytes(100, 1), toArray(frame));
+        frame.release();
+    }
+
+    @Test
+    public void uriMessageKeepsLegacyHeaderWhenCompact() {
+        ProxyMessage connect = new ProxyMessage();
+        connect.setType(ProxyMessage.TYPE_CONNECT);
+        connect.setUri("12@k1");
+        connect.setData("127.0.0.1:80".getBytes());
+
+        List<ProxyMessage> messages = decode(decoder(), concat(encode(encoder(true), connect)));
+        assertEquals(1, messages.size());
+        ProxyMessage message = messages.get(0);
+        assertEquals(ProxyMessage.TYPE_CONNECT, message.getType());
+        assertEquals("12@k1", message.getUri());
+        assertEquals(12, message.getStreamId());
+        assertArrayEquals("127.0.0.1:80".getBytes(), message.getData());
+    }
+
+    @Test
+    public void compactControlMessage() {
+        ProxyMessage update = new ProxyMessage();
+        update.setType(ProxyMessage.TYPE_WINDOW_UPDATE);
+        update.setStreamId(3);
+        update.setData(new byte[]{0, 0, 1, 0});
+
+        List<ProxyMessage> messages = decode(decoder(), concat(encode(encoder(true), update)));
+        assertEquals(1, messages.size());
+        ProxyMessage message = messages.get(0);
+        assertEquals(ProxyMessage.TYPE_WINDOW_UPDATE, message.getType());
+        assertEquals(3, message.getStreamId());
+        assertNull(message.getUri());
+        assertArrayEquals(new byte[]{0, 0, 1, 0}, message.getData());
+    }
+
+    @Test
+    public void fragmentation() {
+        byte[] data = bytes(40000, 2);
+        List<ByteBuf> out = encode(encoder(true), transfer(5, data));
+
+        // 16K、16K、剩余部分三个帧，每个帧的消息头与content分开输出
+        assertEquals(6, out.size());
+        int[] lengths = {16384, 16384, 40000 - 2 * 16384};
+        for (int i = 0; i < lengths.length; i++) {
+            ByteBuf header = out.get(i * 2);
+            assertEquals(4 + 1 + 4, header.readableBytes());
+            assertEquals(1 + 4 + lengths[i], header.getInt(0));
+            assertEquals(lengths[i], out.get(i * 2 + 1).readableBytes());
+        }
+
+        List<ProxyMessage> messages = decode(decoder(), concat(out));
+        assertEquals(3, messages.size());
+        for (ProxyMessage message : messages) {
+            assertEquals(5, message.getStreamId());
+        }
+        assertArrayEquals(data, transferData(messages, 5));
+    }
+
+    @Test
+    public void fragmentationRespectsMaxFrameLength() {
+        EmbeddedChannel encoder = encoder(true);
+        ProxyMessageEncoder.setMaxFrameLength(encoder, 4096);
+        byte[] data = bytes(10000, 3);
+        ByteBuf all = concat(encode(encoder, transfer(5, data)));
+        for (int index = 0; index < all.writerIndex(); index += 4 + all.getInt(index)) {
+            assertTrue(4 + all.getInt(index) <= 4096);
+        }
+
+        assertArrayEquals(data, transferData(decode(decoder(), all), 5));
+    }
+
+    @Test
+    public void coalesceBelowThreshold() {
+        EmbeddedChannel encoder = encoder(true);
+        List<ByteBuf> out = encode(encoder, transfer(1, bytes(511, 4)));
+        assertEquals(1, out.size());
+        release(out);
+
+        out = encode(encoder, transfer(1, bytes(512, 4)));
+        assertEquals(2, out.size());
+        assertEquals(512, out.get(1).readableBytes());
+        release(out);
+    }
+
+    @Test
+    public void compressedFrameNotSplit() {
+        byte[] data = bytes(40000, 5);
+        ProxyMessage message = transfer(9, data);
+        message.setCompression(Compression.LZ4);
+
+        ByteBuf all = concat(encode(encoder(true), message));
+        assertEquals(1 + 4 + 1 + 40000, all.getInt(0));
+        assertEquals((byte) (ProxyMessage.P_TYPE_TRANSFER | ProxyMessage.FLAG_COMPACT | ProxyMessage.FLAG_COMPRESSED), all.getByte(4));
+
+        List<ProxyMessage> messages = decode(decoder(), all);
+        assertEquals(1, messages.size());
+        assertEquals(Compression.LZ4, messages.get(0).getCompression());
+        assertEquals(9, messages.get(0).getStreamId());
+        assertArrayEquals(data, transferData(messages, 9));
+    }
+
+    @Test
+    public void streamPartialFrame() {
+        byte[] data = bytes(40000, 6);
+        ByteBuf all = concat(encode(new EmbeddedChannel(new ProxyMessageEncoder(1024 * 1024)), transfer(3, data)));
+        assertEquals(1 + 1 + 1 + 40000, all.getInt(0));
+
+        // 帧还没有完整到达时已到达的数据立即向后传递
+        EmbeddedChannel decoder = decoder();
+        List<ProxyMessage> first = decode(decoder, all.readSlice(1000).retain());
+        assertEquals(1, first.size());
+        assertEquals(1000 - 4 - 3, first.get(0).getContent().readableBytes());
+
+        List<ProxyMessage> messages = new ArrayList<>(first);
+        messages.addAll(decode(decoder, all));
+        assertArrayEquals(data, transferData(messages, 3));
+    }
+
+    @Test
+    public void splitReads() {
+        EmbeddedChannel encoder = encoder(true);
+        List<ByteBuf> out = new ArrayList<>();
+        out.addAll(encode(encoder, transfer(1, bytes(100, 7))));
+        ProxyMessage heartbeat = new ProxyMessage();
+        heartbeat.setType(ProxyMessage.TYPE_HEARTBEAT);
+        out.addAll(encode(encoder, heartbeat));
+        out.addAll(encode(encoder, transfer(2, bytes(20000, 8))));
+        ProxyMessage disconnect = new ProxyMessage();
+        disconnect.setType(ProxyMessage.TYPE_DISCONNECT);
+        disconnect.setUri("2");
+        out.addAll(encode(encoder, disconnect));
+        ByteBuf all = concat(out);
+
+        // 每次只到达一个字节
+        EmbeddedChannel decoder = decoder();
+        List<ProxyMessage> messages = new ArrayList<>();
+        while (all.isReadable()) {
+            messages.addAll(decode(decoder, all.readSlice(1).retain()));
+        }
+        all.release();
+
+        assertArrayEquals(bytes(100, 7), transferData(messages, 1));
+        assertArrayEquals(bytes(20000, 8), transferData(messages, 2));
+        List<Byte> types = new ArrayList<>();
+        for (ProxyMessage message : messages) {
+            if (message.getType() != ProxyMessage.P_TYPE_TRANSFER) {
+                types.add(message.getType());
+            }
+        }
+        assertEquals(Arrays.asList(ProxyMessage.TYPE_HEARTBEAT, ProxyMessage.TYPE_DISCONNECT), types);
+    }
+
+    @Test
+    public void emptyTransferFrame() {
+        List<ProxyMessage> messages = decode(decoder(), concat(encode(encoder(true), transfer(4, new byte[0]))));
+        assertEquals(1, messages.size());
+        assertEquals(4, messages.get(0).getStreamId());
+        assertEquals(0, messages.get(0).getContent().readableBytes());
+        messages.get(0).release();
+    }
+
+    @Test
+    public void oversizedTransferFrameIsStreamed() {
+        byte[] data = bytes(10000, 9);
+        ByteBuf all = concat(encode(new EmbeddedChannel(new ProxyMessageEncoder(1024 * 1024)), transfer(6, data)));
+
+        // 整个帧一次到达，超过maxFrameLength也按流式解码
+        EmbeddedChannel decoder = decoder(2048);
+        List<ProxyMessage> messages = decode(decoder, all);
+        assertTrue(decoder.isOpen());
+        assertArrayEquals(data, transferData(messages, 6));
+    }
+
+    @Test
+    public void oversizedFrameClosesChannel() {
+        ProxyMessage mappings = new ProxyMessage();
+        mappings.setType(ProxyMessage.TYPE_MAPPINGS);
+        mappings.setData(bytes(5000, 10));
+        EmbeddedChannel encoder = encoder(true);
+        List<ByteBuf> out = encode(encoder, mappings);
+        out.addAll(encode(encoder, transfer(1, bytes(10, 11))));
+        ByteBuf all = concat(out);
+
+        EmbeddedChannel decoder = decoder(2048);
+        try {
+            decoder.writeInbound(all);
+            fail();
+        } catch (TooLongFrameException e) {
+            // 帧长度超过限制
+        }
+        assertFalse(decoder.isOpen());
+        assertNull(decoder.readInbound());
+    }
+
+    @Test
+    public void legacyPeerInterop() {
+        // 旧版本对端发送的帧：[长度][类型][uri长度][uri][数据]
+        ByteBuf in = Unpooled.buffer();
+        writeLegacyFrame(in, ProxyMessage.C_TYPE_AUTH, "k1", new byte[0]);
+        writeLegacyFrame(in, ProxyMessage.TYPE_CONNECT, "15", "192.168.1.2:80".getBytes());
+        writeLegacyFrame(in, ProxyMessage.P_TYPE_TRANSFER, "15", bytes(3000, 12));
+        writeLegacyFrame(in, ProxyMessage.TYPE_HEARTBEAT, "", new byte[0]);
+
+        List<ProxyMessage> messages = decode(decoder(), in);
+        assertEquals(ProxyMessage.C_TYPE_AUTH, messages.get(0).getType());
+        assertEquals("k1", messages.get(0).getUri());
+        assertEquals(0, messages.get(0).getData().length);
+        assertEquals(ProxyMessage.TYPE_CONNECT, messages.get(1).getType());
+        assertEquals("15", messages.get(1).getUri());
+        assertArrayEquals("192.168.1.2:80".getBytes(), messages.get(1).getData());
+        assertArrayEquals(bytes(3000, 12), transferData(messages, 15));
+        assertEquals(ProxyMessage.TYPE_HEARTBEAT, messages.get(messages.size() - 1).getType());
+
+        // 没有协商紧凑帧头时编码结果与旧版本一致
+        ProxyMessage heartbeat = new ProxyMessage();
+        heartbeat.setType(ProxyMessage.TYPE_HEARTBEAT);
+        ByteBuf expected = Unpooled.buffer();
+        writeLegacyFrame(expected, ProxyMessage.TYPE_HEARTBEAT, "", new byte[0]);
+        ProxyMessage transfer = transfer(15, bytes(3000, 12));
+        writeLegacyFrame(expected, ProxyMessage.P_TYPE_TRANSFER, "15", bytes(3000, 12));
+
+        EmbeddedChannel encoder = encoder(false);
+        List<ByteBuf> out = encode(encoder, heartbeat);
+        out.addAll(encode(encoder, transfer));
+        ByteBuf actual = concat(out);
+        assertEquals(expected, actual);
+        expected.release();
+        actual.release();
+    }
+
+    private static void writeLegacyFrame(ByteBuf buf, byte type, String uri, byte[] data) {
+        byte[] uriBytes = uri.getBytes();
+        buf.writeInt(1 + 1 + uriBytes.length + data.length);
+        buf.writeByte(type);
+        buf.writeByte(uriBytes.length);
+        buf.writeBytes(uriBytes);
+        buf.writeBytes(data);
+    }
+
+    private static EmbeddedChannel encoder(boolean compact) {
+        EmbeddedChannel channel = new EmbeddedChannel(new ProxyMessageEncoder());
+        ProxyMessageEncoder.setCompact(channel, compact);
+        return channel;
+    }
+
+    private static EmbeddedChannel decoder() {
+        return decoder(MAX_FRAME_LENGTH);
+    }
+
+    private static EmbeddedChannel decoder(int maxFrameLength) {
+        return new EmbeddedChannel(new ProxyMessageDecoder(maxFrameLength, 0, 4, 0, 0));
+    }
+
+    private static ProxyMessage transfer(int streamId, byte[] data) {
+        ProxyMessage message = new ProxyMessage();
+        message.setType(ProxyMessage.P_TYPE_TRANSFER);
+        message.setStreamId(streamId);
+        message.setContent(Unpooled.wrappedBuffer(data));
+        return message;
+    }
+
+    private static List<ByteBuf> encode(EmbeddedChannel channel, ProxyMessage message) {
+        assertTrue(channel.writeOutbound(message));
+        List<ByteBuf> out = new ArrayList<>();
+        Object buf;
+        while ((buf = channel.readOutbound()) != null) {
+            out.add((ByteBuf) buf);
+        }
+        return out;
+    }
+
+    private static List<ProxyMessage> decode(EmbeddedChannel channel, ByteBuf in) {
+        channel.writeInbound(in);
+        List<ProxyMessage> messages = new ArrayList<>();
+        Object message;
+        while ((message = channel.readInbound()) != null) {
+            messages.add((ProxyMessage) message);
+        }
+        return messages;
+    }
+
+    /**
+     * 按顺序拼接该stream的传输数据，并释放这些消息
+     */
+    private static byte[] transferData(List<ProxyMessage> messages, int streamId) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ProxyMessage message : messages) {
+            if (message.getType() == ProxyMessage.P_TYPE_TRANSFER && message.getStreamId() == streamId) {
+                byte[] data = toArray(message.getContent());
+                out.write(data, 0, data.length);
+                message.release();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static ByteBuf concat(List<ByteBuf> bufs) {
+        ByteBuf all = Unpooled.buffer();
+        for (ByteBuf buf : bufs) {
+            all.writeBytes(buf);
+            buf.release();
+        }
+        return all;
+    }
+
+    private static void release(List<ByteBuf> bufs) {
+        for (ByteBuf buf : bufs) {
+            buf.release();
+        }
+    }
+
+    private static byte[] toArray(ByteBuf buf) {
+        byte[] data = new byte[buf.readableBytes()];
+        buf.getBytes(buf.readerIndex(), data);
+        return data;
+    }
+
+    private static byte[] bytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
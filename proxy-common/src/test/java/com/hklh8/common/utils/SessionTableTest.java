@@ -0,0 +1,241 @@
+package com.hklh8.common.utils;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SessionTableTest {
+
+    @Test
+    public void putGetRemove() {
+        SessionTable<String> table = new SessionTable<>();
+        assertNull(table.put(1, "a"));
+        assertNull(table.put(2, "b"));
+        assertEquals("a", table.put(1, "c"));
+        assertEquals("c", table.get(1));
+        assertEquals("b", table.get(2));
+        assertNull(table.get(3));
+        assertEquals(2, table.size());
+
+        assertEquals("c", table.remove(1));
+        assertNull(table.remove(1));
+        assertNull(table.get(1));
+        assertEquals(1, table.size());
+        assertFalse(table.isEmpty());
+
+        table.clear();
+        assertTrue(table.isEmpty());
+        assertNull(table.get(2));
+    }
+
+    @Test
+    public void zeroKey() {
+        SessionTable<String> table = new SessionTable<>();
+        assertNull(table.get(0));
+        assertNull(table.remove(0));
+        assertFalse(table.remove(0, "a"));
+        try {
+            table.put(0, "a");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // 键不能为0
+        }
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void nullValue() {
+        new SessionTable<String>().put(1, null);
+    }
+
+    @Test
+    public void removeExpectedValue() {
+        SessionTable<String> table = new SessionTable<>();
+        String value = new String("a");
+        table.put(1, value);
+        assertFalse(table.remove(1, new String("a")));
+        assertEquals(1, table.size());
+        assertTrue(table.remove(1, value));
+        assertFalse(table.remove(1, value));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void reuseRemovedSlot() {
+        SessionTable<String> table = new SessionTable<>();
+        table.put(7, "a");
+        table.remove(7);
+        assertNull(table.put(7, "b"));
+        assertEquals("b", table.get(7));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void negativeAndLargeKeys() {
+        SessionTable<Integer> table = new SessionTable<>();
+        int[] keys = {Integer.MIN_VALUE, -1, 1, Integer.MAX_VALUE, 65536, 1 << 28};
+        for (int key : keys) {
+            table.put(key, key);
+        }
+        for (int key : keys) {
+            assertEquals(Integer.valueOf(key), table.get(key));
+        }
+        assertEquals(keys.length, table.size());
+    }
+
+    @Test
+    public void resize() {
+        SessionTable<Integer> table = new SessionTable<>();
+        int count = 100000;
+        for (int key = 1; key <= count; key++) {
+            table.put(key, key);
+        }
+        assertEquals(count, table.size());
+
+        for (int key = 1; key <= count; key += 2) {
+            assertEquals(Integer.valueOf(key), table.remove(key));
+        }
+        assertEquals(count / 2, table.size());
+
+        // 删除标记较多时插入新键，重建后存活的键都还在
+        for (int key = count + 1; key <= count * 2; key++) {
+            table.put(key, key);
+        }
+        for (int key = 1; key <= count * 2; key++) {
+            Integer expected = key <= count && key % 2 == 1 ? null : key;
+            assertEquals(expected, table.get(key));
+        }
+        assertEquals(count / 2 + count, table.size());
+    }
+
+    @Test
+    public void churnWithRemovedSlots() {
+        // 键不断递增、总数很少，与用户连接编号的使用方式一致，删除标记不能让表无限增长或查找失败
+        SessionTable<Integer> table = new SessionTable<>();
+        for (int key = 1; key <= 1000000; key++) {
+            table.put(key, key);
+            if (key > 10) {
+                assertEquals(Integer.valueOf(key - 10), table.remove(key - 10));
+            }
+        }
+        assertEquals(10, table.size());
+        for (int key = 1000000 - 9; key <= 1000000; key++) {
+            assertEquals(Integer.valueOf(key), table.get(key));
+        }
+    }
+
+    @Test
+    public void forEachWithRemove() {
+        SessionTable<Integer> table = new SessionTable<>();
+        for (int key = 1; key <= 1000; key++) {
+            table.put(key, key);
+        }
+
+        Map<Integer, Integer> visited = new HashMap<>();
+        table.forEach((key, value) -> {
+            visited.put(key, value);
+            if (key % 3 == 0) {
+                table.remove(key);
+            }
+        });
+        assertEquals(1000, visited.size());
+        for (Map.Entry<Integer, Integer> entry : visited.entrySet()) {
+            assertEquals(entry.getKey(), entry.getValue());
+        }
+        assertEquals(1000 - 333, table.size());
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentPutRemoveGet() throws Exception {
+        final SessionTable<Integer> table = new SessionTable<>();
+        final int threads = 8;
+        final int keysPerThread = 20000;
+        final int rounds = 5;
+
+        // 一直存在的键，写线程不断插入删除触发重建时读线程都应该能读到
+        final int stableKeys = 1000;
+        for (int key = 1; key <= stableKeys; key++) {
+            table.put(-key, key);
+        }
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int base = t * keysPerThread;
+            writers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int round = 0; round < rounds; round++) {
+                        for (int i = 1; i <= keysPerThread; i++) {
+                            int key = base + i;
+                            assertNull(table.put(key, key));
+                            assertEquals(Integer.valueOf(key), table.get(key));
+                        }
+                        for (int i = 1; i <= keysPerThread; i++) {
+                            int key = base + i;
+                            // 最后一轮保留偶数键
+                            if (round < rounds - 1 || i % 2 == 1) {
+                                assertEquals(Integer.valueOf(key), table.remove(key));
+                                assertNull(table.get(key));
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+        }
+
+        Thread[] readers = new Thread[2];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                try {
+                    start.await();
+                    while (running.get()) {
+                        for (int key = 1; key <= stableKeys; key++) {
+                            assertEquals(Integer.valueOf(key), table.get(-key));
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+        }
+
+        for (Thread thread : writers) {
+            thread.start();
+        }
+        for (Thread thread : readers) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : writers) {
+            thread.join();
+        }
+        running.set(false);
+        for (Thread thread : readers) {
+            thread.join();
+        }
+
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        assertEquals(stableKeys + threads * keysPerThread / 2, table.size());
+        for (int t = 0; t < threads; t++) {
+            for (int i = 1; i <= keysPerThread; i++) {
+                int key = t * keysPerThread + i;
+                assertEquals(i % 2 == 0 ? Integer.valueOf(key) : null, table.get(key));
+            }
+        }
+        for (int key = 1; key <= stableKeys; key++) {
+            assertEquals(Integer.valueOf(key), table.get(-key));
+        }
+    }
+}
@@ -1,7 +1,13 @@
 package com.hklh8.server;
 
+import com.hklh8.common.protocol.Capabilities;
 import com.hklh8.common.protocol.Constants;
+import com.hklh8.common.protocol.Handshake;
+import com.hklh8.common.protocol.ProxyMessage;
+import com.hklh8.common.utils.SessionTable;
+import com.hklh8.server.config.PortMapping;
 import com.hklh8.server.config.ProxyConfig;
+import com.hklh8.server.metrics.MetricsCollector;
 import io.netty.channel.Channel;
 import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
@@ -11,6 +17,9 @@ import java.net.InetSocketAddress;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 代理服务连接管理（代理客户端连接+用户请求连接）
@@ -19,17 +28,70 @@ public class ProxyChannelManager {
 
     private static Logger logger = LoggerFactory.getLogger(ProxyChannelManager.class);
 
-    private static final AttributeKey<Map<String, Channel>> USER_CHANNELS = AttributeKey.newInstance("user_channels");
+    private static final AttributeKey<SessionTable<Channel>> USER_CHANNELS = AttributeKey.newInstance("user_channels");
 
-    private static final AttributeKey<String> REQUEST_LAN_INFO = AttributeKey.newInstance("request_lan_info");
+    /**
+     * 用户连接建立时所在端口的路由
+     */
+    private static final AttributeKey<Route> USER_CHANNEL_ROUTE = AttributeKey.newInstance("user_channel_route");
 
-    private static final AttributeKey<List<Integer>> CHANNEL_PORT = AttributeKey.newInstance("channel_port");
+    /**
+     * 为用户连接分配的代理客户端实例（控制连接）
+     */
+    private static final AttributeKey<Channel> USER_CHANNEL_CMD = AttributeKey.newInstance("user_channel_cmd");
+
+    private static final AttributeKey<List<PortMapping>> CHANNEL_MAPPINGS = AttributeKey.newInstance("channel_mappings");
 
     private static final AttributeKey<String> CHANNEL_CLIENT_KEY = AttributeKey.newInstance("channel_client_key");
 
-    private static Map<Integer, Channel> portCmdChannelMapping = new ConcurrentHashMap<>();
+    private static final AttributeKey<Integer> CHANNEL_TUNNEL_ID = AttributeKey.newInstance("channel_tunnel_id");
+
+    /**
+     * 代理客户端实例的负载均衡权重
+     */
+    private static final AttributeKey<Integer> CHANNEL_WEIGHT = AttributeKey.newInstance("channel_weight");
+
+    /**
+     * 代理客户端实例已请求平滑下线，不再分配新的用户连接
+     */
+    private static final AttributeKey<Boolean> CHANNEL_DRAINING = AttributeKey.newInstance("channel_draining");
 
-    private static Map<String, Channel> cmdChannels = new ConcurrentHashMap<>();
+    /**
+     * 负载均衡权重上限，限制加权轮询序列的长度
+     */
+    private static final int MAX_WEIGHT = 100;
+
+    /**
+     * 多路复用模式下控制连接的全部隧道连接（包括控制连接本身）
+     */
+    private static final AttributeKey<List<Channel>> MUX_LANES = AttributeKey.newInstance("mux_lanes");
+
+    /**
+     * 多路复用隧道连接所属的控制连接
+     */
+    private static final AttributeKey<Channel> MUX_CMD_CHANNEL = AttributeKey.newInstance("mux_cmd_channel");
+
+    /**
+     * 代理客户端预先建立并登记的空闲数据连接
+     */
+    private static final AttributeKey<Queue<Channel>> IDLE_DATA_CHANNELS = AttributeKey.newInstance("idle_data_channels");
+
+    /**
+     * 按公网端口排序的路由快照，代理客户端实例或代理配置变化后整体替换，读取时不加锁
+     */
+    private static volatile RouteTable routes = new RouteTable(new ArrayList<>());
+
+    /**
+     * clientKey对应的全部代理客户端实例，同一个clientKey的多个实例共同服务该clientKey的端口
+     */
+    private static Map<String, List<Channel>> cmdChannels = new ConcurrentHashMap<>();
+
+    /**
+     * 认证时为每个控制连接分配的tunnelId，紧凑帧头模式下数据连接用它代替clientKey
+     */
+    private static Map<Integer, Channel> tunnelCmdChannels = new ConcurrentHashMap<>();
+
+    private static AtomicInteger tunnelIdProducer = new AtomicInteger();
 
     static {
         ProxyConfig.getInstance().addConfigChangedListener(new ProxyConfig.ConfigChangedListener() {
@@ -39,59 +101,35 @@ public class ProxyChannelManager {
              */
             @Override
             public synchronized void onChanged() {
-                Iterator<Entry<String, Channel>> ite = cmdChannels.entrySet().iterator();
-                while (ite.hasNext()) {
-                    Channel proxyChannel = ite.next().getValue();
-                    String clientKey = proxyChannel.attr(CHANNEL_CLIENT_KEY).get();
-
-                    // 去除已经去掉的clientKey配置
-                    Set<String> clientKeySet = ProxyConfig.getInstance().getClientKeySet();
-                    if (!clientKeySet.contains(clientKey)) {
-                        removeCmdChannel(proxyChannel);
-                        continue;
-                    }
-
-                    if (proxyChannel.isActive()) {
-                        List<Integer> inetPorts = new ArrayList<>(ProxyConfig.getInstance().getClientInetPorts(clientKey));
-                        Set<Integer> inetPortSet = new HashSet<>(inetPorts);
-                        List<Integer> channelInetPorts = new ArrayList<>(proxyChannel.attr(CHANNEL_PORT).get());
-
-                        synchronized (portCmdChannelMapping) {
-                            // 移除旧的连接映射关系
-                            for (int chanelInetPort : channelInetPorts) {
-                                Channel channel = portCmdChannelMapping.get(chanelInetPort);
-                                if (channel == null) {
-                                    continue;
-                                }
-
-                                // 判断是否是同一个连接对象，有可能之前已经更换成其他client的连接了
-                                if (proxyChannel == channel) {
-                                    if (!inetPortSet.contains(chanelInetPort)) {
-                                        // 移除新配置中不包含的端口
-                                        portCmdChannelMapping.remove(chanelInetPort);
-                                        proxyChannel.attr(CHANNEL_PORT).get().remove(new Integer(chanelInetPort));
-                                    } else {
-                                        // 端口已经在改proxyChannel中使用了
-                                        inetPorts.remove(new Integer(chanelInetPort));
-                                    }
-                                }
-                            }
+                Set<String> clientKeySet = ProxyConfig.getInstance().getClientKeySet();
+                for (List<Channel> instances : cmdChannels.values()) {
+                    for (Channel proxyChannel : instances) {
+                        String clientKey = proxyChannel.attr(CHANNEL_CLIENT_KEY).get();
+
+                        // 去除已经去掉的clientKey配置
+                        if (!clientKeySet.contains(clientKey)) {
+                            removeCmdChannel(proxyChannel);
+                            continue;
+                        }
 
-                            // 将新配置中增加的外网端口写入到映射配置中
-                            for (int inetPort : inetPorts) {
-                                portCmdChannelMapping.put(inetPort, proxyChannel);
-                                proxyChannel.attr(CHANNEL_PORT).get().add(inetPort);
-                            }
+                        if (proxyChannel.isActive()) {
+                            proxyChannel.attr(CHANNEL_MAPPINGS).set(ProxyConfig.getInstance().getClientPortMappings(clientKey));
                             checkAndClearUserChannels(proxyChannel);
+                            if (isCompact(proxyChannel)) {
+                                sendLanMappings(proxyChannel);
+                            }
                         }
                     }
                 }
 
-                ite = cmdChannels.entrySet().iterator();
-                while (ite.hasNext()) {
-                    Entry<String, Channel> entry = ite.next();
-                    Channel proxyChannel = entry.getValue();
-                    logger.info("proxyChannel config, {}, {}, {} ,{}", entry.getKey(), proxyChannel, getUserChannels(proxyChannel).size(), proxyChannel.attr(CHANNEL_PORT).get());
+                // 端口、映射的后端信息、压缩算法等可能变化，按新配置重新生成路由。
+                // 先下发新映射表再切换路由，新映射编号的连接消息在映射表之后发出；之前按旧编号发出的连接消息由客户端保留的上一次映射表处理
+                updateRoutes();
+
+                for (Entry<String, List<Channel>> entry : cmdChannels.entrySet()) {
+                    for (Channel proxyChannel : entry.getValue()) {
+                        logger.info("proxyChannel config, {}, {}, {} ,{}", entry.getKey(), proxyChannel, getUserChannels(proxyChannel).size(), proxyChannel.attr(CHANNEL_MAPPINGS).get());
+                    }
                 }
             }
 
@@ -99,11 +137,8 @@ public class ProxyChannelManager {
              * 检测连接配置是否与当前配置一致，不一致则关闭
              */
             private void checkAndClearUserChannels(Channel proxyChannel) {
-                Map<String, Channel> userChannels = getUserChannels(proxyChannel);
-                Iterator<Entry<String, Channel>> userChannelIte = userChannels.entrySet().iterator();
-                while (userChannelIte.hasNext()) {
-                    Entry<String, Channel> entry = userChannelIte.next();
-                    Channel userChannel = entry.getValue();
+                SessionTable<Channel> userChannels = getUserChannels(proxyChannel);
+                userChannels.forEach((userId, userChannel) -> {
                     String requestLanInfo = getUserChannelRequestLanInfo(userChannel);
                     InetSocketAddress sa = (InetSocketAddress) userChannel.localAddress();
                     String lanInfo = ProxyConfig.getInstance().getLanInfo(sa.getPort());
@@ -112,34 +147,50 @@ public class ProxyChannelManager {
                     if (lanInfo == null || !lanInfo.equals(requestLanInfo)) {
                         userChannel.close();
 
-                        // ConcurrentHashMap不会报ConcurrentModificationException异常
-                        userChannels.remove(entry.getKey());
+                        // SessionTable遍历时可以删除
+                        userChannels.remove(userId);
                     }
-                }
+                });
             }
         });
     }
 
     /**
-     * 增加代理服务器端口与代理控制客户端连接的映射关系
+     * 初始化代理客户端实例的映射、权重等属性并分配隧道编号，此时还不参与路由，
+     * 协商结果设置完成后再调用 {@link #addCmdChannel(Channel)}
      */
-    public static void addCmdChannel(List<Integer> ports, String clientKey, Channel channel) {
-        if (ports == null) {
-            throw new IllegalArgumentException("port不能为null");
+    public static void initCmdChannel(List<PortMapping> mappings, String clientKey, int weight, Channel channel) {
+        if (mappings == null) {
+            throw new IllegalArgumentException("mappings不能为null");
         }
 
+        channel.attr(CHANNEL_MAPPINGS).set(mappings);
+        channel.attr(CHANNEL_CLIENT_KEY).set(clientKey);
+        channel.attr(CHANNEL_WEIGHT).set(Math.max(1, Math.min(weight, MAX_WEIGHT)));
+        channel.attr(USER_CHANNELS).set(new SessionTable<>());
+
+        int tunnelId = tunnelIdProducer.incrementAndGet();
+        channel.attr(CHANNEL_TUNNEL_ID).set(tunnelId);
+        tunnelCmdChannels.put(tunnelId, channel);
+    }
+
+    /**
+     * 增加代理客户端实例，同一个clientKey可以有多个实例，新的用户连接在这些实例之间分配
+     */
+    public static void addCmdChannel(Channel channel) {
+        String clientKey = channel.attr(CHANNEL_CLIENT_KEY).get();
+
         // 客户端（proxy-client）相对较少，这里同步的比较重
-        // 保证服务器对外端口与客户端到服务器的连接关系在临界情况时调用removeChannel(Channel channel)时不出问题
-        synchronized (portCmdChannelMapping) {
-            for (int port : ports) {
-                portCmdChannelMapping.put(port, channel);
+        // 保证实例列表与路由快照在临界情况时调用removeCmdChannel(Channel channel)时不出问题
+        synchronized (cmdChannels) {
+            List<Channel> instances = cmdChannels.get(clientKey);
+            if (instances == null) {
+                instances = new CopyOnWriteArrayList<>();
+                cmdChannels.put(clientKey, instances);
             }
+            instances.add(channel);
+            updateRoutes();
         }
-
-        channel.attr(CHANNEL_PORT).set(ports);
-        channel.attr(CHANNEL_CLIENT_KEY).set(clientKey);
-        channel.attr(USER_CHANNELS).set(new ConcurrentHashMap<>());
-        cmdChannels.put(clientKey, channel);
     }
 
     /**
@@ -147,27 +198,26 @@ public class ProxyChannelManager {
      */
     public static void removeCmdChannel(Channel channel) {
         logger.warn("连接关闭,清空user channels {}", channel);
-        if (channel.attr(CHANNEL_PORT).get() == null) {
+        if (channel.attr(CHANNEL_MAPPINGS).get() == null) {
             return;
         }
 
         String clientKey = channel.attr(CHANNEL_CLIENT_KEY).get();
-        Channel channel0 = cmdChannels.remove(clientKey);
-        if (channel != channel0) {
-            cmdChannels.put(clientKey, channel);
-        }
-
-        List<Integer> ports = channel.attr(CHANNEL_PORT).get();
-        for (int port : ports) {
-            Channel proxyChannel = portCmdChannelMapping.remove(port);
-            if (proxyChannel == null) {
-                continue;
+        synchronized (cmdChannels) {
+            List<Channel> instances = cmdChannels.get(clientKey);
+            if (instances != null) {
+                instances.remove(channel);
+                if (instances.isEmpty()) {
+                    cmdChannels.remove(clientKey);
+                }
             }
+            updateRoutes();
+        }
 
-            // 在执行断连之前新的连接已经连上来了
-            if (proxyChannel != channel) {
-                portCmdChannelMapping.put(port, proxyChannel);
-            }
+        Integer tunnelId = channel.attr(CHANNEL_TUNNEL_ID).get();
+        if (tunnelId != null) {
+            tunnelCmdChannels.remove(tunnelId);
+            MetricsCollector.removeClientMetrics(tunnelId);
         }
 
         if (channel.isActive()) {
@@ -175,60 +225,373 @@ public class ProxyChannelManager {
             channel.close();
         }
 
-        Map<String, Channel> userChannels = getUserChannels(channel);
-        Iterator<String> ite = userChannels.keySet().iterator();
-        while (ite.hasNext()) {
-            Channel userChannel = userChannels.get(ite.next());
+        List<Channel> lanes = channel.attr(MUX_LANES).get();
+        if (lanes != null) {
+            for (Channel lane : lanes) {
+                if (lane != channel && lane.isActive()) {
+                    lane.close();
+                }
+            }
+        }
+
+        Queue<Channel> idleDataChannels = channel.attr(IDLE_DATA_CHANNELS).get();
+        if (idleDataChannels != null) {
+            for (Channel dataChannel : idleDataChannels) {
+                dataChannel.close();
+            }
+            idleDataChannels.clear();
+        }
+
+        getUserChannels(channel).forEach((userId, userChannel) -> {
             if (userChannel.isActive()) {
                 userChannel.close();
                 logger.info("断开用户连接 {}", userChannel);
             }
+        });
+    }
+
+    /**
+     * 代理客户端实例请求平滑下线：不再向该实例分配新的用户连接，已有的用户连接继续传输直到各自断开
+     */
+    public static void drainCmdChannel(Channel channel) {
+        if (channel.attr(CHANNEL_MAPPINGS).get() == null) {
+            return;
         }
+
+        channel.attr(CHANNEL_DRAINING).set(Boolean.TRUE);
+        updateRoutes();
+        logger.info("代理客户端平滑下线, 剩余用户连接 {}, {}", getUserChannels(channel).size(), channel);
     }
 
-    public static Channel getCmdChannel(Integer port) {
-        return portCmdChannelMapping.get(port);
+    /**
+     * 代理客户端实例是否已请求平滑下线
+     */
+    public static boolean isDraining(Channel cmdChannel) {
+        return cmdChannel.attr(CHANNEL_DRAINING).get() != null;
     }
 
+    /**
+     * 根据代理客户端实例与当前代理配置重新生成路由快照，写入方在cmdChannels锁内串行执行
+     */
+    private static void updateRoutes() {
+        synchronized (cmdChannels) {
+            ProxyConfig config = ProxyConfig.getInstance();
+            List<Route> routeList = new ArrayList<>();
+            for (Entry<String, List<Channel>> entry : cmdChannels.entrySet()) {
+                List<PortMapping> mappings = config.getClientPortMappings(entry.getKey());
+                List<Channel> instances = new ArrayList<>();
+                for (Channel cmdChannel : entry.getValue()) {
+                    if (!isDraining(cmdChannel)) {
+                        instances.add(cmdChannel);
+                    }
+                }
+                if (mappings == null || instances.isEmpty()) {
+                    continue;
+                }
+
+                Channel[] group = instances.toArray(new Channel[instances.size()]);
+                int[] weights = new int[group.length];
+                for (int i = 0; i < group.length; i++) {
+                    weights[i] = group[i].attr(CHANNEL_WEIGHT).get();
+                }
+
+                for (PortMapping mapping : mappings) {
+                    routeList.add(new Route(mapping, group, weights));
+                }
+            }
+            routes = new RouteTable(routeList);
+        }
+    }
+
+    /**
+     * 获取代理服务器端口的路由，该端口还没有代理客户端时返回null
+     */
+    public static Route getRoute(int port) {
+        return routes.get(port);
+    }
+
+    /**
+     * 按起始端口排序的路由区间表，每个端口段只有一个条目，按端口二分查找
+     */
+    private static class RouteTable {
+
+        private final Route[] routes;
+
+        private final int[] inetPorts;
+
+        RouteTable(List<Route> routeList) {
+            routes = routeList.toArray(new Route[routeList.size()]);
+            Arrays.sort(routes, Comparator.comparingInt(Route::getInetPort));
+            inetPorts = new int[routes.length];
+            for (int i = 0; i < routes.length; i++) {
+                inetPorts[i] = routes[i].getInetPort();
+            }
+        }
+
+        Route get(int port) {
+            int index = Arrays.binarySearch(inetPorts, port);
+            if (index < 0) {
+                // 起始端口不大于port的最后一个路由
+                index = -index - 2;
+            }
+            return index >= 0 && port <= routes[index].getInetPortEnd() ? routes[index] : null;
+        }
+    }
+
+    /**
+     * 获取clientKey的一个代理客户端实例，没有在线实例时返回null
+     */
     public static Channel getCmdChannel(String clientKey) {
-        return cmdChannels.get(clientKey);
+        List<Channel> instances = cmdChannels.get(clientKey);
+        if (instances == null) {
+            return null;
+        }
+
+        // 实例列表可能被并发修改，使用快照迭代器读取
+        Iterator<Channel> ite = instances.iterator();
+        return ite.hasNext() ? ite.next() : null;
     }
 
     /**
-     * 增加用户连接与代理客户端连接关系
+     * 在clientKey的全部实例中查找用户连接所属的控制连接，没有时返回null
      */
-    public static void addUserChannelToCmdChannel(Channel cmdChannel, String userId, Channel userChannel) {
-        InetSocketAddress sa = (InetSocketAddress) userChannel.localAddress();
-        String lanInfo = ProxyConfig.getInstance().getLanInfo(sa.getPort());
-        userChannel.attr(Constants.USER_ID).set(userId);
-        userChannel.attr(REQUEST_LAN_INFO).set(lanInfo);
-        cmdChannel.attr(USER_CHANNELS).get().put(userId, userChannel);
+    public static Channel getCmdChannel(String clientKey, int userId) {
+        List<Channel> instances = cmdChannels.get(clientKey);
+        if (instances != null) {
+            for (Channel cmdChannel : instances) {
+                if (getUserChannel(cmdChannel, userId) != null) {
+                    return cmdChannel;
+                }
+            }
+        }
+        return null;
     }
 
     /**
-     * 删除用户连接与代理客户端连接关系
+     * 根据tunnelId获取代理控制客户端连接
+     */
+    public static Channel getTunnelCmdChannel(int tunnelId) {
+        return tunnelCmdChannels.get(tunnelId);
+    }
+
+    /**
+     * 获取控制连接的clientKey
+     */
+    public static String getClientKey(Channel cmdChannel) {
+        return cmdChannel.attr(CHANNEL_CLIENT_KEY).get();
+    }
+
+    /**
+     * 获取控制连接的tunnelId
+     */
+    public static int getTunnelId(Channel cmdChannel) {
+        return cmdChannel.attr(CHANNEL_TUNNEL_ID).get();
+    }
+
+    /**
+     * 控制连接协商的最大帧长度，旧版本客户端没有协商时返回0
+     */
+    public static int getMaxFrameLength(Channel cmdChannel) {
+        Handshake handshake = cmdChannel.attr(Constants.HANDSHAKE).get();
+        return handshake == null ? 0 : handshake.getMaxFrameLength();
+    }
+
+    /**
+     * 控制连接是否协商使用紧凑帧头
+     */
+    public static boolean isCompact(Channel cmdChannel) {
+        Integer capabilities = cmdChannel.attr(Constants.CAPABILITIES).get();
+        return capabilities != null && (capabilities & Capabilities.FRAME_COMPACT) != 0;
+    }
+
+    /**
+     * 控制连接是否协商使用传输压缩，且代理客户端支持该压缩算法
      */
-    public static Channel removeUserChannelFromCmdChannel(Channel cmdChannel, String userId) {
-        if (cmdChannel.attr(USER_CHANNELS).get() == null) {
+    public static boolean isCompression(Channel cmdChannel, byte compression) {
+        Handshake handshake = cmdChannel.attr(Constants.HANDSHAKE).get();
+        return handshake != null && handshake.hasCapability(Capabilities.COMPRESSION) && handshake.supportsCompression(compression);
+    }
+
+    /**
+     * 控制连接是否协商在TYPE_CONNECT中携带早期数据
+     */
+    public static boolean isEarlyData(Channel cmdChannel) {
+        Integer capabilities = cmdChannel.attr(Constants.CAPABILITIES).get();
+        return capabilities != null && (capabilities & Capabilities.EARLY_DATA) != 0;
+    }
+
+    /**
+     * 控制连接是否协商使用预建数据连接
+     */
+    public static boolean isDataChannelPool(Channel cmdChannel) {
+        Integer capabilities = cmdChannel.attr(Constants.CAPABILITIES).get();
+        return capabilities != null && (capabilities & Capabilities.DATA_CHANNEL_POOL) != 0;
+    }
+
+    /**
+     * 控制连接是否协商端口段映射表，否则端口段按端口展开下发
+     */
+    public static boolean isPortRange(Channel cmdChannel) {
+        Integer capabilities = cmdChannel.attr(Constants.CAPABILITIES).get();
+        return capabilities != null && (capabilities & Capabilities.PORT_RANGE) != 0;
+    }
+
+    /**
+     * 登记代理客户端的空闲数据连接
+     */
+    public static void addIdleDataChannel(Channel cmdChannel, Channel dataChannel) {
+        Queue<Channel> idleDataChannels = cmdChannel.attr(IDLE_DATA_CHANNELS).get();
+        if (idleDataChannels == null) {
+            idleDataChannels = new ConcurrentLinkedQueue<>();
+            Queue<Channel> old = cmdChannel.attr(IDLE_DATA_CHANNELS).setIfAbsent(idleDataChannels);
+            if (old != null) {
+                idleDataChannels = old;
+            }
+        }
+        idleDataChannels.offer(dataChannel);
+    }
+
+    /**
+     * 取出一条空闲数据连接，没有时返回null
+     */
+    public static Channel pollIdleDataChannel(Channel cmdChannel) {
+        Queue<Channel> idleDataChannels = cmdChannel.attr(IDLE_DATA_CHANNELS).get();
+        if (idleDataChannels == null) {
             return null;
         }
 
-        synchronized (cmdChannel) {
-            return cmdChannel.attr(USER_CHANNELS).get().remove(userId);
+        Channel dataChannel;
+        while ((dataChannel = idleDataChannels.poll()) != null) {
+            if (dataChannel.isActive()) {
+                return dataChannel;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 控制连接是否协商使用多路复用
+     */
+    public static boolean isMultiplex(Channel cmdChannel) {
+        Integer capabilities = cmdChannel.attr(Constants.CAPABILITIES).get();
+        return capabilities != null && (capabilities & Capabilities.MULTIPLEX) != 0;
+    }
+
+    /**
+     * 控制连接开启多路复用，控制连接本身作为第一条隧道连接
+     */
+    public static void enableMultiplex(Channel cmdChannel) {
+        List<Channel> lanes = new CopyOnWriteArrayList<>();
+        lanes.add(cmdChannel);
+        cmdChannel.attr(MUX_LANES).set(lanes);
+        cmdChannel.attr(MUX_CMD_CHANNEL).set(cmdChannel);
+    }
+
+    /**
+     * 代理客户端为多路复用增加的隧道连接
+     */
+    public static void addMuxLane(Channel cmdChannel, Channel lane) {
+        lane.attr(MUX_CMD_CHANNEL).set(cmdChannel);
+        cmdChannel.attr(MUX_LANES).get().add(lane);
+        logger.info("增加多路复用隧道连接 {}, {}", cmdChannel, lane);
+    }
+
+    /**
+     * 隧道连接断开，关闭在该隧道上传输的用户连接
+     */
+    public static void removeMuxLane(Channel lane) {
+        Channel cmdChannel = lane.attr(MUX_CMD_CHANNEL).get();
+        List<Channel> lanes = cmdChannel.attr(MUX_LANES).get();
+        lanes.remove(lane);
+
+        SessionTable<Channel> userChannels = getUserChannels(cmdChannel);
+        userChannels.forEach((userId, userChannel) -> {
+            if (userChannel.attr(Constants.NEXT_CHANNEL).get() == lane) {
+                userChannels.remove(userId, userChannel);
+                userChannel.close();
+            }
+        });
+    }
+
+    /**
+     * 获取多路复用连接（控制连接或隧道连接）所属的控制连接，非多路复用连接返回null
+     */
+    public static Channel getMuxCmdChannel(Channel channel) {
+        return channel.attr(MUX_CMD_CHANNEL).get();
+    }
+
+    /**
+     * 为用户连接选择传输的隧道连接
+     */
+    public static Channel selectMuxLane(Channel cmdChannel, int userId) {
+        // 在快照上选择，隧道连接同时被移除时不会越界
+        Channel[] lanes = cmdChannel.attr(MUX_LANES).get().toArray(new Channel[0]);
+        if (lanes.length <= 1) {
+            return cmdChannel;
         }
+        return lanes[userId % lanes.length];
+    }
+
+    /**
+     * 向代理客户端下发映射编号与后端服务器信息的对应关系
+     */
+    public static void sendLanMappings(Channel cmdChannel) {
+        String clientKey = cmdChannel.attr(CHANNEL_CLIENT_KEY).get();
+        ProxyMessage proxyMessage = new ProxyMessage();
+        proxyMessage.setType(ProxyMessage.TYPE_MAPPINGS);
+        proxyMessage.setData(ProxyConfig.getInstance().getClientLanMappings(clientKey, isPortRange(cmdChannel)).encode());
+        cmdChannel.writeAndFlush(proxyMessage);
+    }
+
+    /**
+     * 增加用户连接与代理客户端连接关系
+     */
+    public static void addUserChannelToCmdChannel(Channel cmdChannel, int userId, Channel userChannel) {
+        userChannel.attr(Constants.USER_ID).set(userId);
+        userChannel.attr(USER_CHANNEL_CMD).set(cmdChannel);
+        cmdChannel.attr(USER_CHANNELS).get().put(userId, userChannel);
+    }
+
+    /**
+     * 获取为用户连接分配的代理客户端实例，还没有分配时返回null
+     */
+    public static Channel getUserChannelCmdChannel(Channel userChannel) {
+        return userChannel.attr(USER_CHANNEL_CMD).get();
+    }
+
+    /**
+     * 用户连接建立时保存所在端口的路由，之后该连接的事件都使用这个路由
+     */
+    public static void setUserChannelRoute(Channel userChannel, Route route) {
+        userChannel.attr(USER_CHANNEL_ROUTE).set(route);
+    }
+
+    /**
+     * 获取用户连接建立时的路由，当时该端口没有代理客户端时返回null
+     */
+    public static Route getUserChannelRoute(Channel userChannel) {
+        return userChannel.attr(USER_CHANNEL_ROUTE).get();
+    }
+
+    /**
+     * 删除用户连接与代理客户端连接关系
+     */
+    public static Channel removeUserChannelFromCmdChannel(Channel cmdChannel, int userId) {
+        SessionTable<Channel> userChannels = cmdChannel.attr(USER_CHANNELS).get();
+        return userChannels == null ? null : userChannels.remove(userId);
     }
 
     /**
      * 根据代理客户端连接与用户编号获取用户连接
      */
-    public static Channel getUserChannel(Channel cmdChannel, String userId) {
+    public static Channel getUserChannel(Channel cmdChannel, int userId) {
         return cmdChannel.attr(USER_CHANNELS).get().get(userId);
     }
 
     /**
      * 获取用户编号
      */
-    public static String getUserChannelUserId(Channel userChannel) {
+    public static Integer getUserChannelUserId(Channel userChannel) {
         return userChannel.attr(Constants.USER_ID).get();
     }
 
@@ -236,13 +599,14 @@ public class ProxyChannelManager {
      * 获取用户请求的内网IP端口信息
      */
     public static String getUserChannelRequestLanInfo(Channel userChannel) {
-        return userChannel.attr(REQUEST_LAN_INFO).get();
+        Route route = userChannel.attr(USER_CHANNEL_ROUTE).get();
+        return route == null ? null : route.getLanInfo(((InetSocketAddress) userChannel.localAddress()).getPort());
     }
 
     /**
      * 获取代理控制客户端连接绑定的所有用户连接
      */
-    public static Map<String, Channel> getUserChannels(Channel cmdChannel) {
+    public static SessionTable<Channel> getUserChannels(Channel cmdChannel) {
         return cmdChannel.attr(USER_CHANNELS).get();
     }
 
@@ -1,12 +1,16 @@
 package com.hklh8.server;
 
+import com.hklh8.common.protocol.BatchFlushHandler;
 import com.hklh8.common.protocol.IdleCheckHandler;
 import com.hklh8.common.protocol.ProxyMessageDecoder;
 import com.hklh8.common.protocol.ProxyMessageEncoder;
+import com.hklh8.server.config.PortMapping;
 import com.hklh8.server.config.ProxyConfig;
 import com.hklh8.server.handlers.ServerChannelHandler;
 import com.hklh8.server.handlers.UserChannelHandler;
+import com.hklh8.server.metrics.MetricsCollector;
 import com.hklh8.server.metrics.handler.BytesMetricsHandler;
+import com.hklh8.server.metrics.handler.FlushMetricsHandler;
 import com.hklh8.server.utils.PropertiesValue;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
@@ -22,14 +26,12 @@ import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
-import java.net.BindException;
-import java.util.List;
 
 public class ProxyServer implements ProxyConfig.ConfigChangedListener {
 
     //max packet is 2M.
     //解码时，处理每个帧数据的最大长度
-    private static final int MAX_FRAME_LENGTH = 2 * 1024 * 1024;
+    public static final int MAX_FRAME_LENGTH = 2 * 1024 * 1024;
 
     //该帧数据中，存放该帧数据的长度的数据的起始位置
     private static final int LENGTH_FIELD_OFFSET = 0;
@@ -49,6 +51,31 @@ public class ProxyServer implements ProxyConfig.ConfigChangedListener {
 
     private NioEventLoopGroup serverBossGroup;
 
+    /**
+     * 合并flush时待发送字节数上限
+     */
+    private int flushMaxPendingBytes;
+
+    /**
+     * 合并flush时最多延迟的微秒数
+     */
+    private long flushMaxDelayMicros;
+
+    /**
+     * 每个传输帧携带的最大数据长度
+     */
+    private int maxFragmentLength;
+
+    /**
+     * 随TYPE_CONNECT发送的早期数据最大字节数，0表示不使用早期数据
+     */
+    private int earlyDataMaxBytes;
+
+    /**
+     * 等待早期数据的最长毫秒数
+     */
+    private long earlyDataWaitMillis;
+
     public ProxyServer() {
 
         serverBossGroup = new NioEventLoopGroup();
@@ -58,14 +85,21 @@ public class ProxyServer implements ProxyConfig.ConfigChangedListener {
     }
 
     public void start() {
+        flushMaxPendingBytes = PropertiesValue.getIntValue("flush.maxPendingBytes", BatchFlushHandler.DEFAULT_MAX_PENDING_BYTES);
+        flushMaxDelayMicros = PropertiesValue.getIntValue("flush.maxDelayMicros", 0);
+        maxFragmentLength = PropertiesValue.getIntValue("frame.maxFragmentLength", ProxyMessageEncoder.DEFAULT_MAX_FRAGMENT_LENGTH);
+        earlyDataMaxBytes = PropertiesValue.getIntValue("earlyData.maxBytes", 0);
+        earlyDataWaitMillis = PropertiesValue.getIntValue("earlyData.waitMillis", 20);
+
         ServerBootstrap bootstrap = new ServerBootstrap();
         bootstrap.group(serverBossGroup, serverWorkerGroup).channel(NioServerSocketChannel.class).childHandler(new ChannelInitializer<SocketChannel>() {
 
             @Override
             public void initChannel(SocketChannel ch) throws Exception {
                 ch.pipeline().addLast(new ProxyMessageDecoder(MAX_FRAME_LENGTH, LENGTH_FIELD_OFFSET, LENGTH_FIELD_LENGTH, LENGTH_ADJUSTMENT, INITIAL_BYTES_TO_STRIP));
-                ch.pipeline().addLast(new ProxyMessageEncoder());
+                ch.pipeline().addLast(new ProxyMessageEncoder(maxFragmentLength));
                 ch.pipeline().addLast(new IdleCheckHandler(IdleCheckHandler.READ_IDLE_TIME, IdleCheckHandler.WRITE_IDLE_TIME, 0));
+                ch.pipeline().addLast(new FlushMetricsHandler(flushMaxPendingBytes, flushMaxDelayMicros));
                 ch.pipeline().addLast(new ServerChannelHandler());
             }
         });
@@ -86,7 +120,7 @@ public class ProxyServer implements ProxyConfig.ConfigChangedListener {
             initializeSSLTCPTransport(host, port, new SslContextCreator().initSSLContext());
         }
 
-        startUserPort();
+        initUserPort();
     }
 
     private void initializeSSLTCPTransport(String host, int port, final SSLContext sslContext) {
@@ -98,8 +132,9 @@ public class ProxyServer implements ProxyConfig.ConfigChangedListener {
                 try {
                     pipeline.addLast("ssl", createSslHandler(sslContext, PropertiesValue.getBooleanValue("ssl.needsClientAuth", false)));
                     ch.pipeline().addLast(new ProxyMessageDecoder(MAX_FRAME_LENGTH, LENGTH_FIELD_OFFSET, LENGTH_FIELD_LENGTH, LENGTH_ADJUSTMENT, INITIAL_BYTES_TO_STRIP));
-                    ch.pipeline().addLast(new ProxyMessageEncoder());
+                    ch.pipeline().addLast(new ProxyMessageEncoder(maxFragmentLength));
                     ch.pipeline().addLast(new IdleCheckHandler(IdleCheckHandler.READ_IDLE_TIME, IdleCheckHandler.WRITE_IDLE_TIME, 0));
+                    ch.pipeline().addLast(new FlushMetricsHandler(flushMaxPendingBytes, flushMaxDelayMicros));
                     ch.pipeline().addLast(new ServerChannelHandler());
                 } catch (Throwable th) {
                     logger.error("创建pipeline时，出现错误", th);
@@ -117,34 +152,40 @@ public class ProxyServer implements ProxyConfig.ConfigChangedListener {
         }
     }
 
-    private void startUserPort() {
+    /**
+     * 创建绑定用户端口的ServerBootstrap并绑定当前配置的全部用户端口
+     */
+    private void initUserPort() {
         ServerBootstrap bootstrap = new ServerBootstrap();
         bootstrap.group(serverBossGroup, serverWorkerGroup).channel(NioServerSocketChannel.class).childHandler(new ChannelInitializer<SocketChannel>() {
             @Override
             public void initChannel(SocketChannel ch) throws Exception {
-                ch.pipeline().addFirst(new BytesMetricsHandler());
-                ch.pipeline().addLast(new UserChannelHandler());
+                // 接受连接时取一次所在端口的路由，该连接之后的事件不再按端口查找
+                int port = ch.localAddress().getPort();
+                Route route = ProxyChannelManager.getRoute(port);
+                ProxyChannelManager.setUserChannelRoute(ch, route);
+                MetricsCollector metricsCollector = route != null ? route.getMetricsCollector() : getCollector(port);
+                ch.pipeline().addFirst(new BytesMetricsHandler(metricsCollector));
+                ch.pipeline().addLast(new FlushMetricsHandler(flushMaxPendingBytes, flushMaxDelayMicros, metricsCollector));
+                ch.pipeline().addLast(new UserChannelHandler(earlyDataMaxBytes, earlyDataWaitMillis));
             }
         });
 
-        List<Integer> ports = ProxyConfig.getInstance().getUserPorts();
-        for (int port : ports) {
-            try {
-                bootstrap.bind(port).get();
-                logger.info("绑定用户端口 " + port);
-            } catch (Exception ex) {
-                // BindException表示该端口已经绑定过
-                if (!(ex.getCause() instanceof BindException)) {
-                    throw new RuntimeException(ex);
-                }
-            }
-        }
+        UserPortManager.init(bootstrap);
+        UserPortManager.update(ProxyConfig.getInstance().getPortMappings());
+    }
 
+    /**
+     * 端口还没有代理客户端时的统计，端口段映射按段起始端口汇总
+     */
+    private static MetricsCollector getCollector(int port) {
+        PortMapping mapping = ProxyConfig.getInstance().getPortMapping(port);
+        return MetricsCollector.getCollector(mapping != null ? mapping.getInetPort() : port);
     }
 
     @Override
     public void onChanged() {
-        startUserPort();
+        UserPortManager.update(ProxyConfig.getInstance().getPortMappings());
     }
 
     public void stop() {
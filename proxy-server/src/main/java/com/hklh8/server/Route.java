@@ -0,0 +1,130 @@
+package com.hklh8.server;
+
+import com.hklh8.server.config.PortMapping;
+import com.hklh8.server.metrics.MetricsCollector;
+import com.hklh8.server.utils.PropertiesValue;
+import io.netty.channel.Channel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 代理服务器端口（或端口段）的路由：服务该映射的一组代理客户端实例（控制连接）及映射配置，除轮询游标外不可变
+ * <p>
+ * 认证、下线或配置变化时重新生成全部路由，用户连接建立时取一次保存在连接上，之后处理事件不再查找。
+ * 端口段映射只有一个路由，段内端口的后端服务器信息与映射编号按偏移量计算
+ */
+public class Route {
+
+    /**
+     * 按权重轮询分配用户连接，不配置时分配给活跃用户连接数（按权重折算）最少的实例
+     */
+    private static final boolean WEIGHTED_ROUND_ROBIN = "weightedRoundRobin".equalsIgnoreCase(PropertiesValue.getStringValue("balance.strategy"));
+
+    private final PortMapping mapping;
+
+    private final Channel[] cmdChannels;
+
+    private final int[] weights;
+
+    /**
+     * 平滑加权轮询预先生成的实例下标序列，长度为权重之和
+     */
+    private final int[] schedule;
+
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    /**
+     * 端口段映射的统计按段起始端口汇总
+     */
+    private final MetricsCollector metricsCollector;
+
+    Route(PortMapping mapping, Channel[] cmdChannels, int[] weights) {
+        this.mapping = mapping;
+        this.cmdChannels = cmdChannels;
+        this.weights = weights;
+        this.schedule = WEIGHTED_ROUND_ROBIN ? schedule(weights) : null;
+        this.metricsCollector = MetricsCollector.getCollector(mapping.getInetPort());
+    }
+
+    /**
+     * 平滑加权轮询：每轮每个实例加上自己的权重，选出当前值最大的实例并减去权重之和，权重高的实例不会连续集中出现
+     */
+    private static int[] schedule(int[] weights) {
+        int total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+
+        int[] schedule = new int[total];
+        int[] current = new int[weights.length];
+        for (int i = 0; i < total; i++) {
+            int selected = 0;
+            for (int j = 0; j < weights.length; j++) {
+                current[j] += weights[j];
+                if (current[j] > current[selected]) {
+                    selected = j;
+                }
+            }
+            current[selected] -= total;
+            schedule[i] = selected;
+        }
+        return schedule;
+    }
+
+    /**
+     * 为新的用户连接选择代理客户端实例
+     */
+    public Channel selectCmdChannel() {
+        if (cmdChannels.length == 1) {
+            return cmdChannels[0];
+        }
+
+        int next = cursor.getAndIncrement() & Integer.MAX_VALUE;
+        if (schedule != null) {
+            return cmdChannels[schedule[next % schedule.length]];
+        }
+
+        // 从轮询位置开始比较，活跃连接数相同时依次分配给各个实例
+        int selected = -1;
+        int selectedSessions = 0;
+        for (int i = 0; i < cmdChannels.length; i++) {
+            int index = (next + i) % cmdChannels.length;
+            int sessions = ProxyChannelManager.getUserChannels(cmdChannels[index]).size();
+            if (selected < 0 || (long) sessions * weights[selected] < (long) selectedSessions * weights[index]) {
+                selected = index;
+                selectedSessions = sessions;
+            }
+        }
+        return cmdChannels[selected];
+    }
+
+    public int getInetPort() {
+        return mapping.getInetPort();
+    }
+
+    public int getInetPortEnd() {
+        return mapping.getInetPortEnd();
+    }
+
+    /**
+     * 公网端口对应的后端服务器信息
+     */
+    public String getLanInfo(int port) {
+        return mapping.getLanInfo(port);
+    }
+
+    /**
+     * 认证时下发给代理客户端的映射编号
+     */
+    public int getMappingId(int port) {
+        return mapping.getMappingId(port);
+    }
+
+    public byte getCompression() {
+        return mapping.getCompression();
+    }
+
+    public MetricsCollector getMetricsCollector() {
+        return metricsCollector;
+    }
+}
@@ -0,0 +1,213 @@
+package com.hklh8.server;
+
+import com.hklh8.server.config.PortMapping;
+import com.hklh8.server.config.PortMappings;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 用户端口监听管理
+ * <p>
+ * 保存每个用户端口的监听连接与绑定状态，配置变化时与新的端口映射区间表比较，只绑定新增的端口（以及上次绑定失败的端口）、
+ * 关闭配置中去掉的端口，绑定与关闭都异步并行执行，不阻塞配置更新。端口段映射的每个端口都需要单独监听
+ */
+public class UserPortManager {
+
+    private static Logger logger = LoggerFactory.getLogger(UserPortManager.class);
+
+    private static ServerBootstrap bootstrap;
+
+    private static Map<Integer, PortStatus> portStatuses = new ConcurrentHashMap<>();
+
+    /**
+     * 正在关闭的监听连接，端口去掉后又重新加入时等关闭完成再绑定
+     */
+    private static Map<Integer, ChannelFuture> closingPorts = new ConcurrentHashMap<>();
+
+    /**
+     * 设置绑定用户端口使用的ServerBootstrap，在第一次update之前调用
+     */
+    public static void init(ServerBootstrap bootstrap) {
+        UserPortManager.bootstrap = bootstrap;
+    }
+
+    /**
+     * 按新的端口映射区间表绑定新增端口、关闭去掉的端口，调用方不等待绑定结果
+     */
+    public static synchronized void update(PortMappings mappings) {
+        int unbinds = 0;
+        Iterator<Entry<Integer, PortStatus>> ite = portStatuses.entrySet().iterator();
+        while (ite.hasNext()) {
+            PortStatus status = ite.next().getValue();
+            if (mappings.get(status.port) == null) {
+                ite.remove();
+                unbind(status);
+                unbinds++;
+            }
+        }
+
+        int binds = 0;
+        for (PortMapping mapping : mappings.getMappings()) {
+            for (int port = mapping.getInetPort(); port <= mapping.getInetPortEnd(); port++) {
+                PortStatus status = portStatuses.get(port);
+                if (status == null || PortStatus.FAILED.equals(status.state)) {
+                    bind(port);
+                    binds++;
+                }
+            }
+        }
+        logger.info("更新用户端口, 映射数 {}, 端口数 {}, 绑定 {}, 关闭 {}", mappings.getMappings().size(), mappings.getPortCount(), binds, unbinds);
+    }
+
+    private static void bind(int port) {
+        PortStatus status = new PortStatus(port);
+        portStatuses.put(port, status);
+        ChannelFuture closeFuture = closingPorts.get(port);
+        if (closeFuture != null) {
+            closeFuture.addListener((ChannelFutureListener) future -> doBind(status));
+        } else {
+            doBind(status);
+        }
+    }
+
+    private static void doBind(PortStatus status) {
+        if (status.removed) {
+            return;
+        }
+
+        int port = status.port;
+        bootstrap.bind(port).addListener((ChannelFutureListener) future -> {
+            if (future.isSuccess()) {
+                if (status.bound(future.channel())) {
+                    logger.info("绑定用户端口 {}", port);
+                } else {
+                    // 绑定完成前端口已经被去掉
+                    close(port, future.channel());
+                }
+                return;
+            }
+
+            ChannelFuture closeFuture = closingPorts.get(port);
+            if (closeFuture != null && !status.removed) {
+                // 同一端口之前的监听连接还在关闭中，关闭完成后重新绑定
+                closeFuture.addListener((ChannelFutureListener) f -> doBind(status));
+                return;
+            }
+            status.failed(future.cause());
+            logger.warn("绑定用户端口 {} 失败, {}", port, future.cause().toString());
+        });
+    }
+
+    private static void unbind(PortStatus status) {
+        Channel channel = status.unbind();
+        if (channel != null) {
+            close(status.port, channel);
+        }
+    }
+
+    private static void close(int port, Channel channel) {
+        ChannelFuture closeFuture = channel.close();
+        closingPorts.put(port, closeFuture);
+        closeFuture.addListener((ChannelFutureListener) future -> {
+            closingPorts.remove(port, closeFuture);
+            logger.info("关闭用户端口 {}", port);
+        });
+    }
+
+    /**
+     * 获取全部用户端口的绑定状态，按端口排序
+     */
+    public static List<PortStatus> getPortStatuses() {
+        List<PortStatus> statuses = new ArrayList<>(portStatuses.values());
+        statuses.sort(Comparator.comparingInt(PortStatus::getPort));
+        return statuses;
+    }
+
+    /**
+     * 用户端口的绑定状态
+     */
+    public static class PortStatus implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public static final String BINDING = "binding";
+
+        public static final String BOUND = "bound";
+
+        public static final String FAILED = "failed";
+
+        private final int port;
+
+        private volatile String state = BINDING;
+
+        /**
+         * 绑定失败的原因
+         */
+        private volatile String error;
+
+        /**
+         * 最近一次状态变化的时间
+         */
+        private volatile long timestamp = System.currentTimeMillis();
+
+        private transient volatile Channel channel;
+
+        /**
+         * 端口已从配置中去掉，绑定成功后立即关闭
+         */
+        private transient volatile boolean removed;
+
+        PortStatus(int port) {
+            this.port = port;
+        }
+
+        /**
+         * @return 绑定完成前端口已经被去掉时返回false，由调用方关闭监听连接
+         */
+        boolean bound(Channel channel) {
+            this.channel = channel;
+            state = BOUND;
+            timestamp = System.currentTimeMillis();
+            return !removed;
+        }
+
+        void failed(Throwable cause) {
+            error = cause.toString();
+            state = FAILED;
+            timestamp = System.currentTimeMillis();
+        }
+
+        /**
+         * 标记为已去掉，返回需要关闭的监听连接，还没有绑定完成时返回null
+         */
+        Channel unbind() {
+            removed = true;
+            return channel;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.hklh8.server.config;
+
+import com.hklh8.common.protocol.Compression;
+import com.hklh8.common.protocol.LanMappings;
+
+import java.util.Objects;
+
+/**
+ * 一条端口映射：单个公网端口或一段连续的公网端口[inetPort, inetPortEnd]，不可变
+ * <p>
+ * 端口段映射只保存段起始端口对应的后端服务器信息，段内端口的后端服务器端口及映射编号按相对起始端口的偏移量计算
+ */
+public class PortMapping {
+
+    private final String clientKey;
+
+    private final int inetPort;
+
+    private final int inetPortEnd;
+
+    /**
+     * 段起始端口对应的后端服务器信息，多个后端服务器用逗号分隔
+     */
+    private final String lanInfo;
+
+    /**
+     * 段起始端口的映射编号，段内端口的映射编号连续
+     */
+    private final int mappingId;
+
+    private final byte compression;
+
+    private final byte protocol;
+
+    private PortMapping(String clientKey, int inetPort, int inetPortEnd, String lanInfo, int mappingId, byte compression, byte protocol) {
+        this.clientKey = clientKey;
+        this.inetPort = inetPort;
+        this.inetPortEnd = inetPortEnd;
+        this.lanInfo = lanInfo;
+        this.mappingId = mappingId;
+        this.compression = compression;
+        this.protocol = protocol;
+    }
+
+    /**
+     * 解析配置中的映射，端口段映射的后端服务器写作 ip:port 或 ip:port-portEnd（段长度必须与公网端口段相同）。
+     * 映射编号在全部映射解析完成后由 {@link #withMappingId(int)} 分配
+     */
+    static PortMapping of(String clientKey, ProxyConfig.ClientProxyMapping mapping) {
+        if (mapping.getInetPort() == null) {
+            throw new IllegalArgumentException("公网端口不能为空: " + mapping.getName());
+        }
+
+        int inetPort = mapping.getInetPort();
+        int inetPortEnd = mapping.getInetPortEnd() == null ? inetPort : mapping.getInetPortEnd();
+        if (inetPort <= 0 || inetPortEnd < inetPort || inetPortEnd > 65535) {
+            throw new IllegalArgumentException("错误的公网端口: " + inetPort + "-" + inetPortEnd);
+        }
+
+        String lanInfo = mapping.getLan();
+        if (inetPortEnd > inetPort) {
+            lanInfo = parseRangeLan(lanInfo, inetPortEnd - inetPort);
+        }
+
+        return new PortMapping(clientKey, inetPort, inetPortEnd, lanInfo, 0, Compression.valueOf(mapping.getCompression()),
+                LanMappings.protocolValueOf(mapping.getProtocol()));
+    }
+
+    /**
+     * 使用段起始端口的映射编号创建新的映射，段内端口占用之后连续的编号
+     */
+    PortMapping withMappingId(int mappingId) {
+        return new PortMapping(clientKey, inetPort, inetPortEnd, lanInfo, mappingId, compression, protocol);
+    }
+
+    /**
+     * 客户端、公网端口及后端服务器都相同时为同一个映射目标，配置更新后沿用原来的映射编号
+     */
+    boolean isSameTarget(PortMapping other) {
+        return clientKey.equals(other.clientKey) && inetPort == other.inetPort && inetPortEnd == other.inetPortEnd
+                && Objects.equals(lanInfo, other.lanInfo);
+    }
+
+    /**
+     * 检查端口段映射的每个后端服务器，去掉端口段的结束端口，只保留起始端口
+     */
+    private static String parseRangeLan(String lan, int span) {
+        StringBuilder sb = new StringBuilder();
+        for (String item : lan.split(",")) {
+            item = item.trim();
+            int index = item.lastIndexOf(':');
+            if (item.startsWith("unix:") || index < 0) {
+                throw new IllegalArgumentException("端口段映射的后端服务器必须为ip:port: " + lan);
+            }
+
+            String ports = item.substring(index + 1);
+            int dash = ports.indexOf('-');
+            int start = Integer.parseInt(dash < 0 ? ports : ports.substring(0, dash));
+            int end = dash < 0 ? start + span : Integer.parseInt(ports.substring(dash + 1));
+            if (end - start != span || end > 65535) {
+                throw new IllegalArgumentException("后端服务器端口段与公网端口段长度不一致: " + item);
+            }
+
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(item, 0, index + 1).append(start);
+        }
+        return sb.toString();
+    }
+
+    public String getClientKey() {
+        return clientKey;
+    }
+
+    public int getInetPort() {
+        return inetPort;
+    }
+
+    public int getInetPortEnd() {
+        return inetPortEnd;
+    }
+
+    public int getPortCount() {
+        return inetPortEnd - inetPort + 1;
+    }
+
+    public boolean isRange() {
+        return inetPortEnd > inetPort;
+    }
+
+    public boolean contains(int port) {
+        return port >= inetPort && port <= inetPortEnd;
+    }
+
+    /**
+     * 段起始端口对应的后端服务器信息
+     */
+    public String getLanInfo() {
+        return lanInfo;
+    }
+
+    /**
+     * 公网端口对应的后端服务器信息
+     */
+    public String getLanInfo(int port) {
+        return LanMappings.offsetLan(lanInfo, port - inetPort);
+    }
+
+    /**
+     * 段起始端口的映射编号
+     */
+    public int getMappingId() {
+        return mappingId;
+    }
+
+    /**
+     * 段结束端口的映射编号
+     */
+    public int getLastMappingId() {
+        return mappingId + inetPortEnd - inetPort;
+    }
+
+    /**
+     * 公网端口对应的映射编号
+     */
+    public int getMappingId(int port) {
+        return mappingId + port - inetPort;
+    }
+
+    public byte getCompression() {
+        return compression;
+    }
+
+    public byte getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public String toString() {
+        return isRange() ? inetPort + "-" + inetPortEnd : String.valueOf(inetPort);
+    }
+}
@@ -0,0 +1,110 @@
+package com.hklh8.server.config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 全部端口映射按公网端口排序的区间表，按端口或映射编号二分查找，不可变
+ * <p>
+ * 每条映射（单个端口或端口段）只占一个条目，查找与遍历的开销与映射条数有关，与端口数量无关
+ */
+public class PortMappings {
+
+    public static final PortMappings EMPTY = new PortMappings(Collections.<PortMapping>emptyList());
+
+    /**
+     * 按公网端口排序
+     */
+    private final PortMapping[] mappings;
+
+    private final int[] inetPorts;
+
+    /**
+     * 按起始映射编号排序
+     */
+    private final PortMapping[] mappingsById;
+
+    private final int[] mappingIds;
+
+    private final int portCount;
+
+    /**
+     * @throws IllegalArgumentException 公网端口有重叠时
+     */
+    PortMappings(List<PortMapping> list) {
+        mappings = list.toArray(new PortMapping[list.size()]);
+        Arrays.sort(mappings, Comparator.comparingInt(PortMapping::getInetPort));
+        inetPorts = new int[mappings.length];
+        int portCount = 0;
+        for (int i = 0; i < mappings.length; i++) {
+            if (i > 0 && mappings[i].getInetPort() <= mappings[i - 1].getInetPortEnd()) {
+                throw new IllegalArgumentException("一个公网端口只能映射一个后端信息，不能重复: " + mappings[i]);
+            }
+            inetPorts[i] = mappings[i].getInetPort();
+            portCount += mappings[i].getPortCount();
+        }
+        this.portCount = portCount;
+
+        mappingsById = mappings.clone();
+        Arrays.sort(mappingsById, Comparator.comparingInt(PortMapping::getMappingId));
+        mappingIds = new int[mappingsById.length];
+        for (int i = 0; i < mappingsById.length; i++) {
+            mappingIds[i] = mappingsById[i].getMappingId();
+        }
+    }
+
+    /**
+     * 获取公网端口所在的映射，没有时返回null
+     */
+    public PortMapping get(int port) {
+        int index = floor(inetPorts, port);
+        return index >= 0 && port <= mappings[index].getInetPortEnd() ? mappings[index] : null;
+    }
+
+    /**
+     * 获取映射编号所在的映射，没有时返回null
+     */
+    public PortMapping getByMappingId(int mappingId) {
+        int index = floor(mappingIds, mappingId);
+        if (index < 0) {
+            return null;
+        }
+
+        PortMapping mapping = mappingsById[index];
+        return mappingId - mapping.getMappingId() < mapping.getPortCount() ? mapping : null;
+    }
+
+    /**
+     * 最后一个不大于key的元素下标，没有时返回-1
+     */
+    private static int floor(int[] sorted, int key) {
+        int index = Arrays.binarySearch(sorted, key);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    /**
+     * 按公网端口排序的全部映射
+     */
+    public List<PortMapping> getMappings() {
+        return Collections.unmodifiableList(Arrays.asList(mappings));
+    }
+
+    /**
+     * 全部映射包含的公网端口数量
+     */
+    public int getPortCount() {
+        return portCount;
+    }
+
+    /**
+     * 按公网端口排序的不可变映射列表，用于每个代理客户端的映射
+     */
+    static List<PortMapping> sorted(List<PortMapping> list) {
+        List<PortMapping> sorted = new ArrayList<>(list);
+        sorted.sort(Comparator.comparingInt(PortMapping::getInetPort));
+        return Collections.unmodifiableList(sorted);
+    }
+}
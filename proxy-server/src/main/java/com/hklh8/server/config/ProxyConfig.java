@@ -1,12 +1,14 @@
 package com.hklh8.server.config;
 
 import com.alibaba.fastjson.JSON;
+import com.hklh8.common.protocol.LanMappings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.Map.Entry;
 
 /**
  * server config
@@ -44,14 +46,20 @@ public class ProxyConfig implements Serializable {
     ;
 
     /**
-     * 代理服务器为各个代理客户端（key）开启对应的端口列表（value）
+     * 代理服务器为各个代理客户端（key）开启的端口映射列表（value），按公网端口排序
      */
-    private volatile Map<String, List<Integer>> clientInetPortMapping = new HashMap<>();
+    private volatile Map<String, List<PortMapping>> clientPortMappings = new HashMap<>();
 
     /**
-     * 代理服务器上的每个对外端口（key）对应的代理客户端背后的真实服务器信息（value）
+     * 代理服务器上全部对外端口的映射区间表，端口段映射只占一个条目
      */
-    private volatile Map<Integer, String> inetPortLanInfoMapping = new HashMap<>();
+    private volatile PortMappings portMappings = PortMappings.EMPTY;
+
+    /**
+     * 下一个可分配的映射编号。配置更新时没有变化的映射沿用原来的编号，新增或变化的映射从这里继续分配，
+     * 旧编号不会马上指向新的后端服务器信息；到达int上限后从1开始，跳过仍在使用的编号
+     */
+    private int nextMappingId = 1;
 
     /**
      * 配置变化监听器
@@ -69,7 +77,7 @@ public class ProxyConfig implements Serializable {
     /**
      * 解析配置文件
      */
-    public void update(String proxyMappingConfigJson) {
+    public synchronized void update(String proxyMappingConfigJson) {
 
         File file = new File(CONFIG_FILE);
         try {
@@ -95,32 +103,61 @@ public class ProxyConfig implements Serializable {
             clients = new ArrayList<>();
         }
 
-        Map<String, List<Integer>> clientInetPortMapping = new HashMap<>();
-        Map<Integer, String> inetPortLanInfoMapping = new HashMap<>();
+        Map<String, List<PortMapping>> clientPortMappings = new HashMap<>();
+        List<PortMapping> allMappings = new ArrayList<>();
 
         // 构造端口映射关系
         for (Client client : clients) {
             String clientKey = client.getClientKey();
-            if (clientInetPortMapping.containsKey(clientKey)) {
+            if (clientPortMappings.containsKey(clientKey)) {
                 throw new IllegalArgumentException("密钥同时作为客户端标识，不能重复： " + clientKey);
             }
-            List<ClientProxyMapping> mappings = client.getProxyMappings();
-            List<Integer> ports = new ArrayList<>();
-            clientInetPortMapping.put(clientKey, ports);
-            for (ClientProxyMapping mapping : mappings) {
-                Integer port = mapping.getInetPort();
-                ports.add(port);
-                if (inetPortLanInfoMapping.containsKey(port)) {
-                    throw new IllegalArgumentException("一个公网端口只能映射一个后端信息，不能重复: " + port);
+            List<PortMapping> mappings = new ArrayList<>();
+            for (ClientProxyMapping mapping : client.getProxyMappings()) {
+                mappings.add(PortMapping.of(clientKey, mapping));
+            }
+            clientPortMappings.put(clientKey, mappings);
+            allMappings.addAll(mappings);
+        }
+        // 先检查公网端口是否重叠，配置有错误时不分配映射编号
+        new PortMappings(allMappings);
+
+        // 没有变化的映射沿用原来的编号，之后再为新增或变化的映射分配编号
+        PortMappings previous = this.portMappings;
+        List<PortMapping> used = new ArrayList<>();
+        for (List<PortMapping> mappings : clientPortMappings.values()) {
+            for (int i = 0; i < mappings.size(); i++) {
+                PortMapping mapping = mappings.get(i);
+                PortMapping old = previous.get(mapping.getInetPort());
+                if (old != null && old.isSameTarget(mapping)) {
+                    mappings.set(i, mapping.withMappingId(old.getMappingId()));
+                    used.add(mappings.get(i));
+                }
+            }
+        }
+        int nextMappingId = this.nextMappingId;
+        allMappings.clear();
+        for (Entry<String, List<PortMapping>> entry : clientPortMappings.entrySet()) {
+            List<PortMapping> mappings = entry.getValue();
+            for (int i = 0; i < mappings.size(); i++) {
+                PortMapping mapping = mappings.get(i);
+                if (mapping.getMappingId() == 0) {
+                    int mappingId = allocateMappingId(nextMappingId, mapping.getPortCount(), used);
+                    mapping = mapping.withMappingId(mappingId);
+                    mappings.set(i, mapping);
+                    used.add(mapping);
+                    nextMappingId = mapping.getLastMappingId() == Integer.MAX_VALUE ? 1 : mapping.getLastMappingId() + 1;
                 }
-
-                inetPortLanInfoMapping.put(port, mapping.getLan());
             }
+            entry.setValue(PortMappings.sorted(mappings));
+            allMappings.addAll(mappings);
         }
+        PortMappings portMappings = new PortMappings(allMappings);
+        this.nextMappingId = nextMappingId;
 
         // 替换之前的配置关系
-        this.clientInetPortMapping = clientInetPortMapping;
-        this.inetPortLanInfoMapping = inetPortLanInfoMapping;
+        this.clientPortMappings = clientPortMappings;
+        this.portMappings = portMappings;
         this.clients = clients;
 
         if (proxyMappingConfigJson != null) {
@@ -137,6 +174,35 @@ public class ProxyConfig implements Serializable {
         notifyconfigChangedListeners();
     }
 
+    /**
+     * 从next开始查找count个连续且不与已使用编号重叠的映射编号，超过int上限时从1开始
+     *
+     * @return 起始映射编号
+     */
+    private static int allocateMappingId(int next, int count, List<PortMapping> used) {
+        long start = next;
+        boolean wrapped = false;
+        boolean moved = true;
+        while (moved) {
+            if (start + count - 1 > Integer.MAX_VALUE) {
+                if (wrapped) {
+                    throw new IllegalStateException("映射编号已用完");
+                }
+                start = 1;
+                wrapped = true;
+            }
+
+            moved = false;
+            for (PortMapping mapping : used) {
+                if (start <= mapping.getLastMappingId() && mapping.getMappingId() <= start + count - 1) {
+                    start = mapping.getLastMappingId() + 1L;
+                    moved = true;
+                }
+            }
+        }
+        return (int) start;
+    }
+
     /**
      * 配置更新通知
      */
@@ -166,13 +232,13 @@ public class ProxyConfig implements Serializable {
     }
 
     /**
-     * 获取代理客户端对应的代理服务器端口
+     * 获取代理客户端对应的代理服务器端口映射，按公网端口排序
      *
      * @param clientKey
      * @return
      */
-    public List<Integer> getClientInetPorts(String clientKey) {
-        return clientInetPortMapping.get(clientKey);
+    public List<PortMapping> getClientPortMappings(String clientKey) {
+        return clientPortMappings.get(clientKey);
     }
 
     /**
@@ -181,7 +247,17 @@ public class ProxyConfig implements Serializable {
      * @return
      */
     public Set<String> getClientKeySet() {
-        return clientInetPortMapping.keySet();
+        return clientPortMappings.keySet();
+    }
+
+    /**
+     * 根据代理服务器端口获取所在的端口映射，没有时返回null
+     *
+     * @param port
+     * @return
+     */
+    public PortMapping getPortMapping(int port) {
+        return portMappings.get(port);
     }
 
     /**
@@ -190,23 +266,63 @@ public class ProxyConfig implements Serializable {
      * @param port
      * @return
      */
-    public String getLanInfo(Integer port) {
-        return inetPortLanInfoMapping.get(port);
+    public String getLanInfo(int port) {
+        PortMapping mapping = portMappings.get(port);
+        return mapping == null ? null : mapping.getLanInfo(port);
     }
 
     /**
-     * 返回需要绑定在代理服务器的端口（用于用户请求）
+     * 根据映射编号获取代理服务器端口，映射已经删除时返回null。端口段映射返回段起始端口
      *
+     * @param mappingId
      * @return
      */
-    public List<Integer> getUserPorts() {
-        List<Integer> ports = new ArrayList<>();
-        Iterator<Integer> ite = inetPortLanInfoMapping.keySet().iterator();
-        while (ite.hasNext()) {
-            ports.add(ite.next());
+    public Integer getInetPort(int mappingId) {
+        PortMapping mapping = portMappings.getByMappingId(mappingId);
+        return mapping == null ? null : mapping.getInetPort();
+    }
+
+    /**
+     * 获取代理客户端的映射表，映射编号对应后端服务器信息、传输压缩算法及映射协议
+     *
+     * @param clientKey
+     * @param ranges    代理客户端支持端口段映射时端口段只下发一条，否则展开为每个端口一条
+     * @return
+     */
+    public LanMappings getClientLanMappings(String clientKey, boolean ranges) {
+        List<PortMapping> mappings = clientPortMappings.get(clientKey);
+        if (mappings == null) {
+            return LanMappings.EMPTY;
+        }
+
+        Map<Integer, String> lanMappings = new HashMap<>();
+        Map<Integer, Byte> compressions = new HashMap<>();
+        Map<Integer, Byte> protocols = new HashMap<>();
+        List<LanMappings.Range> rangeList = new ArrayList<>();
+        for (PortMapping mapping : mappings) {
+            if (mapping.isRange() && ranges) {
+                rangeList.add(new LanMappings.Range(mapping.getMappingId(), mapping.getPortCount(), mapping.getLanInfo(),
+                        mapping.getCompression(), mapping.getProtocol()));
+                continue;
+            }
+
+            for (int port = mapping.getInetPort(); port <= mapping.getInetPortEnd(); port++) {
+                int mappingId = mapping.getMappingId(port);
+                lanMappings.put(mappingId, mapping.getLanInfo(port));
+                compressions.put(mappingId, mapping.getCompression());
+                protocols.put(mappingId, mapping.getProtocol());
+            }
         }
+        return LanMappings.of(lanMappings, compressions, protocols, rangeList);
+    }
 
-        return ports;
+    /**
+     * 返回需要绑定在代理服务器的端口映射区间表（用于用户请求）
+     *
+     * @return
+     */
+    public PortMappings getPortMappings() {
+        return portMappings;
     }
 
     public static ProxyConfig getInstance() {
@@ -282,7 +398,12 @@ public class ProxyConfig implements Serializable {
         private Integer inetPort;
 
         /**
-         * 需要代理的网络信息（代理客户端能够访问），格式 192.168.1.99:80 (必须带端口)
+         * 代理服务器端口段的结束端口，为空时只映射inetPort一个端口
+         */
+        private Integer inetPortEnd;
+
+        /**
+         * 需要代理的网络信息（代理客户端能够访问），格式 192.168.1.99:80 (必须带端口) 或 unix:/run/app.sock（客户端本机的Unix domain socket），多个后端服务器用逗号分隔，由客户端均衡
          */
         private String lan;
 
@@ -291,6 +412,16 @@ public class ProxyConfig implements Serializable {
          */
         private String name;
 
+        /**
+         * 传输压缩算法：none、lz4、deflate，为空时不压缩
+         */
+        private String compression;
+
+        /**
+         * 映射协议：tcp、http，为空时为tcp。http映射由客户端复用后端的keep-alive连接
+         */
+        private String protocol;
+
         public Integer getInetPort() {
             return inetPort;
         }
@@ -299,6 +430,14 @@ public class ProxyConfig implements Serializable {
             this.inetPort = inetPort;
         }
 
+        public Integer getInetPortEnd() {
+            return inetPortEnd;
+        }
+
+        public void setInetPortEnd(Integer inetPortEnd) {
+            this.inetPortEnd = inetPortEnd;
+        }
+
         public String getLan() {
             return lan;
         }
@@ -315,6 +454,22 @@ public class ProxyConfig implements Serializable {
             this.name = name;
         }
 
+        public String getCompression() {
+            return compression;
+        }
+
+        public void setCompression(String compression) {
+            this.compression = compression;
+        }
+
+        public String getProtocol() {
+            return protocol;
+        }
+
+        public void setProtocol(String protocol) {
+            this.protocol = protocol;
+        }
+
     }
 
     /**
@@ -3,6 +3,7 @@ package com.hklh8.server.controller;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
 import com.hklh8.server.ProxyChannelManager;
+import com.hklh8.server.UserPortManager;
 import com.hklh8.server.config.ProxyConfig;
 import com.hklh8.server.dto.ResponseInfo;
 import com.hklh8.server.metrics.MetricsCollector;
@@ -111,4 +112,22 @@ public class WebController {
     public Object test5() {
         return ResponseInfo.build(MetricsCollector.getAndResetAllMetrics());
     }
+
+    /**
+     * 获取各个代理客户端最近一次上报的运行统计
+     */
+    @ResponseBody
+    @RequestMapping("/metrics/clients")
+    public Object getClientMetrics() {
+        return ResponseInfo.build(MetricsCollector.getAllClientMetrics());
+    }
+
+    /**
+     * 获取各个用户端口的绑定状态
+     */
+    @ResponseBody
+    @RequestMapping("/ports/status")
+    public Object getPortStatuses() {
+        return ResponseInfo.build(UserPortManager.getPortStatuses());
+    }
 }
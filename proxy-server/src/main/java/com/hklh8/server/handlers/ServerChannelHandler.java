@@ -1,21 +1,41 @@
 package com.hklh8.server.handlers;
 
+import com.hklh8.common.protocol.Capabilities;
+import com.hklh8.common.protocol.ClientStats;
+import com.hklh8.common.protocol.Compression;
 import com.hklh8.common.protocol.Constants;
+import com.hklh8.common.protocol.Handshake;
 import com.hklh8.common.protocol.ProxyMessage;
+import com.hklh8.common.protocol.ProxyMessageEncoder;
+import com.hklh8.common.protocol.StreamWindow;
 import com.hklh8.server.ProxyChannelManager;
+import com.hklh8.server.ProxyServer;
+import com.hklh8.server.config.PortMapping;
 import com.hklh8.server.config.ProxyConfig;
+import com.hklh8.server.metrics.ClientMetrics;
+import com.hklh8.server.metrics.MetricsCollector;
+import com.hklh8.server.utils.PropertiesValue;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
+import io.netty.handler.ssl.SslHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessage> {
 
     private static Logger logger = LoggerFactory.getLogger(ServerChannelHandler.class);
 
+    /**
+     * 本次读循环中写入了数据、等待flush的用户连接
+     */
+    private final Set<Channel> pendingFlushChannels = new HashSet<>();
+
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, ProxyMessage proxyMessage) throws Exception {
         logger.debug("代理服务器接收消息 {}", proxyMessage.getType());
@@ -35,26 +55,130 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
             case ProxyMessage.P_TYPE_TRANSFER:  // 代理数据传输
                 handleTransferMessage(ctx, proxyMessage);
                 break;
+            case ProxyMessage.TYPE_WINDOW_UPDATE:   // 多路复用stream归还发送额度
+                handleWindowUpdateMessage(ctx, proxyMessage);
+                break;
+            case ProxyMessage.TYPE_IDLE_DATA_CHANNEL:   // 代理客户端登记空闲数据连接
+                handleIdleDataChannelMessage(ctx, proxyMessage);
+                break;
+            case ProxyMessage.TYPE_STATS:       // 代理客户端上报运行统计
+                handleStatsMessage(ctx, proxyMessage);
+                break;
+            case ProxyMessage.TYPE_DRAIN:       // 代理客户端请求平滑下线
+                handleDrainMessage(ctx, proxyMessage);
+                break;
             default:
                 break;
         }
     }
 
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        // 读循环结束后统一flush本次写入过数据的用户连接
+        for (Channel userChannel : pendingFlushChannels) {
+            userChannel.flush();
+        }
+        pendingFlushChannels.clear();
+        super.channelReadComplete(ctx);
+    }
+
     private void handleTransferMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
+        Channel muxCmdChannel = ProxyChannelManager.getMuxCmdChannel(ctx.channel());
+        if (muxCmdChannel != null) {
+            handleMuxTransferMessage(ctx, muxCmdChannel, proxyMessage);
+            return;
+        }
+
         Channel userChannel = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
         if (userChannel != null) {
-            ByteBuf buf = ctx.alloc().buffer(proxyMessage.getData().length);
-            buf.writeBytes(proxyMessage.getData());
-            userChannel.writeAndFlush(buf);
+            // 消息在channelRead0返回后释放，转发的content需要保留一个引用，压缩过的数据解压后转发
+            userChannel.write(decompress(userChannel, proxyMessage, ctx));
+            pendingFlushChannels.add(userChannel);
         }
     }
 
+    private void handleMuxTransferMessage(ChannelHandlerContext ctx, Channel muxCmdChannel, ProxyMessage proxyMessage) {
+        int userId = proxyMessage.getStreamId();
+        Channel userChannel = ProxyChannelManager.getUserChannel(muxCmdChannel, userId);
+        if (userChannel == null) {
+            return;
+        }
+
+        ByteBuf content = decompress(userChannel, proxyMessage, ctx);
+        int bytes = content.readableBytes();
+        userChannel.write(content);
+        pendingFlushChannels.add(userChannel);
+        StreamWindow window = userChannel.attr(Constants.STREAM_WINDOW).get();
+        int credit = window.received(userChannel, bytes);
+        if (credit > 0) {
+            ctx.channel().writeAndFlush(StreamWindow.windowUpdate(userId, credit));
+        }
+    }
+
+    /**
+     * 取出传输数据，压缩过的数据解压，并按用户端口统计压缩节省的字节数
+     */
+    private ByteBuf decompress(Channel userChannel, ProxyMessage proxyMessage, ChannelHandlerContext ctx) {
+        ByteBuf content = Compression.content(proxyMessage, ctx.alloc());
+        if (proxyMessage.getCompression() != Compression.NONE) {
+            ProxyChannelManager.getUserChannelRoute(userChannel).getMetricsCollector()
+                    .incrementCompressionSavedBytes(content.readableBytes() - proxyMessage.getContent().readableBytes());
+        }
+        return content;
+    }
+
+    private void handleWindowUpdateMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
+        Channel muxCmdChannel = ProxyChannelManager.getMuxCmdChannel(ctx.channel());
+        if (muxCmdChannel == null) {
+            return;
+        }
+
+        Channel userChannel = ProxyChannelManager.getUserChannel(muxCmdChannel, proxyMessage.getStreamId());
+        if (userChannel != null) {
+            userChannel.attr(Constants.STREAM_WINDOW).get().release(userChannel, StreamWindow.credit(proxyMessage));
+        }
+    }
+
+    private void handleIdleDataChannelMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
+        if (proxyMessage.getData() == null || proxyMessage.getData().length < 4) {
+            ctx.channel().close();
+            logger.warn("tunnelId为空...");
+            return;
+        }
+
+        int tunnelId = ByteBuffer.wrap(proxyMessage.getData()).getInt();
+        Channel cmdChannel = ProxyChannelManager.getTunnelCmdChannel(tunnelId);
+        if (cmdChannel == null || !ProxyChannelManager.isDataChannelPool(cmdChannel)) {
+            ctx.channel().close();
+            logger.warn("tunnelId {} 没有开启预建数据连接", tunnelId);
+            return;
+        }
+
+        // 数据连接在上一个用户连接断开后重新登记，清除原来的绑定关系
+        ctx.channel().attr(Constants.NEXT_CHANNEL).remove();
+        ctx.channel().attr(Constants.CLIENT_KEY).remove();
+        ctx.channel().attr(Constants.USER_ID).remove();
+        ProxyMessageEncoder.setCompact(ctx.channel(), true);
+        ProxyMessageEncoder.setMaxFrameLength(ctx.channel(), ProxyChannelManager.getMaxFrameLength(cmdChannel));
+        ProxyChannelManager.addIdleDataChannel(cmdChannel, ctx.channel());
+    }
+
     private void handleDisconnectMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
+        Channel muxCmdChannel = ProxyChannelManager.getMuxCmdChannel(ctx.channel());
+        if (muxCmdChannel != null) {
+            // 多路复用模式下断开消息可能来自任意一条隧道连接
+            Channel userChannel = ProxyChannelManager.removeUserChannelFromCmdChannel(muxCmdChannel, proxyMessage.getStreamId());
+            if (userChannel != null) {
+                userChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+            }
+            return;
+        }
+
         String clientKey = ctx.channel().attr(Constants.CLIENT_KEY).get();
 
         // 代理连接没有连上服务器由控制连接发送用户端断开连接消息
         if (clientKey == null) {
-            String userId = proxyMessage.getUri();
+            int userId = proxyMessage.getStreamId();
             Channel userChannel = ProxyChannelManager.removeUserChannelFromCmdChannel(ctx.channel(), userId);
             if (userChannel != null) {
                 // 数据发送完成后再关闭连接，解决http1.0数据传输问题
@@ -63,13 +187,19 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
             return;
         }
 
-        Channel cmdChannel = ProxyChannelManager.getCmdChannel(clientKey);
+        Channel cmdChannel = ProxyChannelManager.getUserChannelCmdChannel(ctx.channel().attr(Constants.NEXT_CHANNEL).get());
         if (cmdChannel == null) {
             logger.warn("错误的clientKey {}", ctx.channel().attr(Constants.CLIENT_KEY).get());
             return;
         }
 
-        Channel userChannel = ProxyChannelManager.removeUserChannelFromCmdChannel(cmdChannel, ctx.channel().attr(Constants.USER_ID).get());
+        Integer userId = ctx.channel().attr(Constants.USER_ID).get();
+        if (proxyMessage.getStreamId() != 0 && userId != null && proxyMessage.getStreamId() != userId) {
+            // 数据连接已经绑定了新的用户连接，忽略上一个用户连接的断开消息
+            return;
+        }
+
+        Channel userChannel = ProxyChannelManager.removeUserChannelFromCmdChannel(cmdChannel, userId);
         if (userChannel != null) {
             // 数据发送完成后再关闭连接，解决http1.0数据传输问题
             userChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
@@ -80,36 +210,123 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
     }
 
     private void handleConnectMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
-        String uri = proxyMessage.getUri();
-        if (uri == null) {
-            ctx.channel().close();
-            logger.warn("uri字段为空...");
+        Channel muxCmdChannel = ProxyChannelManager.getMuxCmdChannel(ctx.channel());
+        if (muxCmdChannel != null) {
+            // 多路复用模式下代理客户端连接后端服务器成功的确认
+            Channel userChannel = ProxyChannelManager.getUserChannel(muxCmdChannel, proxyMessage.getStreamId());
+            if (userChannel != null) {
+                UserChannelHandler.resumeRead(userChannel);
+            }
             return;
         }
 
-        String[] tokens = uri.split("@");
-        if (tokens.length != 2) {
-            ctx.channel().close();
-            logger.warn("uri格式错误...");
-            return;
-        }
+        Channel cmdChannel;
+        String uri = proxyMessage.getUri();
+        if (uri == null) {
+            // 紧凑帧头，数据为认证时分配的tunnelId
+            if (proxyMessage.getData() == null || proxyMessage.getData().length < 4) {
+                ctx.channel().close();
+                logger.warn("tunnelId为空...");
+                return;
+            }
 
-        Channel cmdChannel = ProxyChannelManager.getCmdChannel(tokens[1]);
-        if (cmdChannel == null) {
-            ctx.channel().close();
-            logger.warn("错误的clientKey {}", tokens[1]);
-            return;
+            int tunnelId = ByteBuffer.wrap(proxyMessage.getData()).getInt();
+            cmdChannel = ProxyChannelManager.getTunnelCmdChannel(tunnelId);
+            if (cmdChannel == null) {
+                ctx.channel().close();
+                logger.warn("错误的tunnelId {}", tunnelId);
+                return;
+            }
+
+            if (proxyMessage.getStreamId() == 0) {
+                // streamId为0表示代理客户端为多路复用增加隧道连接
+                if (!ProxyChannelManager.isMultiplex(cmdChannel)) {
+                    ctx.channel().close();
+                    logger.warn("tunnelId {} 没有开启多路复用", tunnelId);
+                    return;
+                }
+
+                ctx.channel().attr(Constants.CAPABILITIES).set(cmdChannel.attr(Constants.CAPABILITIES).get());
+                ctx.channel().attr(Constants.HANDSHAKE).set(cmdChannel.attr(Constants.HANDSHAKE).get());
+                ProxyMessageEncoder.setCompact(ctx.channel(), true);
+                ProxyMessageEncoder.setMaxFrameLength(ctx.channel(), ProxyChannelManager.getMaxFrameLength(cmdChannel));
+                ProxyChannelManager.addMuxLane(cmdChannel, ctx.channel());
+                return;
+            }
+        } else {
+            String[] tokens = uri.split("@");
+            if (tokens.length != 2) {
+                ctx.channel().close();
+                logger.warn("uri格式错误...");
+                return;
+            }
+
+            // 同一个clientKey可能有多个实例，查找分配了该用户连接的实例
+            cmdChannel = ProxyChannelManager.getCmdChannel(tokens[1], proxyMessage.getStreamId());
+            if (cmdChannel == null) {
+                ctx.channel().close();
+                logger.warn("错误的clientKey {}", tokens[1]);
+                return;
+            }
         }
 
-        Channel userChannel = ProxyChannelManager.getUserChannel(cmdChannel, tokens[0]);
+        int userId = proxyMessage.getStreamId();
+        Channel userChannel = ProxyChannelManager.getUserChannel(cmdChannel, userId);
         if (userChannel != null) {
-            ctx.channel().attr(Constants.USER_ID).set(tokens[0]);
-            ctx.channel().attr(Constants.CLIENT_KEY).set(tokens[1]);
+            ctx.channel().attr(Constants.USER_ID).set(userId);
+            ctx.channel().attr(Constants.CLIENT_KEY).set(ProxyChannelManager.getClientKey(cmdChannel));
             ctx.channel().attr(Constants.NEXT_CHANNEL).set(userChannel);
             userChannel.attr(Constants.NEXT_CHANNEL).set(ctx.channel());
+            // 数据连接沿用控制连接协商的帧格式
+            ProxyMessageEncoder.setCompact(ctx.channel(), ProxyChannelManager.isCompact(cmdChannel));
+            ProxyMessageEncoder.setMaxFrameLength(ctx.channel(), ProxyChannelManager.getMaxFrameLength(cmdChannel));
             // 代理客户端与后端服务器连接成功，修改用户连接为可读状态
-            userChannel.config().setOption(ChannelOption.AUTO_READ, true);
+            UserChannelHandler.resumeRead(userChannel);
+        }
+    }
+
+    /**
+     * 代理客户端上报的后端连接统计按映射累加到对应端口，客户端级别的统计保留最近一次
+     */
+    private void handleStatsMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
+        String clientKey = ProxyChannelManager.getClientKey(ctx.channel());
+        if (clientKey == null) {
+            return;
+        }
+
+        ClientStats stats = ClientStats.decode(proxyMessage.getData());
+        for (ClientStats.MappingStats mapping : stats.getMappings()) {
+            Integer port = ProxyConfig.getInstance().getInetPort(mapping.getMappingId());
+            if (port != null) {
+                MetricsCollector.getCollector(port).addBackendStats(mapping);
+            }
+        }
+
+        ClientMetrics metrics = new ClientMetrics();
+        metrics.setClientKey(clientKey);
+        metrics.setTunnelId(ProxyChannelManager.getTunnelId(ctx.channel()));
+        metrics.setSessions(ProxyChannelManager.getUserChannels(ctx.channel()).size());
+        metrics.setRttMillis(stats.getRttMillis());
+        metrics.setPoolHits(stats.getPoolHits());
+        metrics.setPoolMisses(stats.getPoolMisses());
+        metrics.setPoolIdle(stats.getPoolIdle());
+        metrics.setTimestamp(System.currentTimeMillis());
+        MetricsCollector.putClientMetrics(metrics);
+        logger.debug("代理客户端运行统计, clientKey {}, 往返时间 {}ms", clientKey, stats.getRttMillis());
+    }
+
+    /**
+     * 不再向该实例分配新的用户连接，回复后代理客户端等待已有的用户连接断开
+     */
+    private void handleDrainMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
+        if (ProxyChannelManager.getClientKey(ctx.channel()) == null) {
+            return;
         }
+
+        ProxyChannelManager.drainCmdChannel(ctx.channel());
+        ProxyMessage drainMessage = new ProxyMessage();
+        drainMessage.setType(ProxyMessage.TYPE_DRAIN);
+        ctx.channel().writeAndFlush(drainMessage);
     }
 
     private void handleHeartbeatMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
@@ -121,22 +338,61 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
 
     private void handleAuthMessage(ChannelHandlerContext ctx, ProxyMessage proxyMessage) {
         String clientKey = proxyMessage.getUri();   //获取客户端key
-        List<Integer> ports = ProxyConfig.getInstance().getClientInetPorts(clientKey);
-        if (ports == null) {
+        List<PortMapping> mappings = ProxyConfig.getInstance().getClientPortMappings(clientKey);
+        if (mappings == null) {
             logger.info("错误的clientKey {}, {}", clientKey, ctx.channel());
             ctx.channel().close();
             return;
         }
 
+        // 同一个clientKey可以有多个实例，作为一组共同服务该clientKey的端口
         Channel channel = ProxyChannelManager.getCmdChannel(clientKey);
         if (channel != null) {
-            logger.warn("clientKey {} 存在channel {}", clientKey, channel);
-            ctx.channel().close();
-            return;
+            logger.info("clientKey {} 增加实例, 已有实例 {}", clientKey, channel);
         }
 
-        logger.info("set port => channel, {}, {}, {}", clientKey, ports, ctx.channel());
-        ProxyChannelManager.addCmdChannel(ports, clientKey, ctx.channel());
+        // 旧版本客户端（包括go客户端）认证消息不带数据，不返回认证结果，继续使用原有帧格式
+        Handshake handshake = null;
+        int weight = 1;
+        byte[] data = proxyMessage.getData();
+        if (data != null && data.length > 0) {
+            int encryption = ctx.pipeline().get(SslHandler.class) != null ? Handshake.ENCRYPTION_TLS : Handshake.ENCRYPTION_NONE;
+            int enabled = Capabilities.parse(PropertiesValue.getStringValue("protocol.capabilities"));
+            Handshake hello = Handshake.decode(data);
+            if (hello.getWeight() > 0) {
+                weight = hello.getWeight();
+            }
+            handshake = Handshake.negotiate(hello, enabled, ProxyServer.MAX_FRAME_LENGTH, encryption);
+            if (handshake == null) {
+                logger.warn("clientKey {} 协商失败, 隧道连接的加密方式 {}, hello {}, {}", clientKey, encryption, hello, ctx.channel());
+                ctx.channel().close();
+                return;
+            }
+            logger.info("协商协议 {}, clientKey {}, {}", handshake, clientKey, ctx.channel());
+        }
+
+        logger.info("set port => channel, {}, {}, {}", clientKey, mappings, ctx.channel());
+        ProxyChannelManager.initCmdChannel(mappings, clientKey, weight, ctx.channel());
+        if (handshake != null) {
+            handshake.setTunnelId(ProxyChannelManager.getTunnelId(ctx.channel()));
+            ctx.channel().attr(Constants.CAPABILITIES).set(handshake.getCapabilities());
+            ctx.channel().attr(Constants.HANDSHAKE).set(handshake);
+            if (handshake.hasCapability(Capabilities.MULTIPLEX)) {
+                ProxyChannelManager.enableMultiplex(ctx.channel());
+            }
+
+            ProxyMessage ackMessage = new ProxyMessage();
+            ackMessage.setType(ProxyMessage.TYPE_AUTH_ACK);
+            ackMessage.setData(handshake.encode());
+            ctx.channel().write(ackMessage);
+
+            ProxyMessageEncoder.setCompact(ctx.channel(), handshake.hasCapability(Capabilities.FRAME_COMPACT));
+            ProxyMessageEncoder.setMaxFrameLength(ctx.channel(), handshake.getMaxFrameLength());
+            ProxyChannelManager.sendLanMappings(ctx.channel());
+        }
+
+        // 协商结果、多路复用及帧格式都设置完成后才参与路由，新的用户连接不会按未协商的状态使用该实例
+        ProxyChannelManager.addCmdChannel(ctx.channel());
     }
 
     @Override
@@ -151,11 +407,19 @@ public class ServerChannelHandler extends SimpleChannelInboundHandler<ProxyMessa
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        Channel muxCmdChannel = ProxyChannelManager.getMuxCmdChannel(ctx.channel());
+        if (muxCmdChannel != null && muxCmdChannel != ctx.channel()) {
+            // 多路复用隧道连接
+            ProxyChannelManager.removeMuxLane(ctx.channel());
+            super.channelInactive(ctx);
+            return;
+        }
+
         Channel userChannel = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
         if (userChannel != null && userChannel.isActive()) {
             String clientKey = ctx.channel().attr(Constants.CLIENT_KEY).get();
-            String userId = ctx.channel().attr(Constants.USER_ID).get();
-            Channel cmdChannel = ProxyChannelManager.getCmdChannel(clientKey);
+            Integer userId = ctx.channel().attr(Constants.USER_ID).get();
+            Channel cmdChannel = ProxyChannelManager.getUserChannelCmdChannel(userChannel);
             if (cmdChannel != null) {
                 ProxyChannelManager.removeUserChannelFromCmdChannel(cmdChannel, userId);
             } else {
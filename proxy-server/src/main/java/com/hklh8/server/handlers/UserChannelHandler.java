@@ -1,24 +1,58 @@
 package com.hklh8.server.handlers;
 
+import com.hklh8.common.protocol.Compression;
 import com.hklh8.common.protocol.Constants;
 import com.hklh8.common.protocol.ProxyMessage;
+import com.hklh8.common.protocol.StreamCompressor;
+import com.hklh8.common.protocol.StreamWindow;
 import com.hklh8.server.ProxyChannelManager;
-import com.hklh8.server.config.ProxyConfig;
+import com.hklh8.server.Route;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.RecvByteBufAllocator;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.ScheduledFuture;
 
 import java.net.InetSocketAddress;
-import java.util.concurrent.atomic.AtomicLong;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 处理服务端 channel.
+ * <p>
+ * 开启早期数据时，用户连接建立后先读取一次（最多earlyDataMaxBytes字节），读取到的数据随TYPE_CONNECT发送给代理客户端，
+ * 代理客户端连接后端服务器后立即写入，节省一个往返；等待earlyDataWaitMillis仍没有数据时不带数据发送TYPE_CONNECT
  */
 public class UserChannelHandler extends SimpleChannelInboundHandler<ByteBuf> {
 
-    private static AtomicLong userIdProducer = new AtomicLong(0);
+    private static AtomicInteger userIdProducer = new AtomicInteger(0);
+
+    private static final AttributeKey<EarlyData> EARLY_DATA = AttributeKey.newInstance("early_data");
+
+    /**
+     * 随TYPE_CONNECT发送的早期数据最大字节数，0表示不使用早期数据
+     */
+    private final int earlyDataMaxBytes;
+
+    /**
+     * 等待早期数据的最长毫秒数
+     */
+    private final long earlyDataWaitMillis;
+
+    public UserChannelHandler() {
+        this(0, 0);
+    }
+
+    public UserChannelHandler(int earlyDataMaxBytes, long earlyDataWaitMillis) {
+        this.earlyDataMaxBytes = earlyDataMaxBytes;
+        this.earlyDataWaitMillis = earlyDataWaitMillis;
+    }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
@@ -30,61 +64,220 @@ public class UserChannelHandler extends SimpleChannelInboundHandler<ByteBuf> {
     protected void channelRead0(ChannelHandlerContext ctx, ByteBuf buf) throws Exception {
         // 通知代理客户端
         Channel userChannel = ctx.channel();
+        EarlyData earlyData = userChannel.attr(EARLY_DATA).get();
+        if (earlyData != null) {
+            readEarlyData(userChannel, earlyData, buf);
+            return;
+        }
+
+        forward(userChannel, buf);
+    }
+
+    /**
+     * 把用户连接读取到的数据转发给代理客户端，只写入不flush
+     */
+    private static void forward(Channel userChannel, ByteBuf buf) {
         Channel proxyChannel = userChannel.attr(Constants.NEXT_CHANNEL).get();
         if (proxyChannel == null) {
             // 该端口还没有代理客户端
-            ctx.channel().close();
+            userChannel.close();
         } else {
-            byte[] bytes = new byte[buf.readableBytes()];
-            buf.readBytes(bytes);
-            String userId = ProxyChannelManager.getUserChannelUserId(userChannel);
+            int userId = ProxyChannelManager.getUserChannelUserId(userChannel);
             ProxyMessage proxyMessage = new ProxyMessage();
             proxyMessage.setType(ProxyMessage.P_TYPE_TRANSFER);
-            proxyMessage.setUri(userId);
-            proxyMessage.setData(bytes);
-            proxyChannel.writeAndFlush(proxyMessage);
+            proxyMessage.setStreamId(userId);
+            StreamWindow window = userChannel.attr(Constants.STREAM_WINDOW).get();
+            if (window != null) {
+                window.consume(userChannel, buf.readableBytes());
+            }
+            StreamCompressor compressor = userChannel.attr(Constants.STREAM_COMPRESSOR).get();
+            if (compressor != null) {
+                int saved = compressor.setContent(proxyMessage, buf, userChannel.alloc());
+                if (saved > 0) {
+                    ProxyChannelManager.getUserChannelRoute(userChannel).getMetricsCollector().incrementCompressionSavedBytes(saved);
+                }
+            } else {
+                // 直接转发读取到的ByteBuf，channelRead0返回后buf会被释放，这里保留一个引用
+                proxyMessage.setContent(buf.retain());
+            }
+            // 只写入不flush，本次读循环结束后统一flush
+            proxyChannel.write(proxyMessage);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        Channel proxyChannel = ctx.channel().attr(Constants.NEXT_CHANNEL).get();
+        if (proxyChannel != null) {
+            proxyChannel.flush();
         }
+        super.channelReadComplete(ctx);
     }
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
         Channel userChannel = ctx.channel();
-        InetSocketAddress sa = (InetSocketAddress) userChannel.localAddress();
-        Channel cmdChannel = ProxyChannelManager.getCmdChannel(sa.getPort());
+        Route route = ProxyChannelManager.getUserChannelRoute(userChannel);
 
-        if (cmdChannel == null) {
+        if (route == null) {
             // 该端口还没有代理客户端
             ctx.channel().close();
         } else {
-            String userId = newUserId();
-            String lanInfo = ProxyConfig.getInstance().getLanInfo(sa.getPort());
+            Channel cmdChannel = route.selectCmdChannel();
+            int userId = newUserId();
             // 用户连接到代理服务器时，设置用户连接不可读，等待代理后端服务器连接成功后再改变为可读状态
             userChannel.config().setOption(ChannelOption.AUTO_READ, false);
+            Channel connectChannel = cmdChannel;
+            boolean multiplex = ProxyChannelManager.isMultiplex(cmdChannel);
+            if (multiplex) {
+                // 多路复用模式下用户连接直接绑定隧道连接，不再使用独立的数据连接。先绑定再登记，移除隧道连接时能找到该用户连接
+                connectChannel = ProxyChannelManager.selectMuxLane(cmdChannel, userId);
+                userChannel.attr(Constants.STREAM_WINDOW).set(new StreamWindow());
+                userChannel.attr(Constants.NEXT_CHANNEL).set(connectChannel);
+            }
             ProxyChannelManager.addUserChannelToCmdChannel(cmdChannel, userId, userChannel);
+            if (multiplex) {
+                if (!connectChannel.isActive()) {
+                    // 选中的隧道连接在登记前已经断开，移除时可能没有看到该用户连接，改用控制连接
+                    connectChannel = cmdChannel;
+                    userChannel.attr(Constants.NEXT_CHANNEL).set(cmdChannel);
+                }
+            } else if (ProxyChannelManager.isDataChannelPool(cmdChannel)) {
+                Channel dataChannel = ProxyChannelManager.pollIdleDataChannel(cmdChannel);
+                if (dataChannel != null) {
+                    // 直接在代理客户端预建的数据连接上发送连接消息，在服务器端完成配对，客户端连接后端服务器后在该连接上确认
+                    dataChannel.attr(Constants.USER_ID).set(userId);
+                    dataChannel.attr(Constants.CLIENT_KEY).set(ProxyChannelManager.getClientKey(cmdChannel));
+                    dataChannel.attr(Constants.NEXT_CHANNEL).set(userChannel);
+                    userChannel.attr(Constants.NEXT_CHANNEL).set(dataChannel);
+                    connectChannel = dataChannel;
+                }
+            }
+            byte compression = route.getCompression();
+            if (compression != Compression.NONE && ProxyChannelManager.isCompression(cmdChannel, compression)) {
+                userChannel.attr(Constants.STREAM_COMPRESSOR).set(new StreamCompressor(compression));
+            }
             ProxyMessage proxyMessage = new ProxyMessage();
             proxyMessage.setType(ProxyMessage.TYPE_CONNECT);
-            proxyMessage.setUri(userId);
-            proxyMessage.setData(lanInfo.getBytes());
-            cmdChannel.writeAndFlush(proxyMessage);
+            proxyMessage.setStreamId(userId);
+            int port = ((InetSocketAddress) userChannel.localAddress()).getPort();
+            if (ProxyChannelManager.isCompact(cmdChannel)) {
+                // 后端服务器信息以认证时下发的映射编号传输
+                proxyMessage.setData(ByteBuffer.allocate(4).putInt(route.getMappingId(port)).array());
+            } else {
+                proxyMessage.setData(route.getLanInfo(port).getBytes());
+            }
+
+            if (earlyDataMaxBytes > 0 && ProxyChannelManager.isEarlyData(cmdChannel)) {
+                waitEarlyData(userChannel, connectChannel, proxyMessage);
+            } else {
+                connectChannel.writeAndFlush(proxyMessage);
+            }
         }
         super.channelActive(ctx);
     }
 
+    /**
+     * 读取一次用户连接，超时后不带数据发送TYPE_CONNECT
+     */
+    private void waitEarlyData(final Channel userChannel, Channel connectChannel, ProxyMessage connectMessage) {
+        final EarlyData earlyData = new EarlyData(connectChannel, connectMessage, userChannel.config().getRecvByteBufAllocator());
+        userChannel.attr(EARLY_DATA).set(earlyData);
+        int maxBytes = earlyDataMaxBytes;
+        if (userChannel.attr(Constants.STREAM_WINDOW).get() != null) {
+            // 多路复用时早期数据计入该stream的额度，最多占初始窗口的一半，发送后额度仍为正，恢复读取时不需要再检查额度
+            maxBytes = Math.min(maxBytes, StreamWindow.DEFAULT_WINDOW_SIZE / 2);
+        }
+        userChannel.config().setRecvByteBufAllocator(new FixedRecvByteBufAllocator(maxBytes));
+        earlyData.timeout = userChannel.eventLoop().schedule(new Runnable() {
+            @Override
+            public void run() {
+                earlyData.sendConnect(null);
+            }
+        }, earlyDataWaitMillis, TimeUnit.MILLISECONDS);
+        userChannel.read();
+    }
+
+    private static void readEarlyData(Channel userChannel, EarlyData earlyData, ByteBuf buf) {
+        userChannel.config().setRecvByteBufAllocator(earlyData.allocator);
+        int bytes = buf.readableBytes();
+        if (earlyData.sendConnect(buf)) {
+            userChannel.attr(EARLY_DATA).remove();
+            StreamWindow window = userChannel.attr(Constants.STREAM_WINDOW).get();
+            if (window != null) {
+                window.consume(userChannel, bytes);
+            }
+            return;
+        }
+
+        // 已经超时发送了TYPE_CONNECT，数据暂存到连接绑定后再转发
+        earlyData.lateData = earlyData.lateData == null ? buf.retain() : Unpooled.wrappedBuffer(earlyData.lateData, buf.retain());
+    }
+
+    /**
+     * 代理客户端与后端服务器连接成功后恢复读取用户连接，先转发等待早期数据超时后才读取到的数据
+     */
+    public static void resumeRead(final Channel userChannel) {
+        if (userChannel.attr(EARLY_DATA).get() == null) {
+            userChannel.config().setOption(ChannelOption.AUTO_READ, true);
+            return;
+        }
+
+        userChannel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                EarlyData earlyData = userChannel.attr(EARLY_DATA).getAndSet(null);
+                if (earlyData != null) {
+                    earlyData.cancel();
+                    userChannel.config().setRecvByteBufAllocator(earlyData.allocator);
+                    if (earlyData.lateData != null) {
+                        if (userChannel.isActive()) {
+                            forward(userChannel, earlyData.lateData);
+                            Channel proxyChannel = userChannel.attr(Constants.NEXT_CHANNEL).get();
+                            if (proxyChannel != null) {
+                                proxyChannel.flush();
+                            }
+                        }
+                        earlyData.lateData.release();
+                    }
+                }
+                userChannel.config().setOption(ChannelOption.AUTO_READ, true);
+            }
+        });
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         // 通知代理客户端
         Channel userChannel = ctx.channel();
-        InetSocketAddress sa = (InetSocketAddress) userChannel.localAddress();
-        Channel cmdChannel = ProxyChannelManager.getCmdChannel(sa.getPort());
-        if (cmdChannel == null) {
+        EarlyData earlyData = userChannel.attr(EARLY_DATA).getAndSet(null);
+        if (earlyData != null) {
+            earlyData.cancel();
+            if (earlyData.lateData != null) {
+                earlyData.lateData.release();
+            }
+        }
+        Route route = ProxyChannelManager.getUserChannelRoute(userChannel);
+        if (route == null) {
             // 该端口还没有代理客户端
             ctx.channel().close();
         } else {
             // 用户连接断开，从控制连接中移除
-            String userId = ProxyChannelManager.getUserChannelUserId(userChannel);
-            ProxyChannelManager.removeUserChannelFromCmdChannel(cmdChannel, userId);
+            Integer userId = ProxyChannelManager.getUserChannelUserId(userChannel);
+            if (userId == null) {
+                // 用户连接建立时该端口还没有代理客户端
+                super.channelInactive(ctx);
+                return;
+            }
+            ProxyChannelManager.removeUserChannelFromCmdChannel(ProxyChannelManager.getUserChannelCmdChannel(userChannel), userId);
             Channel proxyChannel = userChannel.attr(Constants.NEXT_CHANNEL).get();
-            if (proxyChannel != null && proxyChannel.isActive()) {
+            if (proxyChannel != null && proxyChannel.isActive() && userChannel.attr(Constants.STREAM_WINDOW).get() != null) {
+                // 多路复用隧道连接由多个用户连接共享，只通知客户端断开该stream
+                ProxyMessage proxyMessage = new ProxyMessage();
+                proxyMessage.setType(ProxyMessage.TYPE_DISCONNECT);
+                proxyMessage.setStreamId(userId);
+                proxyChannel.writeAndFlush(proxyMessage);
+            } else if (proxyChannel != null && proxyChannel.isActive()) {
                 proxyChannel.attr(Constants.NEXT_CHANNEL).remove();
                 proxyChannel.attr(Constants.CLIENT_KEY).remove();
                 proxyChannel.attr(Constants.USER_ID).remove();
@@ -93,7 +286,7 @@ public class UserChannelHandler extends SimpleChannelInboundHandler<ByteBuf> {
                 // 通知客户端，用户连接已经断开
                 ProxyMessage proxyMessage = new ProxyMessage();
                 proxyMessage.setType(ProxyMessage.TYPE_DISCONNECT);
-                proxyMessage.setUri(userId);
+                proxyMessage.setStreamId(userId);
                 proxyChannel.writeAndFlush(proxyMessage);
             }
         }
@@ -104,14 +297,19 @@ public class UserChannelHandler extends SimpleChannelInboundHandler<ByteBuf> {
     public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
         // 通知代理客户端
         Channel userChannel = ctx.channel();
-        InetSocketAddress sa = (InetSocketAddress) userChannel.localAddress();
-        Channel cmdChannel = ProxyChannelManager.getCmdChannel(sa.getPort());
-        if (cmdChannel == null) {
+        if (ProxyChannelManager.getUserChannelRoute(userChannel) == null) {
             // 该端口还没有代理客户端
             ctx.channel().close();
         } else {
             Channel proxyChannel = userChannel.attr(Constants.NEXT_CHANNEL).get();
-            if (proxyChannel != null) {
+            StreamWindow window = userChannel.attr(Constants.STREAM_WINDOW).get();
+            if (window != null) {
+                // 多路复用模式下不暂停共享的隧道连接，用户连接恢复可写后归还该stream的额度
+                int credit = userChannel.isWritable() ? window.drain() : 0;
+                if (credit > 0 && proxyChannel != null) {
+                    proxyChannel.writeAndFlush(StreamWindow.windowUpdate(ProxyChannelManager.getUserChannelUserId(userChannel), credit));
+                }
+            } else if (proxyChannel != null) {
                 proxyChannel.config().setOption(ChannelOption.AUTO_READ, userChannel.isWritable());
             }
         }
@@ -119,9 +317,67 @@ public class UserChannelHandler extends SimpleChannelInboundHandler<ByteBuf> {
     }
 
     /**
-     * 为用户连接产生ID
+     * 为用户连接产生ID，正整数，紧凑帧头中作为定长streamId传输
      */
-    private static String newUserId() {
-        return String.valueOf(userIdProducer.incrementAndGet());
+    private static int newUserId() {
+        int userId;
+        do {
+            userId = userIdProducer.incrementAndGet() & Integer.MAX_VALUE;
+        } while (userId == 0);
+        return userId;
+    }
+
+    /**
+     * 等待早期数据时的状态，只在用户连接的EventLoop中访问
+     */
+    private static class EarlyData {
+
+        private final Channel connectChannel;
+
+        private final ProxyMessage connectMessage;
+
+        private final RecvByteBufAllocator allocator;
+
+        private ScheduledFuture<?> timeout;
+
+        private boolean connectSent;
+
+        private ByteBuf lateData;
+
+        EarlyData(Channel connectChannel, ProxyMessage connectMessage, RecvByteBufAllocator allocator) {
+            this.connectChannel = connectChannel;
+            this.connectMessage = connectMessage;
+            this.allocator = allocator;
+        }
+
+        /**
+         * 发送TYPE_CONNECT，早期数据追加在mappingId之后
+         *
+         * @return 已经发送过时返回false
+         */
+        boolean sendConnect(ByteBuf buf) {
+            if (connectSent) {
+                return false;
+            }
+
+            connectSent = true;
+            cancel();
+            if (buf != null && buf.isReadable()) {
+                byte[] mapping = connectMessage.getData();
+                byte[] data = new byte[mapping.length + buf.readableBytes()];
+                System.arraycopy(mapping, 0, data, 0, mapping.length);
+                buf.getBytes(buf.readerIndex(), data, mapping.length, buf.readableBytes());
+                connectMessage.setData(data);
+            }
+            connectChannel.writeAndFlush(connectMessage);
+            return true;
+        }
+
+        void cancel() {
+            if (timeout != null) {
+                timeout.cancel(false);
+                timeout = null;
+            }
+        }
     }
-}
\ No newline at end of file
+}
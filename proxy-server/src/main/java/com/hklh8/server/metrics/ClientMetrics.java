@@ -0,0 +1,101 @@
+package com.hklh8.server.metrics;
+
+import java.io.Serializable;
+
+/**
+ * 代理客户端最近一次上报的运行统计，计数为上报周期内的增量
+ */
+public class ClientMetrics implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private String clientKey;
+
+    /**
+     * 代理客户端实例的控制连接编号，同一个clientKey可以有多个实例
+     */
+    private int tunnelId;
+
+    /**
+     * 分配给该实例的活跃用户连接数
+     */
+    private int sessions;
+
+    /**
+     * 控制连接的往返时间，-1表示客户端还没有测量
+     */
+    private int rttMillis;
+
+    private long poolHits;
+
+    private long poolMisses;
+
+    private int poolIdle;
+
+    private long timestamp;
+
+    public String getClientKey() {
+        return clientKey;
+    }
+
+    public void setClientKey(String clientKey) {
+        this.clientKey = clientKey;
+    }
+
+    public int getTunnelId() {
+        return tunnelId;
+    }
+
+    public void setTunnelId(int tunnelId) {
+        this.tunnelId = tunnelId;
+    }
+
+    public int getSessions() {
+        return sessions;
+    }
+
+    public void setSessions(int sessions) {
+        this.sessions = sessions;
+    }
+
+    public int getRttMillis() {
+        return rttMillis;
+    }
+
+    public void setRttMillis(int rttMillis) {
+        this.rttMillis = rttMillis;
+    }
+
+    public long getPoolHits() {
+        return poolHits;
+    }
+
+    public void setPoolHits(long poolHits) {
+        this.poolHits = poolHits;
+    }
+
+    public long getPoolMisses() {
+        return poolMisses;
+    }
+
+    public void setPoolMisses(long poolMisses) {
+        this.poolMisses = poolMisses;
+    }
+
+    public int getPoolIdle() {
+        return poolIdle;
+    }
+
+    public void setPoolIdle(int poolIdle) {
+        this.poolIdle = poolIdle;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+}
@@ -16,8 +16,34 @@ public class Metrics implements Serializable {
 
     private long wroteMsgs;
 
+    private long flushes;
+
+    private long compressionSavedBytes;
+
+    private long savedFlushes;
+
     private int channels;
 
+    /**
+     * 代理客户端上报的后端连接统计，见 {@link com.hklh8.common.protocol.ClientStats}
+     */
+    private long backendConnects;
+
+    private long backendConnectFailures;
+
+    /**
+     * 代理客户端上报的后端连接耗时合计，除以backendConnects得到平均耗时
+     */
+    private long backendConnectMillis;
+
+    private long backendMaxConnectMillis;
+
+    private long keepAliveReuses;
+
+    private long backendReadBytes;
+
+    private long backendWroteBytes;
+
     private long timestamp;
 
     public long getReadBytes() {
@@ -52,6 +78,30 @@ public class Metrics implements Serializable {
         this.wroteMsgs = wroteMsgs;
     }
 
+    public long getFlushes() {
+        return flushes;
+    }
+
+    public void setFlushes(long flushes) {
+        this.flushes = flushes;
+    }
+
+    public long getCompressionSavedBytes() {
+        return compressionSavedBytes;
+    }
+
+    public void setCompressionSavedBytes(long compressionSavedBytes) {
+        this.compressionSavedBytes = compressionSavedBytes;
+    }
+
+    public long getSavedFlushes() {
+        return savedFlushes;
+    }
+
+    public void setSavedFlushes(long savedFlushes) {
+        this.savedFlushes = savedFlushes;
+    }
+
     public int getChannels() {
         return channels;
     }
@@ -60,6 +110,62 @@ public class Metrics implements Serializable {
         this.channels = channels;
     }
 
+    public long getBackendConnects() {
+        return backendConnects;
+    }
+
+    public void setBackendConnects(long backendConnects) {
+        this.backendConnects = backendConnects;
+    }
+
+    public long getBackendConnectFailures() {
+        return backendConnectFailures;
+    }
+
+    public void setBackendConnectFailures(long backendConnectFailures) {
+        this.backendConnectFailures = backendConnectFailures;
+    }
+
+    public long getBackendConnectMillis() {
+        return backendConnectMillis;
+    }
+
+    public void setBackendConnectMillis(long backendConnectMillis) {
+        this.backendConnectMillis = backendConnectMillis;
+    }
+
+    public long getBackendMaxConnectMillis() {
+        return backendMaxConnectMillis;
+    }
+
+    public void setBackendMaxConnectMillis(long backendMaxConnectMillis) {
+        this.backendMaxConnectMillis = backendMaxConnectMillis;
+    }
+
+    public long getKeepAliveReuses() {
+        return keepAliveReuses;
+    }
+
+    public void setKeepAliveReuses(long keepAliveReuses) {
+        this.keepAliveReuses = keepAliveReuses;
+    }
+
+    public long getBackendReadBytes() {
+        return backendReadBytes;
+    }
+
+    public void setBackendReadBytes(long backendReadBytes) {
+        this.backendReadBytes = backendReadBytes;
+    }
+
+    public long getBackendWroteBytes() {
+        return backendWroteBytes;
+    }
+
+    public void setBackendWroteBytes(long backendWroteBytes) {
+        this.backendWroteBytes = backendWroteBytes;
+    }
+
     public long getTimestamp() {
         return timestamp;
     }
@@ -1,5 +1,7 @@
 package com.hklh8.server.metrics;
 
+import com.hklh8.common.protocol.ClientStats;
+
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -16,6 +18,11 @@ public class MetricsCollector {
 
     private static Map<Integer, MetricsCollector> metricsCollectors = new ConcurrentHashMap<Integer, MetricsCollector>();
 
+    /**
+     * 各个代理客户端最近一次上报的运行统计
+     */
+    private static Map<Integer, ClientMetrics> clientMetrics = new ConcurrentHashMap<>();
+
     private Integer port;
 
     private AtomicLong readBytes = new AtomicLong();
@@ -26,8 +33,28 @@ public class MetricsCollector {
 
     private AtomicLong wroteMsgs = new AtomicLong();
 
+    private AtomicLong flushes = new AtomicLong();
+
+    private AtomicLong savedFlushes = new AtomicLong();
+
+    private AtomicLong compressionSavedBytes = new AtomicLong();
+
     private AtomicInteger channels = new AtomicInteger();
 
+    private AtomicLong backendConnects = new AtomicLong();
+
+    private AtomicLong backendConnectFailures = new AtomicLong();
+
+    private AtomicLong backendConnectMillis = new AtomicLong();
+
+    private AtomicLong backendMaxConnectMillis = new AtomicLong();
+
+    private AtomicLong keepAliveReuses = new AtomicLong();
+
+    private AtomicLong backendReadBytes = new AtomicLong();
+
+    private AtomicLong backendWroteBytes = new AtomicLong();
+
     private MetricsCollector() {
     }
 
@@ -76,6 +103,16 @@ public class MetricsCollector {
         metrics.setTimestamp(System.currentTimeMillis());
         metrics.setReadMsgs(readMsgs.getAndSet(0));
         metrics.setWroteMsgs(wroteMsgs.getAndSet(0));
+        metrics.setFlushes(flushes.getAndSet(0));
+        metrics.setSavedFlushes(savedFlushes.getAndSet(0));
+        metrics.setCompressionSavedBytes(compressionSavedBytes.getAndSet(0));
+        metrics.setBackendConnects(backendConnects.getAndSet(0));
+        metrics.setBackendConnectFailures(backendConnectFailures.getAndSet(0));
+        metrics.setBackendConnectMillis(backendConnectMillis.getAndSet(0));
+        metrics.setBackendMaxConnectMillis(backendMaxConnectMillis.getAndSet(0));
+        metrics.setKeepAliveReuses(keepAliveReuses.getAndSet(0));
+        metrics.setBackendReadBytes(backendReadBytes.getAndSet(0));
+        metrics.setBackendWroteBytes(backendWroteBytes.getAndSet(0));
 
         return metrics;
     }
@@ -89,6 +126,16 @@ public class MetricsCollector {
         metrics.setTimestamp(System.currentTimeMillis());
         metrics.setReadMsgs(readMsgs.get());
         metrics.setWroteMsgs(wroteMsgs.get());
+        metrics.setFlushes(flushes.get());
+        metrics.setSavedFlushes(savedFlushes.get());
+        metrics.setCompressionSavedBytes(compressionSavedBytes.get());
+        metrics.setBackendConnects(backendConnects.get());
+        metrics.setBackendConnectFailures(backendConnectFailures.get());
+        metrics.setBackendConnectMillis(backendConnectMillis.get());
+        metrics.setBackendMaxConnectMillis(backendMaxConnectMillis.get());
+        metrics.setKeepAliveReuses(keepAliveReuses.get());
+        metrics.setBackendReadBytes(backendReadBytes.get());
+        metrics.setBackendWroteBytes(backendWroteBytes.get());
 
         return metrics;
     }
@@ -109,6 +156,49 @@ public class MetricsCollector {
         wroteMsgs.addAndGet(msgs);
     }
 
+    public void incrementFlushes(long flushes) {
+        this.flushes.addAndGet(flushes);
+    }
+
+    public void incrementSavedFlushes(long savedFlushes) {
+        this.savedFlushes.addAndGet(savedFlushes);
+    }
+
+    /**
+     * 传输压缩节省的隧道流量，包括两个方向
+     */
+    public void incrementCompressionSavedBytes(long bytes) {
+        compressionSavedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * 累加代理客户端上报的该端口映射的后端连接统计
+     */
+    public void addBackendStats(ClientStats.MappingStats stats) {
+        backendConnects.addAndGet(stats.getConnects());
+        backendConnectFailures.addAndGet(stats.getConnectFailures());
+        backendConnectMillis.addAndGet(stats.getConnectMillis());
+        backendMaxConnectMillis.accumulateAndGet(stats.getMaxConnectMillis(), Math::max);
+        keepAliveReuses.addAndGet(stats.getKeepAliveReuses());
+        backendReadBytes.addAndGet(stats.getBytesFromBackend());
+        backendWroteBytes.addAndGet(stats.getBytesToBackend());
+    }
+
+    public static void putClientMetrics(ClientMetrics metrics) {
+        clientMetrics.put(metrics.getTunnelId(), metrics);
+    }
+
+    /**
+     * 代理客户端实例断开后清除其上报的运行统计
+     */
+    public static void removeClientMetrics(int tunnelId) {
+        clientMetrics.remove(tunnelId);
+    }
+
+    public static List<ClientMetrics> getAllClientMetrics() {
+        return new ArrayList<>(clientMetrics.values());
+    }
+
     public AtomicInteger getChannels() {
         return channels;
     }
@@ -6,14 +6,19 @@ import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
 
-import java.net.InetSocketAddress;
-
+/**
+ * 按用户连接所在端口统计流量，统计对象在连接建立时确定
+ */
 public class BytesMetricsHandler extends ChannelDuplexHandler {
 
+    private final MetricsCollector metricsCollector;
+
+    public BytesMetricsHandler(MetricsCollector metricsCollector) {
+        this.metricsCollector = metricsCollector;
+    }
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        InetSocketAddress sa = (InetSocketAddress) ctx.channel().localAddress();
-        MetricsCollector metricsCollector = MetricsCollector.getCollector(sa.getPort());
         metricsCollector.incrementReadBytes(((ByteBuf) msg).readableBytes());
         metricsCollector.incrementReadMsgs(1);
         ctx.fireChannelRead(msg);
@@ -21,8 +26,6 @@ public class BytesMetricsHandler extends ChannelDuplexHandler {
 
     @Override
     public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
-        InetSocketAddress sa = (InetSocketAddress) ctx.channel().localAddress();
-        MetricsCollector metricsCollector = MetricsCollector.getCollector(sa.getPort());
         metricsCollector.incrementWroteBytes(((ByteBuf) msg).readableBytes());
         metricsCollector.incrementWroteMsgs(1);
         super.write(ctx, msg, promise);
@@ -30,15 +33,13 @@ public class BytesMetricsHandler extends ChannelDuplexHandler {
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        InetSocketAddress sa = (InetSocketAddress) ctx.channel().localAddress();
-        MetricsCollector.getCollector(sa.getPort()).getChannels().incrementAndGet();
+        metricsCollector.getChannels().incrementAndGet();
         super.channelActive(ctx);
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-        InetSocketAddress sa = (InetSocketAddress) ctx.channel().localAddress();
-        MetricsCollector.getCollector(sa.getPort()).getChannels().decrementAndGet();
+        metricsCollector.getChannels().decrementAndGet();
         super.channelInactive(ctx);
     }
 
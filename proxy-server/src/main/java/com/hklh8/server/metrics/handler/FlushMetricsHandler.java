@@ -0,0 +1,42 @@
+package com.hklh8.server.metrics.handler;
+
+import com.hklh8.common.protocol.BatchFlushHandler;
+import com.hklh8.server.metrics.MetricsCollector;
+import io.netty.channel.ChannelHandlerContext;
+
+import java.net.InetSocketAddress;
+
+/**
+ * 合并flush并按本地端口统计实际flush次数和省下的写系统调用次数
+ */
+public class FlushMetricsHandler extends BatchFlushHandler {
+
+    /**
+     * 本地端口的统计，没有在创建时指定的在第一次flush时按本地端口获取
+     */
+    private MetricsCollector metricsCollector;
+
+    public FlushMetricsHandler(int maxPendingBytes, long maxDelayMicros) {
+        this(maxPendingBytes, maxDelayMicros, null);
+    }
+
+    public FlushMetricsHandler(int maxPendingBytes, long maxDelayMicros, MetricsCollector metricsCollector) {
+        super(maxPendingBytes, maxDelayMicros);
+        this.metricsCollector = metricsCollector;
+    }
+
+    @Override
+    protected void onFlush(ChannelHandlerContext ctx, int writes, long bytes, int saved) {
+        MetricsCollector metricsCollector = this.metricsCollector;
+        if (metricsCollector == null) {
+            InetSocketAddress sa = (InetSocketAddress) ctx.channel().localAddress();
+            if (sa == null) {
+                return;
+            }
+            metricsCollector = this.metricsCollector = MetricsCollector.getCollector(sa.getPort());
+        }
+
+        metricsCollector.incrementFlushes(1);
+        metricsCollector.incrementSavedFlushes(saved);
+    }
+}